@@ -0,0 +1,93 @@
+package pkleczek.profiwan.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkleczek.profiwan.model.Grade;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.utils.AnswerMatcher;
+import pkleczek.profiwan.utils.AnswerMatcher.PreparedAnswer;
+import pkleczek.profiwan.utils.MatchPolicy;
+
+/**
+ * Checking a typed answer against a prepared one: a correct answer, an answer
+ * with a typo and a wrong answer (of the same length), with typos accepted.
+ * 
+ * @author Pawel
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnswerMatchingBenchmark {
+
+	@Param({ "8", "24", "60" })
+	public int answerLength;
+
+	@Param({ "2" })
+	public int maxTypos;
+
+	private PreparedAnswer answer;
+
+	private String correct;
+
+	private String typo;
+
+	private String wrong;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42L);
+
+		correct = randomText(random, answerLength);
+		wrong = randomText(random, answerLength);
+
+		char[] chars = correct.toCharArray();
+		chars[answerLength / 2] = chars[answerLength / 2] == 'а' ? 'б' : 'а';
+		typo = new String(chars);
+
+		PhraseEntry pe = new PhraseEntry();
+		pe.setLangBText(correct);
+
+		answer = new AnswerMatcher(MatchPolicy.LENIENT.withMaxTypos(maxTypos))
+				.prepare(pe);
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append(i % 8 == 7 ? ' ' : (char) ('а' + random.nextInt(32)));
+		}
+		return sb.toString();
+	}
+
+	@Benchmark
+	public Grade gradeCorrect() {
+		return answer.grade(correct);
+	}
+
+	@Benchmark
+	public Grade gradeTypo() {
+		return answer.grade(typo);
+	}
+
+	@Benchmark
+	public Grade gradeWrong() {
+		return answer.grade(wrong);
+	}
+}
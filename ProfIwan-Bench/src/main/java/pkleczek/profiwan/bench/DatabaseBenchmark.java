@@ -0,0 +1,118 @@
+package pkleczek.profiwan.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionsSession;
+import pkleczek.profiwan.utils.PhraseCursor;
+import pkleczek.profiwan.utils.SQLiteDatabaseHelper;
+
+/**
+ * Persistence hot paths against a temporary SQLite file: loading the
+ * dictionary, constructing a session and answering.
+ * 
+ * @author Pawel
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int phrasesNumber;
+
+	@Param({ "10", "100" })
+	public int revisionsPerPhrase;
+
+	private SQLiteDatabaseHelper dbHelper;
+
+	private RevisionsSession session;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dbHelper = new SQLiteDatabaseHelper(
+				SyntheticData.createTemporaryDatabase());
+
+		SyntheticData.store(dbHelper, SyntheticData.createDictionary(
+				phrasesNumber, revisionsPerPhrase, 42L));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dbHelper.close();
+	}
+
+	@Setup(Level.Iteration)
+	public void startSession() {
+		session = new RevisionsSession(dbHelper);
+
+		if (!session.hasRevisions()) {
+			throw new IllegalStateException("no pending phrases"); //$NON-NLS-1$
+		}
+	}
+
+	@Benchmark
+	public List<PhraseEntry> getDictionary() {
+		return dbHelper.getDictionary();
+	}
+
+	@Benchmark
+	public int openDictionary() {
+		int revisions = 0;
+		PhraseCursor cursor = dbHelper.openDictionary();
+
+		try {
+			while (cursor.hasNext()) {
+				revisions += cursor.next().getRevisions().size();
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return revisions;
+	}
+
+	@Benchmark
+	public List<PhraseEntry> getListOfPendingPhrases() {
+		return RevisionsSession.getListOfPendingPhrases(dbHelper, DateTime
+				.now().withTimeAtStartOfDay());
+	}
+
+	@Benchmark
+	public RevisionsSession createSession() {
+		return new RevisionsSession(dbHelper);
+	}
+
+	/**
+	 * A wrong answer (keeps the phrase pending, so the session is not used
+	 * up): an update of the revision, preceded by its insert the first time.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public boolean processTypedWord() {
+		boolean correct = session.processTypedWord("");
+		session.nextRevision();
+
+		return correct;
+	}
+}
@@ -0,0 +1,95 @@
+package pkleczek.profiwan.bench;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.utils.DictionaryFile;
+
+/**
+ * Loading a shared course from a dictionary file: opening it (mapping), a
+ * scan of a column, and building all the phrases.
+ *
+ * @author Pawel
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DictionaryFileBenchmark {
+
+	@Param({ "1000000" })
+	public int phrasesNumber;
+
+	@Param({ "5" })
+	public int revisionsPerPhrase;
+
+	private File file;
+
+	private DictionaryFile dictionary;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		file = File.createTempFile("profiwan", ".dict"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		DictionaryFile.write(SyntheticData.createDictionary(phrasesNumber,
+				revisionsPerPhrase, 42L), file);
+		dictionary = DictionaryFile.open(file);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public DictionaryFile open() throws Exception {
+		return DictionaryFile.open(file);
+	}
+
+	/**
+	 * Counts phrases in revision, reading a single column.
+	 */
+	@Benchmark
+	public int countInRevisions() {
+		int count = 0;
+		for (int i = 0; i < dictionary.size(); i++) {
+			if (dictionary.isInRevisions(i)) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	@Benchmark
+	public int buildPhrases() {
+		List<PhraseEntry> phrases = dictionary.asList();
+
+		int revisions = 0;
+		for (int i = 0; i < phrases.size(); i++) {
+			revisions += phrases.get(i).getRevisions().size();
+		}
+
+		return revisions;
+	}
+}
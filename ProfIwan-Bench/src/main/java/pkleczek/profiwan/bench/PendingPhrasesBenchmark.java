@@ -0,0 +1,94 @@
+package pkleczek.profiwan.bench;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionScheduler;
+import pkleczek.profiwan.model.RevisionsSession;
+
+/**
+ * Selection of pending phrases from a large in-memory dictionary:
+ * sequentially, in parallel (with the given number of threads) and from a
+ * {@link RevisionScheduler}.
+ * 
+ * @author Pawel
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class PendingPhrasesBenchmark {
+
+	@Param({ "100000", "1000000" })
+	public int phrasesNumber;
+
+	@Param({ "10" })
+	public int revisionsPerPhrase;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	private List<PhraseEntry> dictionary;
+
+	private RevisionScheduler scheduler;
+
+	private ExecutorService executor;
+
+	private DateTime dueDate;
+
+	@Setup
+	public void setUp() {
+		dictionary = SyntheticData.createDictionary(phrasesNumber,
+				revisionsPerPhrase, 42L);
+		scheduler = new RevisionScheduler(dictionary);
+		executor = Executors.newFixedThreadPool(threads);
+		dueDate = DateTime.now().withTimeAtStartOfDay();
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public int sequential() {
+		int pending = 0;
+		for (PhraseEntry pe : dictionary) {
+			if (pe.isReviseNow(dueDate)) {
+				pending++;
+			}
+		}
+		return pending;
+	}
+
+	@Benchmark
+	public int parallel() {
+		return RevisionsSession.getListOfPendingPhrases(dictionary, dueDate,
+				executor).size();
+	}
+
+	@Benchmark
+	public int scheduler() {
+		return scheduler.countDue(dueDate);
+	}
+}
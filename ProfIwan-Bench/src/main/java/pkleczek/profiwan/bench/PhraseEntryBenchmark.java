@@ -0,0 +1,93 @@
+package pkleczek.profiwan.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.utils.Clock;
+
+/**
+ * Scheduling of a single phrase: revision frequency (with and without the
+ * cached scheduling state) and the due check.
+ * 
+ * @author Pawel
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PhraseEntryBenchmark {
+
+	private static final int PHRASES_NUMBER = 1024;
+
+	@Param({ "1", "10", "100", "1000" })
+	public int revisionsPerPhrase;
+
+	private PhraseEntry[] phrases;
+
+	private DateTime dueDate;
+
+	private int dueDay;
+
+	private int index = 0;
+
+	@Setup
+	public void setUp() {
+		List<PhraseEntry> dictionary = SyntheticData.createDictionary(
+				PHRASES_NUMBER, revisionsPerPhrase, 42L);
+		phrases = dictionary.toArray(new PhraseEntry[dictionary.size()]);
+		dueDate = DateTime.now().withTimeAtStartOfDay();
+		dueDay = Clock.getDefault().getToday();
+	}
+
+	private PhraseEntry nextPhrase() {
+		index = (index + 1) & (PHRASES_NUMBER - 1);
+		return phrases[index];
+	}
+
+	@Benchmark
+	public int getRevisionFrequency() {
+		return nextPhrase().getRevisionFrequency();
+	}
+
+	@Benchmark
+	public int getRevisionFrequencyReplay() {
+		PhraseEntry pe = nextPhrase();
+		pe.recomputeSchedule();
+		return pe.getRevisionFrequency();
+	}
+
+	@Benchmark
+	public boolean isReviseNow() {
+		return nextPhrase().isReviseNow(dueDate);
+	}
+
+	/**
+	 * The due check as made by scans, with the days computed once.
+	 */
+	@Benchmark
+	public boolean isReviseNowEpochDay() {
+		return nextPhrase().isReviseNow(dueDay, dueDay);
+	}
+
+	@Benchmark
+	public DateTime getNextRevisionDate() {
+		return nextPhrase().getNextRevisionDate();
+	}
+}
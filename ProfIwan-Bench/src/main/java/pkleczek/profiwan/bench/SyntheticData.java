@@ -0,0 +1,103 @@
+package pkleczek.profiwan.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+
+import pkleczek.profiwan.model.PackedRevisionList;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.utils.DBUtils;
+import pkleczek.profiwan.utils.DatabaseHelper;
+
+/**
+ * Generators of synthetic dictionaries for benchmarks.
+ * 
+ * @author Pawel
+ * 
+ */
+public final class SyntheticData {
+
+	private static final int SECONDS_PER_DAY = 86400;
+
+	/**
+	 * Probability of a revision without mistakes.
+	 */
+	private static final double CORRECT_RATIO = 0.8;
+
+	private SyntheticData() {
+	}
+
+	/**
+	 * Creates phrases (all in revision) with histories of the given length.
+	 * Revisions are spread over the past days with the most recent ones
+	 * around today, so that a fraction of phrases is due.
+	 */
+	public static List<PhraseEntry> createDictionary(int phrasesNumber,
+			int revisionsPerPhrase, long seed) {
+		Random random = new Random(seed);
+		int now = DBUtils.getIntFromDateTime(DateTime.now());
+
+		List<PhraseEntry> dictionary = new ArrayList<PhraseEntry>(
+				phrasesNumber);
+
+		for (int i = 0; i < phrasesNumber; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setId(i + 1);
+			pe.setInRevisions(true);
+			pe.setCreatedAt(DBUtils.getDateTimeFromInt(now
+					- revisionsPerPhrase * 3 * SECONDS_PER_DAY));
+			pe.setLangA("pl");
+			pe.setLangB("ru");
+			pe.setLangAText("slowo " + i);
+			pe.setLangBText("слово " + i);
+			pe.setLabel("");
+
+			PackedRevisionList revisions = new PackedRevisionList(
+					revisionsPerPhrase);
+			int date = now - revisionsPerPhrase * 2 * SECONDS_PER_DAY;
+			for (int r = 0; r < revisionsPerPhrase; r++) {
+				date += random.nextInt(5) * SECONDS_PER_DAY;
+				revisions.add(0, Math.min(date, now - SECONDS_PER_DAY),
+						random.nextDouble() < CORRECT_RATIO ? 0 : 1
+								+ random.nextInt(3));
+			}
+			pe.setRevisions(revisions);
+
+			dictionary.add(pe);
+		}
+
+		return dictionary;
+	}
+
+	/**
+	 * Stores the dictionary (in a single transaction).
+	 */
+	public static void store(DatabaseHelper dbHelper,
+			List<PhraseEntry> dictionary) {
+		dbHelper.beginTransaction();
+		try {
+			dbHelper.createPhrases(dictionary);
+			dbHelper.createRevisions(dictionary);
+
+			dbHelper.setTransactionSuccessful();
+		} finally {
+			dbHelper.endTransaction();
+		}
+	}
+
+	/**
+	 * Creates a temporary database file (deleted on exit).
+	 * 
+	 * @return JDBC URL of the database
+	 */
+	public static String createTemporaryDatabase() throws IOException {
+		File file = File.createTempFile("profiwan", ".db"); //$NON-NLS-1$ //$NON-NLS-2$
+		file.deleteOnExit();
+
+		return "jdbc:sqlite:" + file.getAbsolutePath(); //$NON-NLS-1$
+	}
+}
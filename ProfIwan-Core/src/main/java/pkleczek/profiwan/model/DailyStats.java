@@ -0,0 +1,70 @@
+package pkleczek.profiwan.model;
+
+import org.joda.time.LocalDate;
+
+/**
+ * The <code>DailyStats</code> class holds totals of the revisions made on a
+ * single day.
+ *
+ * @author Pawel
+ *
+ */
+public class DailyStats {
+
+	private final LocalDate day;
+
+	private final int revisions;
+
+	private final int mistakes;
+
+	private final int typos;
+
+	private final int learned;
+
+	public DailyStats(LocalDate day, int revisions, int mistakes, int typos,
+			int learned) {
+		this.day = day;
+		this.revisions = revisions;
+		this.mistakes = mistakes;
+		this.typos = typos;
+		this.learned = learned;
+	}
+
+	public LocalDate getDay() {
+		return day;
+	}
+
+	/**
+	 * @return number of revisions (words revised)
+	 */
+	public int getRevisions() {
+		return revisions;
+	}
+
+	/**
+	 * @return number of mistakes made in the revisions
+	 */
+	public int getMistakes() {
+		return mistakes;
+	}
+
+	/**
+	 * @return number of answers accepted with typos
+	 */
+	public int getTypos() {
+		return typos;
+	}
+
+	/**
+	 * @return number of words learned, i.e. revised without a mistake
+	 */
+	public int getLearned() {
+		return learned;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d revisions, %d mistakes, %d typos, %d learned", //$NON-NLS-1$
+				day, revisions, mistakes, typos, learned);
+	}
+}
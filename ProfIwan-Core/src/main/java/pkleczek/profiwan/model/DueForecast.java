@@ -0,0 +1,152 @@
+package pkleczek.profiwan.model;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.utils.DBUtils;
+
+/**
+ * The <code>DueForecast</code> class is a histogram of the number of phrases
+ * becoming due for revision on each of consecutive days, by their next
+ * revision dates (see {@link PhraseEntry#getNextRevisionDate()}, which keeps
+ * intervals between {@link PhraseEntry#MIN_REVISION_INTERVAL} and
+ * {@link PhraseEntry#MAX_REVISION_INTERVAL} days).
+ * <p>
+ * Phrases already overdue on the first day are counted on that day. Further
+ * revisions of the counted phrases are not forecast, so a forecast of more
+ * than <code>MAX_REVISION_INTERVAL</code> days includes every phrase in
+ * revision.
+ *
+ * @author Pawel
+ *
+ */
+public class DueForecast {
+
+	private final LocalDate start;
+
+	private final int startDay;
+
+	private final int[] counts;
+
+	/**
+	 * Creates an empty forecast.
+	 *
+	 * @param start
+	 *            first day
+	 * @param days
+	 *            number of days
+	 */
+	public DueForecast(LocalDate start, int days) {
+		if (days < 0) {
+			throw new IllegalArgumentException("days: " + days); //$NON-NLS-1$
+		}
+
+		this.start = start;
+		this.startDay = DBUtils.getEpochDay(start);
+		this.counts = new int[days];
+	}
+
+	/**
+	 * Computes the forecast in a single pass over the phrases. Phrases not in
+	 * revision are skipped.
+	 */
+	public static DueForecast compute(Iterable<PhraseEntry> phrases,
+			LocalDate start, int days) {
+		DueForecast forecast = new DueForecast(start, days);
+
+		for (PhraseEntry pe : phrases) {
+			if (pe.isInRevisions()) {
+				forecast.addDay(pe.getNextRevisionDay(), 1);
+			}
+		}
+
+		return forecast;
+	}
+
+	/**
+	 * Counts phrases becoming due at the given date.
+	 *
+	 * @param dueDate
+	 *            next revision date
+	 * @param number
+	 *            number of phrases
+	 * @return <code>false</code> if the date is after the last day or the
+	 *         forecast has no days (phrases are not counted then)
+	 */
+	public boolean add(DateTime dueDate, int number) {
+		return addDay(DBUtils.getEpochDayFromMillis(dueDate.getMillis()),
+				number);
+	}
+
+	private boolean addDay(int epochDay, int number) {
+		// Overdue ones are counted on the first day.
+		int day = Math.max(epochDay - startDay, 0);
+
+		if (day >= counts.length) {
+			return false;
+		}
+
+		counts[day] += number;
+		return true;
+	}
+
+	public LocalDate getStart() {
+		return start;
+	}
+
+	/**
+	 * @return number of days of the forecast
+	 */
+	public int getDays() {
+		return counts.length;
+	}
+
+	/**
+	 * @param day
+	 *            day counting from the first one (0)
+	 * @return number of phrases becoming due on the day
+	 */
+	public int getDue(int day) {
+		return counts[day];
+	}
+
+	/**
+	 * @return number of phrases becoming due on the day, 0 outside of the
+	 *         forecast
+	 */
+	public int getDue(LocalDate date) {
+		int day = DBUtils.getEpochDay(date) - startDay;
+
+		return day >= 0 && day < counts.length ? counts[day] : 0;
+	}
+
+	/**
+	 * @return number of phrases becoming due till the last day
+	 */
+	public int getTotal() {
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+
+		return total;
+	}
+
+	/**
+	 * @return the counts of the consecutive days
+	 */
+	public int[] toArray() {
+		return counts.clone();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(start).append(':');
+		for (int count : counts) {
+			sb.append(' ').append(count);
+		}
+
+		return sb.toString();
+	}
+}
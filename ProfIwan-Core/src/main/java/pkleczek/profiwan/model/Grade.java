@@ -0,0 +1,27 @@
+package pkleczek.profiwan.model;
+
+/**
+ * Grade of a typed answer.
+ * 
+ * @author Pawel
+ * 
+ */
+public enum Grade {
+
+	CORRECT,
+
+	/**
+	 * Accepted, but with typos (see
+	 * {@link pkleczek.profiwan.utils.MatchPolicy#getMaxTypos()}).
+	 */
+	ALMOST_CORRECT,
+
+	WRONG;
+
+	/**
+	 * @return <code>true</code> if the answer is accepted
+	 */
+	public boolean isAccepted() {
+		return this != WRONG;
+	}
+}
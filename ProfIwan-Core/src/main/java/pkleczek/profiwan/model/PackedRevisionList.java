@@ -0,0 +1,286 @@
+package pkleczek.profiwan.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import org.joda.time.DateTime;
+
+import pkleczek.profiwan.utils.DBUtils;
+
+/**
+ * The <code>PackedRevisionList</code> class stores a revision history in
+ * parallel primitive arrays (ids, creation dates as epoch seconds, mistakes,
+ * typos)
+ * instead of separate <code>RevisionEntry</code> objects.
+ * <p>
+ * Elements returned by {@link #get(int)} are views created on demand: they
+ * read and write the arrays at their index, so a view should not be kept
+ * across insertions or removals of earlier revisions. Entries passed to
+ * <code>add()</code> or <code>set()</code> are copied.
+ *
+ * @author Pawel
+ *
+ */
+public class PackedRevisionList extends AbstractList<RevisionEntry> implements
+		RandomAccess {
+
+	private static final int DEFAULT_CAPACITY = 4;
+
+	private long[] ids;
+
+	private int[] createdAt;
+
+	private int[] mistakes;
+
+	private int[] typos;
+
+	private int size = 0;
+
+	public PackedRevisionList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PackedRevisionList(int capacity) {
+		ids = new long[capacity];
+		createdAt = new int[capacity];
+		mistakes = new int[capacity];
+		typos = new int[capacity];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public RevisionEntry get(int index) {
+		checkIndex(index);
+		return new View(index);
+	}
+
+	@Override
+	public RevisionEntry set(int index, RevisionEntry element) {
+		checkIndex(index);
+
+		RevisionEntry previous = copyOf(index);
+		store(index, element);
+
+		return previous;
+	}
+
+	@Override
+	public void add(int index, RevisionEntry element) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index //$NON-NLS-1$
+					+ ", Size: " + size); //$NON-NLS-1$
+		}
+
+		ensureCapacity(size + 1);
+
+		int moved = size - index;
+		if (moved > 0) {
+			System.arraycopy(ids, index, ids, index + 1, moved);
+			System.arraycopy(createdAt, index, createdAt, index + 1, moved);
+			System.arraycopy(mistakes, index, mistakes, index + 1, moved);
+			System.arraycopy(typos, index, typos, index + 1, moved);
+		}
+
+		store(index, element);
+		size++;
+		modCount++;
+	}
+
+	/**
+	 * Appends a revision without creating any objects.
+	 *
+	 * @param id
+	 *            ID as in database
+	 * @param createdAtSeconds
+	 *            creation date (seconds since epoch)
+	 * @param mistakesNumber
+	 *            number of mistakes
+	 */
+	public void add(long id, int createdAtSeconds, int mistakesNumber) {
+		add(id, createdAtSeconds, mistakesNumber, 0);
+	}
+
+	/**
+	 * Appends a revision without creating any objects.
+	 *
+	 * @param id
+	 *            ID as in database
+	 * @param createdAtSeconds
+	 *            creation date (seconds since epoch)
+	 * @param mistakesNumber
+	 *            number of mistakes
+	 * @param typosNumber
+	 *            number of answers with typos
+	 */
+	public void add(long id, int createdAtSeconds, int mistakesNumber,
+			int typosNumber) {
+		ensureCapacity(size + 1);
+
+		ids[size] = id;
+		createdAt[size] = createdAtSeconds;
+		mistakes[size] = mistakesNumber;
+		typos[size] = typosNumber;
+
+		size++;
+		modCount++;
+	}
+
+	@Override
+	public RevisionEntry remove(int index) {
+		checkIndex(index);
+
+		RevisionEntry previous = copyOf(index);
+
+		int moved = size - index - 1;
+		if (moved > 0) {
+			System.arraycopy(ids, index + 1, ids, index, moved);
+			System.arraycopy(createdAt, index + 1, createdAt, index, moved);
+			System.arraycopy(mistakes, index + 1, mistakes, index, moved);
+			System.arraycopy(typos, index + 1, typos, index, moved);
+		}
+
+		size--;
+		modCount++;
+
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		modCount++;
+	}
+
+	public long getId(int index) {
+		checkIndex(index);
+		return ids[index];
+	}
+
+	/**
+	 * @return creation date (seconds since epoch)
+	 */
+	public int getCreatedAtSeconds(int index) {
+		checkIndex(index);
+		return createdAt[index];
+	}
+
+	public int getMistakes(int index) {
+		checkIndex(index);
+		return mistakes[index];
+	}
+
+	public int getTypos(int index) {
+		checkIndex(index);
+		return typos[index];
+	}
+
+	/**
+	 * Trims the capacity of the arrays to the list's current size.
+	 */
+	public void trimToSize() {
+		if (ids.length > size) {
+			ids = Arrays.copyOf(ids, size);
+			createdAt = Arrays.copyOf(createdAt, size);
+			mistakes = Arrays.copyOf(mistakes, size);
+			typos = Arrays.copyOf(typos, size);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > ids.length) {
+			int newCapacity = Math.max(capacity, ids.length * 3 / 2 + 1);
+			ids = Arrays.copyOf(ids, newCapacity);
+			createdAt = Arrays.copyOf(createdAt, newCapacity);
+			mistakes = Arrays.copyOf(mistakes, newCapacity);
+			typos = Arrays.copyOf(typos, newCapacity);
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index //$NON-NLS-1$
+					+ ", Size: " + size); //$NON-NLS-1$
+		}
+	}
+
+	private void store(int index, RevisionEntry element) {
+		ids[index] = element.getId();
+		createdAt[index] = element.getCreatedAt() == null ? 0 : DBUtils
+				.getIntFromDateTime(element.getCreatedAt());
+		mistakes[index] = element.getMistakes();
+		typos[index] = element.getTypos();
+	}
+
+	private RevisionEntry copyOf(int index) {
+		RevisionEntry re = new RevisionEntry();
+		re.setId(ids[index]);
+		re.setCreatedAt(DBUtils.getDateTimeFromInt(createdAt[index]));
+		re.setMistakes(mistakes[index]);
+		re.setTypos(typos[index]);
+
+		return re;
+	}
+
+	/**
+	 * Revision backed by the arrays.
+	 */
+	private class View extends RevisionEntry {
+
+		private final int index;
+
+		View(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public DateTime getCreatedAt() {
+			return DBUtils.getDateTimeFromInt(createdAt[index]);
+		}
+
+		@Override
+		public int getCreatedAtSeconds() {
+			return createdAt[index];
+		}
+
+		@Override
+		public long getId() {
+			return ids[index];
+		}
+
+		@Override
+		public int getMistakes() {
+			return mistakes[index];
+		}
+
+		@Override
+		public int getTypos() {
+			return typos[index];
+		}
+
+		@Override
+		public void setCreatedAt(DateTime date) {
+			createdAt[index] = date == null ? 0 : DBUtils
+					.getIntFromDateTime(date);
+		}
+
+		@Override
+		public void setId(long id) {
+			ids[index] = id;
+		}
+
+		@Override
+		public void setMistakes(int mistakesNumber) {
+			mistakes[index] = mistakesNumber;
+		}
+
+		@Override
+		public void setTypos(int typosNumber) {
+			typos[index] = typosNumber;
+		}
+	}
+}
@@ -5,6 +5,9 @@ import java.util.List;
 
 import org.joda.time.DateTime;
 
+import pkleczek.profiwan.utils.Clock;
+import pkleczek.profiwan.utils.DBUtils;
+
 /**
  * The <code>PhraseEntry</code> class stores all the information about a phrase
  * (ie. translations, revisions).
@@ -46,6 +49,13 @@ public class PhraseEntry {
 	 */
 	public static double MISTAKE_MULTIPLIER = 0.5;
 
+	/**
+	 * Seed of the anti-stacking jitter. The jitter is derived from the seed,
+	 * the phrase's ID and the date of its last revision, so the next revision
+	 * date is a pure function of the phrase's history.
+	 */
+	public static long JITTER_SEED = 0L;
+
 	private DateTime createdAt = null;
 
 	/**
@@ -73,6 +83,21 @@ public class PhraseEntry {
 
 	private List<RevisionEntry> revisions = new ArrayList<RevisionEntry>();
 
+	/**
+	 * Revisions' list the settled scheduling state was computed for.
+	 */
+	private List<RevisionEntry> scheduledRevisions = null;
+
+	/**
+	 * Scheduling state after all revisions but the last one.
+	 */
+	private final ScheduleState settledSchedule = new ScheduleState();
+
+	/**
+	 * Number of revisions folded into the settled scheduling state.
+	 */
+	private int settledRevisionsNumber = 0;
+
 	public DateTime getCreatedAt() {
 		return createdAt;
 	}
@@ -101,77 +126,213 @@ public class PhraseEntry {
 		return langBText;
 	}
 
+	/**
+	 * Returns the current revision frequency (in days).
+	 * <p>
+	 * The scheduling state of all revisions but the last one is kept between
+	 * calls and only the newly appended revisions are folded into it, so the
+	 * cost does not depend on the length of the history. The last revision is
+	 * always evaluated anew as its mistakes may still change during a
+	 * session.
+	 */
 	public int getRevisionFrequency() {
-		int freq = MIN_REVISION_INTERVAL;
-		int correctStreak = 0;
-		boolean isInitialStreak = false;
+		int lastIndex = revisions.size() - 1;
 
-		for (int i = 0; i < revisions.size(); i++) {
-			RevisionEntry e = revisions.get(i);
+		if (lastIndex < 0) {
+			return MIN_REVISION_INTERVAL;
+		}
 
-			if (e.getMistakes() == 0) {
-				if (isInitialStreak) {
-					freq += FREQUENCY_DECAY;
-				}
+		synchronizeSchedule(lastIndex);
 
-				correctStreak++;
+		return settledSchedule.getFrequencyAfter(getMistakes(lastIndex));
+	}
 
-				if (!isInitialStreak && correctStreak == MIN_CORRECT_STREAK) {
-					isInitialStreak = true;
-//					correctStreak = 0; // FIXME: bez sensu tu zerowac, skoro potem mnozymy to i odejmujemy od freq!
-				}
-			} else {
-				if (isInitialStreak) {
-					freq -= correctStreak * FREQUENCY_DECAY
-							* MISTAKE_MULTIPLIER;
+	/**
+	 * Folds first <code>count</code> revisions into the settled scheduling
+	 * state (replays the whole history only if the list was replaced or
+	 * shrunk).
+	 */
+	private void synchronizeSchedule(int count) {
+		if (scheduledRevisions != revisions || settledRevisionsNumber > count) {
+			settledSchedule.reset();
+			settledRevisionsNumber = 0;
+			scheduledRevisions = revisions;
+		}
 
-					// clamp
-					freq = Math.min(freq, MAX_REVISION_INTERVAL);
-					freq = Math.max(freq, MIN_REVISION_INTERVAL);
-				}
-				correctStreak = 0;
-			}
+		while (settledRevisionsNumber < count) {
+			settledSchedule.apply(getMistakes(settledRevisionsNumber));
+			settledRevisionsNumber++;
+		}
+	}
+
+	/**
+	 * Reads mistakes of the given revision (without creating a view of a
+	 * packed revision).
+	 */
+	private int getMistakes(int index) {
+		if (revisions instanceof PackedRevisionList) {
+			return ((PackedRevisionList) revisions).getMistakes(index);
 		}
 
-		return freq;
+		return revisions.get(index).getMistakes();
 	}
 
-	public List<RevisionEntry> getRevisions() {
-		return revisions;
+	/**
+	 * Reads the creation date (in epoch seconds) of the given revision
+	 * (without creating a view of a packed revision).
+	 */
+	private int getCreatedAtSeconds(int index) {
+		if (revisions instanceof PackedRevisionList) {
+			return ((PackedRevisionList) revisions).getCreatedAtSeconds(index);
+		}
+
+		return revisions.get(index).getCreatedAtSeconds();
 	}
 
-	public boolean isInRevisions() {
-		return inRevisions;
+	/**
+	 * Discards the cached scheduling state, so that it will be computed from
+	 * the whole history on the next query. Has to be called after modifying
+	 * any revision other than the last one (or after changing the scheduling
+	 * parameters).
+	 */
+	public void recomputeSchedule() {
+		scheduledRevisions = null;
 	}
 
-	public boolean isReviseNow(DateTime dueDate) {
+	/**
+	 * Appends a revision to the history.
+	 * 
+	 * @param revision
+	 *            revision to append (the newest one)
+	 * @return the revision as stored in the history (a view if the history is
+	 *         a {@link PackedRevisionList})
+	 */
+	public RevisionEntry addRevision(RevisionEntry revision) {
+		revisions.add(revision);
+		return revisions.get(revisions.size() - 1);
+	}
 
-		if (!isInRevisions()) {
-			return false;
+	/**
+	 * Returns the day on which the phrase becomes due for revision (as
+	 * {@link #isReviseNow(DateTime)} decides). For a revision which is still
+	 * to be continued (made today), this is the day of the revision; one
+	 * abandoned on an earlier day is scheduled like a finished one. Thus the
+	 * date stored for a phrase revised today may only be earlier than the
+	 * one computed later on.
+	 * 
+	 * @return start of the day of the next revision
+	 */
+	public DateTime getNextRevisionDate() {
+		if (revisions.isEmpty()) {
+			return new DateTime(0L);
 		}
 
-		if (revisions.isEmpty()) {
-			return true;
+		return DBUtils.getLocalDateFromEpochDay(getNextRevisionDay())
+				.toDateTimeAtStartOfDay();
+	}
+
+	/**
+	 * Returns the local epoch day (see {@link Clock#getToday()}) of
+	 * {@link #getNextRevisionDate()}.
+	 */
+	public int getNextRevisionDay() {
+		int lastIndex = revisions.size() - 1;
+
+		if (lastIndex < 0) {
+			return DBUtils.getEpochDayFromMillis(0L);
 		}
 
-		RevisionEntry lastRevision = revisions.get(revisions.size() - 1);
-		if (lastRevision.isToContinue()) {
-			return true;
+		int revisionDay = DBUtils
+				.getEpochDayFromInt(getCreatedAtSeconds(lastIndex));
+		if (getMistakes(lastIndex) < 0
+				&& revisionDay >= Clock.getDefault().getToday()) {
+			// To be continued.
+			return revisionDay;
 		}
 
+		return getScheduledRevisionDay(lastIndex);
+	}
+
+	/**
+	 * Returns the epoch day of the revision following the given (last) one.
+	 */
+	private int getScheduledRevisionDay(int lastIndex) {
+		int createdAtSeconds = getCreatedAtSeconds(lastIndex);
 		int freq = getRevisionFrequency();
 
 		// Modify frequency to prevent stacking of revisions made on the same
 		// day.
-		freq *= (1.0 - COUNTER_STACKING_FACTOR) + Math.random()
+		freq *= (1.0 - COUNTER_STACKING_FACTOR)
+				+ getStackingJitter(id, createdAtSeconds * 1000L)
 				* (COUNTER_STACKING_FACTOR / 2.0);
 		freq = Math.max(freq, MIN_REVISION_INTERVAL);
 		freq = Math.min(freq, MAX_REVISION_INTERVAL);
 
-		DateTime nextRevisionDate = lastRevision.getCreatedAt().plusDays(freq)
-				.withTimeAtStartOfDay();
+		return DBUtils.getEpochDayFromInt(createdAtSeconds) + freq;
+	}
+
+	/**
+	 * Returns a pseudo-random number from [0, 1) determined by the jitter's
+	 * seed, the phrase and the date of its last revision.
+	 * 
+	 * @param phraseId
+	 *            phrase's ID
+	 * @param revisionMillis
+	 *            date of the last revision
+	 */
+	static double getStackingJitter(long phraseId, long revisionMillis) {
+		// SplitMix64 finalizer over the combined inputs.
+		long h = JITTER_SEED + phraseId * 0x9E3779B97F4A7C15L
+				+ (revisionMillis / 1000L) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 31);
+
+		return (h >>> 11) * 0x1.0p-53;
+	}
+
+	public List<RevisionEntry> getRevisions() {
+		return revisions;
+	}
+
+	public boolean isInRevisions() {
+		return inRevisions;
+	}
 
-		return !nextRevisionDate.isAfter(dueDate);
+	public boolean isReviseNow(DateTime dueDate) {
+		return isReviseNow(DBUtils.getEpochDayFromMillis(dueDate.getMillis()),
+				Clock.getDefault().getToday());
+	}
+
+	/**
+	 * Checks whether the phrase is due for revision on the given day, without
+	 * creating any objects (for scans of many phrases, which compute the days
+	 * once).
+	 * 
+	 * @param dueDay
+	 *            local epoch day of the due date
+	 * @param today
+	 *            current local epoch day (see {@link Clock#getToday()})
+	 */
+	public boolean isReviseNow(int dueDay, int today) {
+
+		if (!isInRevisions()) {
+			return false;
+		}
+
+		int lastIndex = revisions.size() - 1;
+		if (lastIndex < 0) {
+			return true;
+		}
+
+		int createdAtSeconds = getCreatedAtSeconds(lastIndex);
+		if (getMistakes(lastIndex) < 0
+				&& DBUtils.getEpochDayFromInt(createdAtSeconds) >= today) {
+			// To be continued.
+			return true;
+		}
+
+		return getScheduledRevisionDay(lastIndex) <= dueDay;
 	}
 
 	public void setCreatedAt(DateTime createdAt) {
@@ -224,4 +385,65 @@ public class PhraseEntry {
 		return sb.toString();
 	}
 
+	/**
+	 * State of the revision frequency computation after a number of
+	 * consecutive revisions.
+	 */
+	private static final class ScheduleState {
+		private int frequency;
+		private int correctStreak;
+		private boolean isInitialStreak;
+
+		ScheduleState() {
+			reset();
+		}
+
+		void reset() {
+			frequency = MIN_REVISION_INTERVAL;
+			correctStreak = 0;
+			isInitialStreak = false;
+		}
+
+		void apply(int mistakes) {
+			if (mistakes == 0) {
+				if (isInitialStreak) {
+					frequency += FREQUENCY_DECAY;
+				}
+
+				correctStreak++;
+
+				if (!isInitialStreak && correctStreak == MIN_CORRECT_STREAK) {
+					isInitialStreak = true;
+//					correctStreak = 0; // FIXME: bez sensu tu zerowac, skoro potem mnozymy to i odejmujemy od freq!
+				}
+			} else {
+				frequency = getFrequencyAfter(mistakes);
+				correctStreak = 0;
+			}
+		}
+
+		/**
+		 * Returns the frequency after a revision with the given number of
+		 * mistakes without modifying the state.
+		 */
+		int getFrequencyAfter(int mistakes) {
+			int freq = frequency;
+
+			if (!isInitialStreak) {
+				return freq;
+			}
+
+			if (mistakes == 0) {
+				freq += FREQUENCY_DECAY;
+			} else {
+				freq -= correctStreak * FREQUENCY_DECAY * MISTAKE_MULTIPLIER;
+
+				// clamp
+				freq = Math.min(freq, MAX_REVISION_INTERVAL);
+				freq = Math.max(freq, MIN_REVISION_INTERVAL);
+			}
+
+			return freq;
+		}
+	}
 }
@@ -2,6 +2,9 @@ package pkleczek.profiwan.model;
 
 import org.joda.time.DateTime;
 
+import pkleczek.profiwan.utils.Clock;
+import pkleczek.profiwan.utils.DBUtils;
+
 /**
  * The <code>RevisionEntry</code> class stores all information about a revision
  * relevant for generation of further revisions.
@@ -20,6 +23,12 @@ public class RevisionEntry {
 	 */
 	private int mistakes;
 
+	/**
+	 * How many answers during the given revision were accepted as almost
+	 * correct (with typos).
+	 */
+	private int typos;
+
 	public DateTime getCreatedAt() {
 		return createdAt;
 	}
@@ -32,8 +41,30 @@ public class RevisionEntry {
 		return mistakes;
 	}
 
+	public int getTypos() {
+		return typos;
+	}
+
+	/**
+	 * @return creation date (seconds since epoch)
+	 */
+	public int getCreatedAtSeconds() {
+		return DBUtils.getIntFromDateTime(getCreatedAt());
+	}
+
 	public boolean isToContinue() {
-		return (createdAt.isAfter(DateTime.now().withTimeAtStartOfDay()) && mistakes < 0);
+		return isToContinue(Clock.getDefault().getToday());
+	}
+
+	/**
+	 * @param today
+	 *            current local epoch day (see {@link Clock#getToday()})
+	 * @return <code>true</code> if the revision was made today and has not
+	 *         been finished (answered correctly)
+	 */
+	public boolean isToContinue(int today) {
+		return getMistakes() < 0
+				&& DBUtils.getEpochDayFromInt(getCreatedAtSeconds()) >= today;
 	}
 
 	public void setCreatedAt(DateTime date) {
@@ -48,18 +79,26 @@ public class RevisionEntry {
 		this.mistakes = mistakes;
 	}
 	
+	public void setTypos(int typos) {
+		this.typos = typos;
+	}
+
 	public void nextMistake() {
-		mistakes--;
+		setMistakes(getMistakes() - 1);
 	}
 	
+	public void nextTypo() {
+		setTypos(getTypos() + 1);
+	}
+
 	public void enteredCorrectly() {
-		mistakes = Math.abs(mistakes);
+		setMistakes(Math.abs(getMistakes()));
 	}
 
 	@Override
 	public String toString() {
-		return String.format("%s [%d]\n", createdAt.toString(), //$NON-NLS-1$
-				mistakes);
+		return String.format("%s [%d]\n", getCreatedAt().toString(), //$NON-NLS-1$
+				getMistakes());
 	}
 
 }
@@ -0,0 +1,353 @@
+package pkleczek.profiwan.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.utils.DatabaseHelper;
+import pkleczek.profiwan.utils.PhraseCursor;
+
+/**
+ * The <code>RevisionScheduler</code> class keeps all phrases in revision in a
+ * binary min-heap ordered by their next revision date (see
+ * {@link PhraseEntry#getNextRevisionDate()}), so that due phrases can be found
+ * without evaluating the whole dictionary.
+ * <p>
+ * Keys are computed when a phrase is added or updated, thus
+ * {@link #update(PhraseEntry)} has to be called whenever a phrase's revisions
+ * change (<code>RevisionsSession</code> does it for the scheduler it was
+ * created with).
+ *
+ * @author Pawel
+ *
+ */
+public class RevisionScheduler {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private PhraseEntry[] heap = new PhraseEntry[DEFAULT_CAPACITY];
+
+	/**
+	 * Next revision dates (in milliseconds) of phrases in the heap.
+	 */
+	private long[] keys = new long[DEFAULT_CAPACITY];
+
+	private int size = 0;
+
+	/**
+	 * Maps phrase's ID on its index in the heap.
+	 */
+	private final Map<Long, Integer> positions = new HashMap<Long, Integer>();
+
+	public RevisionScheduler() {
+	}
+
+	public RevisionScheduler(Iterable<PhraseEntry> phrases) {
+		for (PhraseEntry pe : phrases) {
+			if (pe.isInRevisions()) {
+				append(pe);
+			}
+		}
+
+		// Floyd's heap construction.
+		for (int i = size / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	/**
+	 * Creates a scheduler for all phrases in revision from the dictionary.
+	 */
+	public static RevisionScheduler load(DatabaseHelper dbHelper) {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		PhraseCursor cursor = dbHelper.openDictionary();
+
+		try {
+			while (cursor.hasNext()) {
+				PhraseEntry pe = cursor.next();
+				if (pe.isInRevisions()) {
+					phrases.add(pe);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return new RevisionScheduler(phrases);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(long phraseId) {
+		return positions.containsKey(phraseId);
+	}
+
+	/**
+	 * Adds the phrase, or recomputes its position after its revisions have
+	 * changed. Phrases which are no longer in revision are removed.
+	 *
+	 * @param phrase
+	 *            phrase to (re)schedule
+	 */
+	public void update(PhraseEntry phrase) {
+		Integer position = positions.get(phrase.getId());
+
+		if (!phrase.isInRevisions()) {
+			if (position != null) {
+				removeAt(position);
+			}
+			return;
+		}
+
+		if (position == null) {
+			append(phrase);
+			siftUp(size - 1);
+			return;
+		}
+
+		int i = position;
+		long oldKey = keys[i];
+
+		heap[i] = phrase;
+		keys[i] = getKey(phrase);
+
+		if (keys[i] < oldKey) {
+			siftUp(i);
+		} else {
+			siftDown(i);
+		}
+	}
+
+	/**
+	 * Removes the phrase from the scheduler.
+	 *
+	 * @return <code>true</code> if the phrase was scheduled
+	 */
+	public boolean remove(long phraseId) {
+		Integer position = positions.get(phraseId);
+
+		if (position == null) {
+			return false;
+		}
+
+		removeAt(position);
+		return true;
+	}
+
+	/**
+	 * @return phrase with the earliest next revision date, or
+	 *         <code>null</code> if there are no phrases
+	 */
+	public PhraseEntry peek() {
+		return size == 0 ? null : heap[0];
+	}
+
+	/**
+	 * @return the earliest next revision date, or <code>null</code> if there
+	 *         are no phrases
+	 */
+	public DateTime getNextRevisionDate() {
+		return size == 0 ? null : new DateTime(keys[0]);
+	}
+
+	/**
+	 * Returns phrases whose next revision date is not after the given date
+	 * (in no particular order). Runs in O(k) for k returned phrases.
+	 */
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		List<PhraseEntry> due = new ArrayList<PhraseEntry>();
+		collectDue(0, dueDate.getMillis(), due);
+
+		return due;
+	}
+
+	/**
+	 * Returns the number of phrases whose next revision date is not after the
+	 * given date.
+	 */
+	public int countDue(DateTime dueDate) {
+		return countDue(0, dueDate.getMillis());
+	}
+
+	/**
+	 * Counts phrases becoming due on each of the days. Runs in O(k) for k
+	 * phrases due till the last day.
+	 */
+	public DueForecast getDueForecast(LocalDate start, int days) {
+		DueForecast forecast = new DueForecast(start, days);
+		collectForecast(0, start.plusDays(days).toDateTimeAtStartOfDay()
+				.getMillis(), forecast);
+
+		return forecast;
+	}
+
+	/**
+	 * Returns (at most) <code>n</code> phrases with the earliest next revision
+	 * dates, ordered by the date. Runs in O(n log n) regardless of the
+	 * scheduler's size.
+	 */
+	public List<PhraseEntry> getNextDue(int n) {
+		List<PhraseEntry> next = new ArrayList<PhraseEntry>(Math.min(n, size));
+
+		if (n <= 0 || size == 0) {
+			return next;
+		}
+
+		// Best-first traversal of the heap.
+		PriorityQueue<Integer> frontier = new PriorityQueue<Integer>(
+				Math.min(n, size) + 1, new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						long ka = keys[a];
+						long kb = keys[b];
+						return ka < kb ? -1 : (ka == kb ? 0 : 1);
+					}
+				});
+		frontier.add(0);
+
+		while (next.size() < n && !frontier.isEmpty()) {
+			int i = frontier.poll();
+			next.add(heap[i]);
+
+			int child = 2 * i + 1;
+			if (child < size) {
+				frontier.add(child);
+			}
+			if (child + 1 < size) {
+				frontier.add(child + 1);
+			}
+		}
+
+		return next;
+	}
+
+	private static long getKey(PhraseEntry phrase) {
+		return phrase.getNextRevisionDate().getMillis();
+	}
+
+	private void collectDue(int i, long dueMillis, List<PhraseEntry> due) {
+		if (i >= size || keys[i] > dueMillis) {
+			return;
+		}
+
+		due.add(heap[i]);
+		collectDue(2 * i + 1, dueMillis, due);
+		collectDue(2 * i + 2, dueMillis, due);
+	}
+
+	private void collectForecast(int i, long endMillis, DueForecast forecast) {
+		if (i >= size || keys[i] >= endMillis) {
+			return;
+		}
+
+		forecast.add(new DateTime(keys[i]), 1);
+		collectForecast(2 * i + 1, endMillis, forecast);
+		collectForecast(2 * i + 2, endMillis, forecast);
+	}
+
+	private int countDue(int i, long dueMillis) {
+		if (i >= size || keys[i] > dueMillis) {
+			return 0;
+		}
+
+		return 1 + countDue(2 * i + 1, dueMillis)
+				+ countDue(2 * i + 2, dueMillis);
+	}
+
+	private void append(PhraseEntry phrase) {
+		if (size == heap.length) {
+			int newCapacity = heap.length * 2;
+			heap = Arrays.copyOf(heap, newCapacity);
+			keys = Arrays.copyOf(keys, newCapacity);
+		}
+
+		heap[size] = phrase;
+		keys[size] = getKey(phrase);
+		positions.put(phrase.getId(), size);
+		size++;
+	}
+
+	private void removeAt(int i) {
+		positions.remove(heap[i].getId());
+		size--;
+
+		if (i == size) {
+			heap[size] = null;
+			return;
+		}
+
+		long removedKey = keys[i];
+		move(size, i);
+		heap[size] = null;
+
+		if (keys[i] < removedKey) {
+			siftUp(i);
+		} else {
+			siftDown(i);
+		}
+	}
+
+	private void siftUp(int i) {
+		PhraseEntry phrase = heap[i];
+		long key = keys[i];
+
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (keys[parent] <= key) {
+				break;
+			}
+
+			move(parent, i);
+			i = parent;
+		}
+
+		place(phrase, key, i);
+	}
+
+	private void siftDown(int i) {
+		PhraseEntry phrase = heap[i];
+		long key = keys[i];
+
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+
+			if (child + 1 < size && keys[child + 1] < keys[child]) {
+				child++;
+			}
+
+			if (key <= keys[child]) {
+				break;
+			}
+
+			move(child, i);
+			i = child;
+		}
+
+		place(phrase, key, i);
+	}
+
+	private void move(int from, int to) {
+		place(heap[from], keys[from], to);
+	}
+
+	private void place(PhraseEntry phrase, long key, int i) {
+		heap[i] = phrase;
+		keys[i] = key;
+		positions.put(phrase.getId(), i);
+	}
+}
@@ -1,19 +1,33 @@
 package pkleczek.profiwan.model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Flushable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.joda.time.DateTime;
 
+import pkleczek.profiwan.utils.AnswerMatcher;
+import pkleczek.profiwan.utils.AnswerMatcher.PreparedAnswer;
+import pkleczek.profiwan.utils.Clock;
+import pkleczek.profiwan.utils.DBUtils;
 import pkleczek.profiwan.utils.DatabaseHelper;
+import pkleczek.profiwan.utils.Metrics;
+import pkleczek.profiwan.utils.PhraseCursor;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 
 public class RevisionsSession {
 
@@ -21,9 +35,43 @@ public class RevisionsSession {
 	private static final String LOG_TAG = RevisionsSession.class.getName();
 
 	/**
-	 * List of phrases pending for revision.
+	 * Minimum number of phrases evaluated by a single task in the parallel
+	 * pending phrases' selection.
 	 */
-	private LinkedList<PhraseEntry> pendingPhrases = new LinkedList<PhraseEntry>();
+	private static final int MIN_PARALLEL_CHUNK_SIZE = 4096;
+
+	/**
+	 * Number of tasks per processor in the parallel pending phrases'
+	 * selection (to balance uneven chunks).
+	 */
+	private static final int PARALLEL_CHUNKS_PER_PROCESSOR = 4;
+
+	/**
+	 * Version of the format written by {@link #writeSnapshot(DataOutput)}.
+	 */
+	private static final int SNAPSHOT_VERSION = 2;
+
+	/**
+	 * Timer of creating (or resuming) a session.
+	 */
+	public static final String METRIC_INIT = "session.init"; //$NON-NLS-1$
+
+	/**
+	 * Gauge of the number of phrases pending for revision.
+	 */
+	public static final String METRIC_PENDING = "session.pending"; //$NON-NLS-1$
+
+	/**
+	 * Counter of graded answers.
+	 */
+	public static final String METRIC_ANSWERS = "session.answers"; //$NON-NLS-1$
+
+	private static volatile Metrics metrics = Metrics.NONE;
+
+	/**
+	 * List of phrases pending for revision (revised in a cycle).
+	 */
+	private List<PhraseEntry> pendingPhrases = new ArrayList<PhraseEntry>();
 
 	/**
 	 * Maps phrase's ID on a corresponding revision entry.
@@ -31,15 +79,24 @@ public class RevisionsSession {
 	private Map<Long, RevisionEntry> revisionEntries = new HashMap<Long, RevisionEntry>();
 
 	/**
-	 * Cyclic iterator over pending phrases.
+	 * Index of the current phrase in the pending phrases' list (-1 before the
+	 * first revision).
 	 */
-	private Iterator<PhraseEntry> pendingRevisionsIterator;
+	private int pendingPosition = -1;
 
 	/**
 	 * Currently revised phrase.
 	 */
 	private PhraseEntry currentPhrase = null;
 
+	/**
+	 * Prepared answer for the current phrase (<code>null</code> if not
+	 * prepared yet).
+	 */
+	private PreparedAnswer currentAnswer = null;
+
+	private AnswerMatcher answerMatcher = new AnswerMatcher();
+
 	/**
 	 * Total number of revised phrases.
 	 */
@@ -57,36 +114,173 @@ public class RevisionsSession {
 
 	private DatabaseHelper dbHelper;
 
+	/**
+	 * Scheduler to keep up to date with revisions' results (may be
+	 * <code>null</code>).
+	 */
+	private RevisionScheduler scheduler = null;
+
 	public RevisionsSession(DatabaseHelper dbHelper) {
 		this.dbHelper = dbHelper;
 
 		initialize();
 	}
 
+	/**
+	 * Creates a session for phrases due according to the scheduler (instead
+	 * of querying the database) and updates the scheduler as phrases are
+	 * revised.
+	 */
+	public RevisionsSession(DatabaseHelper dbHelper, RevisionScheduler scheduler) {
+		this.dbHelper = dbHelper;
+		this.scheduler = scheduler;
+
+		initialize();
+	}
+
+	/**
+	 * Resumes a session from a snapshot.
+	 */
+	private RevisionsSession(DatabaseHelper dbHelper,
+			RevisionScheduler scheduler, DataInput snapshot) throws IOException {
+		this.dbHelper = dbHelper;
+		this.scheduler = scheduler;
+
+		long startNanos = System.nanoTime();
+		restore(snapshot);
+		metrics.time(METRIC_INIT, System.nanoTime() - startNanos);
+		metrics.gauge(METRIC_PENDING, pendingPhrases.size());
+	}
+
+	/**
+	 * Sets metrics which all sessions report to (see the
+	 * <code>METRIC_*</code> constants).
+	 */
+	public static void setMetrics(Metrics metrics) {
+		RevisionsSession.metrics = metrics != null ? metrics : Metrics.NONE;
+	}
+
 	private void initialize() {
-		DateTime todayMidnight = DateTime.now().withTimeAtStartOfDay();
-		pendingPhrases.addAll(getListOfPendingPhrases(dbHelper, todayMidnight));
+		long startNanos = System.nanoTime();
+		Clock clock = Clock.getDefault();
+		DateTime todayMidnight = clock.now().withTimeAtStartOfDay();
+		int today = clock.getToday();
+
+		if (scheduler != null) {
+			for (PhraseEntry pe : scheduler.getDuePhrases(todayMidnight)) {
+				if (pe.isReviseNow(today, today)) {
+					pendingPhrases.add(pe);
+				}
+			}
+		} else {
+			pendingPhrases.addAll(getListOfPendingPhrases(dbHelper, todayMidnight));
+		}
 		
 		setupEnvironmentVariables();
 
 		if (hasRevisions()) {
 			nextRevision();
 		}
+
+		metrics.time(METRIC_INIT, System.nanoTime() - startNanos);
+		metrics.gauge(METRIC_PENDING, pendingPhrases.size());
 	}
 
 	public static List<PhraseEntry> getListOfPendingPhrases(DatabaseHelper dbHelper, DateTime dueDate) {
-		List<PhraseEntry> dictionary = dbHelper.getDictionary();
 		List<PhraseEntry> pending = new ArrayList<PhraseEntry>();
-
-		for (PhraseEntry pe : dictionary) {
-			if (pe.isReviseNow(dueDate)) {
-				pending.add(pe);
+		int dueDay = DBUtils.getEpochDayFromMillis(dueDate.getMillis());
+		int today = Clock.getDefault().getToday();
+		PhraseCursor candidates = dbHelper.openDuePhrases(dueDate);
+
+		try {
+			while (candidates.hasNext()) {
+				PhraseEntry pe = candidates.next();
+				if (pe.isReviseNow(dueDay, today)) {
+					pending.add(pe);
+				}
 			}
+		} finally {
+			candidates.close();
 		}
 
 		return pending;
 	}	
 	
+	/**
+	 * Selects pending phrases from a (large) list evaluating its parts
+	 * concurrently. Each phrase is evaluated by a single task, as its cached
+	 * scheduling state is not thread-safe.
+	 * 
+	 * @param phrases
+	 *            phrases to evaluate
+	 * @param dueDate
+	 *            due date
+	 * @param executor
+	 *            executor to evaluate the parts
+	 * @return pending phrases (in the order of <code>phrases</code>)
+	 */
+	public static List<PhraseEntry> getListOfPendingPhrases(
+			List<PhraseEntry> phrases, DateTime dueDate,
+			ExecutorService executor) {
+		int chunks = Math.min(phrases.size() / MIN_PARALLEL_CHUNK_SIZE,
+				PARALLEL_CHUNKS_PER_PROCESSOR
+						* Runtime.getRuntime().availableProcessors());
+
+		final int dueDay = DBUtils.getEpochDayFromMillis(dueDate.getMillis());
+		final int today = Clock.getDefault().getToday();
+
+		if (chunks <= 1) {
+			return selectPendingPhrases(phrases, dueDay, today);
+		}
+
+		List<Future<List<PhraseEntry>>> results = new ArrayList<Future<List<PhraseEntry>>>(
+				chunks);
+
+		for (int i = 0; i < chunks; i++) {
+			final List<PhraseEntry> chunk = phrases.subList(
+					(int) ((long) phrases.size() * i / chunks),
+					(int) ((long) phrases.size() * (i + 1) / chunks));
+
+			results.add(executor.submit(new Callable<List<PhraseEntry>>() {
+				public List<PhraseEntry> call() {
+					return selectPendingPhrases(chunk, dueDay, today);
+				}
+			}));
+		}
+
+		List<PhraseEntry> pending = new ArrayList<PhraseEntry>();
+
+		try {
+			for (Future<List<PhraseEntry>> result : results) {
+				pending.addAll(result.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Throwables.propagate(e);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		} finally {
+			for (Future<List<PhraseEntry>> result : results) {
+				result.cancel(true);
+			}
+		}
+
+		return pending;
+	}
+
+	private static List<PhraseEntry> selectPendingPhrases(
+			List<PhraseEntry> phrases, int dueDay, int today) {
+		List<PhraseEntry> pending = new ArrayList<PhraseEntry>();
+
+		for (PhraseEntry pe : phrases) {
+			if (pe.isReviseNow(dueDay, today)) {
+				pending.add(pe);
+			}
+		}
+
+		return pending;
+	}
+
 	private void setupEnvironmentVariables() {
 		
 		for (PhraseEntry pe : pendingPhrases) {
@@ -94,20 +288,21 @@ public class RevisionsSession {
 		}
 
 		Collections.shuffle(pendingPhrases);
-		pendingRevisionsIterator = Iterators.cycle(pendingPhrases);
+		pendingPosition = -1;
 
 		wordsNumber = pendingPhrases.size();
 	}
 
 	private RevisionEntry prepareRevisionEntry(PhraseEntry phrase) {
+		Clock clock = Clock.getDefault();
 		RevisionEntry newRevision = new RevisionEntry();
-		newRevision.setCreatedAt(DateTime.now());
+		newRevision.setCreatedAt(clock.now());
 
 		RevisionEntry lastRevision = Iterables.getLast(phrase.getRevisions(),
 				null);
 
 		boolean isToBeContinued = lastRevision != null
-				&& lastRevision.isToContinue();
+				&& lastRevision.isToContinue(clock.getToday());
 
 		return isToBeContinued ? lastRevision : newRevision;
 	}
@@ -116,29 +311,113 @@ public class RevisionsSession {
 		return !pendingPhrases.isEmpty();
 	}
 
+	/**
+	 * @return <code>true</code> if the current phrase is still to be answered
+	 *         (there is none if no phrases are due, nor after the last one
+	 *         has been accepted)
+	 */
+	public boolean hasCurrentRevision() {
+		return currentPhrase != null
+				&& revisionEntries.containsKey(currentPhrase.getId());
+	}
+
+	private void checkCurrentRevision() {
+		if (!hasCurrentRevision()) {
+			throw new IllegalStateException("no phrase to answer"); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Checks the input against the current phrase (see
+	 * {@link #setAnswerMatcher(AnswerMatcher)}). The answer is prepared once
+	 * per phrase, so the check can be repeated as the input is typed.
+	 */
 	public boolean isEnteredCorrectly(CharSequence input) {
-		return currentPhrase.getLangBText().equals(input);
+		return getCurrentAnswer().matches(input);
+	}
+
+	public AnswerMatcher getAnswerMatcher() {
+		return answerMatcher;
 	}
 
+	/**
+	 * Sets the matcher which defines correct (and almost correct) answers (by
+	 * default, answers equal to the phrases' text).
+	 */
+	public void setAnswerMatcher(AnswerMatcher answerMatcher) {
+		this.answerMatcher = answerMatcher;
+		currentAnswer = null;
+	}
+
+	/**
+	 * Grades the input against the current phrase without processing it
+	 * (e.g. as it is being typed).
+	 * 
+	 * @see #isEnteredCorrectly(CharSequence)
+	 */
+	public Grade grade(CharSequence input) {
+		return getCurrentAnswer().grade(input);
+	}
+
+	private PreparedAnswer getCurrentAnswer() {
+		if (currentAnswer == null) {
+			currentAnswer = answerMatcher.prepare(currentPhrase);
+		}
+
+		return currentAnswer;
+	}
+
+	/**
+	 * Processes the typed answer (see {@link #gradeTypedWord(String)}).
+	 * 
+	 * @return <code>true</code> if the answer was accepted
+	 */
 	public boolean processTypedWord(String input) {
-		boolean enteredCorrectly = isEnteredCorrectly(input);
+		return gradeTypedWord(input).isAccepted();
+	}
+
+	/**
+	 * Processes the typed answer: an accepted answer ends the current
+	 * phrase's revision (an almost correct one is recorded as a typo), a
+	 * wrong one is recorded as a mistake.
+	 * 
+	 * @return grade of the answer
+	 * @throws IllegalStateException
+	 *             if there is no phrase to answer (see
+	 *             {@link #hasCurrentRevision()})
+	 */
+	public Grade gradeTypedWord(String input) {
+		checkCurrentRevision();
+
+		Grade grade = grade(input);
+		metrics.count(METRIC_ANSWERS, 1L);
 
 		RevisionEntry re = revisionEntries.get(currentPhrase.getId());
 
 		// Revisions for the first time today.
 		if (re.getMistakes() == 0) {
+			re = currentPhrase.addRevision(re);
+			revisionEntries.put(currentPhrase.getId(), re);
+
 			dbHelper.createRevision(re, currentPhrase.getId());
 		}
 
-		if (enteredCorrectly) {
+		if (grade.isAccepted()) {
+			if (grade == Grade.ALMOST_CORRECT) {
+				re.nextTypo();
+			}
 			acceptRevision();
 		} else {
 			re.nextMistake();
+
+			if (scheduler != null) {
+				scheduler.update(currentPhrase);
+			}
 		}
 
 		dbHelper.updateRevision(re);
 
-		return enteredCorrectly;
+		return grade;
 	}
 
 	public PhraseEntry getCurrentPhrase() {
@@ -150,11 +429,23 @@ public class RevisionsSession {
 	 * input).
 	 */
 	public void acceptRevision() {
+		checkCurrentRevision();
+
 		RevisionEntry re = revisionEntries.get(currentPhrase.getId());
 		re.enteredCorrectly();
 
 		revisionEntries.remove(currentPhrase.getId());
-		pendingRevisionsIterator.remove();
+		pendingPhrases.remove(pendingPosition);
+		// The next phrase has moved into the current position.
+		pendingPosition--;
+		metrics.gauge(METRIC_PENDING, pendingPhrases.size());
+
+		// Stores the next revision date.
+		dbHelper.updatePhrase(currentPhrase);
+
+		if (scheduler != null) {
+			scheduler.update(currentPhrase);
+		}
 
 		correctWordsNumber++;
 	}
@@ -167,9 +458,24 @@ public class RevisionsSession {
 	 */
 	public void editPhrase(String newText) {
 		currentPhrase.setLangBText(newText);
+		currentAnswer = null;
 		dbHelper.updatePhrase(currentPhrase);
 	}
 
+	/**
+	 * Ends the session: flushes writes buffered by the database helper (if it
+	 * buffers any, see
+	 * {@link pkleczek.profiwan.utils.WriteBehindDatabaseHelper}).
+	 * 
+	 * @throws IOException
+	 *             if the buffered writes cannot be stored
+	 */
+	public void finish() throws IOException {
+		if (dbHelper instanceof Flushable) {
+			((Flushable) dbHelper).flush();
+		}
+	}
+
 	public int getWordsNumber() {
 		return wordsNumber;
 	}
@@ -194,8 +500,160 @@ public class RevisionsSession {
 			throw new AssertionError();
 		}
 
-		currentPhrase = pendingRevisionsIterator.next();
+		pendingPosition = (pendingPosition + 1) % pendingPhrases.size();
+		currentPhrase = pendingPhrases.get(pendingPosition);
+		currentAnswer = null;
 		revisionsNumber++;
 	}
 
+	/**
+	 * Writes the session's state (phrases' IDs, in-progress revisions,
+	 * position and counters; not the phrases themselves) so that it can be
+	 * resumed by {@link #resume(DataInput, DatabaseHelper)}. Writes buffered
+	 * by the database helper are flushed first (see {@link #finish()}), as the
+	 * snapshot refers to stored revisions by their IDs.
+	 * 
+	 * @param out
+	 *            output for the snapshot
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	public void writeSnapshot(DataOutput out) throws IOException {
+		finish();
+
+		out.writeInt(SNAPSHOT_VERSION);
+		out.writeInt(wordsNumber);
+		out.writeInt(correctWordsNumber);
+		out.writeInt(revisionsNumber);
+		out.writeInt(pendingPosition);
+		out.writeLong(currentPhrase == null ? 0L : currentPhrase.getId());
+
+		out.writeInt(pendingPhrases.size());
+		for (PhraseEntry pe : pendingPhrases) {
+			RevisionEntry re = revisionEntries.get(pe.getId());
+
+			out.writeLong(pe.getId());
+			out.writeLong(re.getId());
+			out.writeInt(DBUtils.getIntFromDateTime(re.getCreatedAt()));
+			out.writeInt(re.getMistakes());
+			out.writeInt(re.getTypos());
+		}
+	}
+
+	/**
+	 * Resumes a session written by {@link #writeSnapshot(DataOutput)},
+	 * loading its phrases from the database. Phrases deleted in the meantime
+	 * are skipped.
+	 * 
+	 * @param in
+	 *            input with the snapshot
+	 * @param dbHelper
+	 *            database helper
+	 * @return the resumed session
+	 * @throws IOException
+	 *             if the snapshot cannot be read
+	 */
+	public static RevisionsSession resume(DataInput in, DatabaseHelper dbHelper)
+			throws IOException {
+		return new RevisionsSession(dbHelper, null, in);
+	}
+
+	/**
+	 * Resumes a session (see {@link #resume(DataInput, DatabaseHelper)})
+	 * which keeps the scheduler up to date.
+	 */
+	public static RevisionsSession resume(DataInput in,
+			DatabaseHelper dbHelper, RevisionScheduler scheduler)
+			throws IOException {
+		return new RevisionsSession(dbHelper, scheduler, in);
+	}
+
+	private void restore(DataInput in) throws IOException {
+		int version = in.readInt();
+		// Version 1 had no typos.
+		if (version != SNAPSHOT_VERSION && version != 1) {
+			throw new IOException("unsupported snapshot version: " + version); //$NON-NLS-1$
+		}
+
+		wordsNumber = in.readInt();
+		correctWordsNumber = in.readInt();
+		revisionsNumber = in.readInt();
+		int position = in.readInt();
+		long currentId = in.readLong();
+
+		int size = in.readInt();
+		long[] phraseIds = new long[size];
+		long[] revisionIds = new long[size];
+		int[] createdAt = new int[size];
+		int[] mistakes = new int[size];
+		int[] typos = new int[size];
+
+		Set<Long> ids = new HashSet<Long>();
+		for (int i = 0; i < size; i++) {
+			phraseIds[i] = in.readLong();
+			revisionIds[i] = in.readLong();
+			createdAt[i] = in.readInt();
+			mistakes[i] = in.readInt();
+			typos[i] = version > 1 ? in.readInt() : 0;
+
+			ids.add(phraseIds[i]);
+		}
+		if (currentId != 0L) {
+			ids.add(currentId);
+		}
+
+		Map<Long, PhraseEntry> phrases = new HashMap<Long, PhraseEntry>();
+		for (PhraseEntry pe : dbHelper.getPhrases(ids)) {
+			phrases.put(pe.getId(), pe);
+		}
+
+		for (int i = 0; i < size; i++) {
+			PhraseEntry pe = phrases.get(phraseIds[i]);
+
+			if (pe == null) {
+				// Deleted: as if it had been accepted.
+				if (i <= position) {
+					position--;
+				}
+				continue;
+			}
+
+			pendingPhrases.add(pe);
+			revisionEntries.put(pe.getId(), restoreRevisionEntry(pe,
+					revisionIds[i], createdAt[i], mistakes[i], typos[i]));
+		}
+
+		pendingPosition = position;
+		currentPhrase = phrases.get(currentId);
+
+		if (currentPhrase == null && hasRevisions()) {
+			nextRevision();
+		}
+	}
+
+	/**
+	 * Returns the phrase's revision with the given ID (as in the phrase's
+	 * revisions' list), or a new revision if it has not been stored.
+	 */
+	private static RevisionEntry restoreRevisionEntry(PhraseEntry phrase,
+			long revisionId, int createdAt, int mistakes, int typos) {
+		if (revisionId != 0L) {
+			List<RevisionEntry> revisions = phrase.getRevisions();
+
+			for (int i = revisions.size() - 1; i >= 0; i--) {
+				if (revisions.get(i).getId() == revisionId) {
+					return revisions.get(i);
+				}
+			}
+		}
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DBUtils.getDateTimeFromInt(createdAt));
+		// Revisions are stored on the first answer, so this one has none.
+		re.setMistakes(revisionId != 0L ? 0 : mistakes);
+		re.setTypos(revisionId != 0L ? 0 : typos);
+
+		return re;
+	}
+
 }
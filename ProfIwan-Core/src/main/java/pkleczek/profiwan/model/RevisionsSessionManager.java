@@ -0,0 +1,293 @@
+package pkleczek.profiwan.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code>RevisionsSessionManager</code> class hosts many concurrent
+ * revision sessions (e.g. one per learner), keyed by session ID.
+ * <p>
+ * A <code>RevisionsSession</code> itself is not thread-safe, thus it is only
+ * accessed through {@link #execute(String, SessionCallback)}, under a lock of
+ * its own. Sessions are looked up in a concurrent map, so operations on
+ * different sessions never wait for each other (except for the database
+ * helper the sessions share, if any).
+ * <p>
+ * Idle sessions can be evicted (see {@link #evictIdleSessions(long)}): only a
+ * compact snapshot of such a session is kept, and the session is resumed when
+ * it is used again.
+ *
+ * @author Pawel
+ *
+ */
+public class RevisionsSessionManager {
+
+	/**
+	 * Creates sessions on demand.
+	 */
+	public interface SessionFactory {
+
+		/**
+		 * Called (once per session, holding only the session's lock) when a
+		 * session is used for the first time.
+		 *
+		 * @param sessionId
+		 *            session's ID
+		 * @return new session
+		 */
+		RevisionsSession createSession(String sessionId);
+
+		/**
+		 * Called (as {@link #createSession(String)}) when an evicted session
+		 * is used again.
+		 *
+		 * @param sessionId
+		 *            session's ID
+		 * @param snapshot
+		 *            session's snapshot (see
+		 *            {@link RevisionsSession#writeSnapshot(java.io.DataOutput)}
+		 *            )
+		 * @return resumed session
+		 * @throws IOException
+		 *             if the snapshot cannot be read
+		 */
+		RevisionsSession resumeSession(String sessionId, DataInput snapshot)
+				throws IOException;
+	}
+
+	/**
+	 * Work to be done on a session.
+	 *
+	 * @param <T>
+	 *            type of the result
+	 */
+	public interface SessionCallback<T> {
+
+		/**
+		 * Called while holding the session's lock.
+		 */
+		T doInSession(RevisionsSession session);
+	}
+
+	private final SessionFactory factory;
+
+	private final ConcurrentMap<String, SessionHolder> sessions;
+
+	public RevisionsSessionManager(SessionFactory factory) {
+		this(factory, 16);
+	}
+
+	/**
+	 * @param concurrencyLevel
+	 *            estimated number of threads using the manager at once
+	 */
+	public RevisionsSessionManager(SessionFactory factory,
+			int concurrencyLevel) {
+		this.factory = factory;
+		this.sessions = new ConcurrentHashMap<String, SessionHolder>(16,
+				0.75f, concurrencyLevel);
+	}
+
+	/**
+	 * Runs the callback on the session with the given ID (created if there is
+	 * no such session). Calls for the same session are serialized, calls for
+	 * different sessions run concurrently.
+	 *
+	 * @return callback's result
+	 */
+	public <T> T execute(String sessionId, SessionCallback<T> callback) {
+		while (true) {
+			SessionHolder holder = getHolder(sessionId);
+
+			holder.lock.lock();
+			try {
+				if (holder.finished) {
+					// Finished meanwhile, a new one has to be started.
+					continue;
+				}
+
+				if (holder.session == null) {
+					holder.session = holder.snapshot == null ? factory
+							.createSession(sessionId) : resume(sessionId,
+							holder.snapshot);
+					holder.snapshot = null;
+				}
+				holder.lastAccess = System.currentTimeMillis();
+
+				return callback.doInSession(holder.session);
+			} finally {
+				holder.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Answers the current phrase of the session and proceeds to the next one
+	 * (if there is any left).
+	 *
+	 * @return <code>true</code> if the answer was correct (<code>false</code>
+	 *         if there was no phrase to answer)
+	 * @see RevisionsSession#processTypedWord(String)
+	 */
+	public boolean processTypedWord(String sessionId, final String input) {
+		return execute(sessionId, new SessionCallback<Boolean>() {
+			public Boolean doInSession(RevisionsSession session) {
+				if (!session.hasCurrentRevision()) {
+					return false;
+				}
+
+				boolean correct = session.processTypedWord(input);
+
+				if (session.hasRevisions()) {
+					session.nextRevision();
+				}
+
+				return correct;
+			}
+		});
+	}
+
+	/**
+	 * Finishes the session (see {@link RevisionsSession#finish()}) and removes
+	 * it from the manager.
+	 *
+	 * @return <code>false</code> if there was no such session
+	 * @throws IOException
+	 *             if the session's writes cannot be stored (it is removed
+	 *             anyway)
+	 */
+	public boolean finishSession(String sessionId) throws IOException {
+		SessionHolder holder = sessions.get(sessionId);
+
+		if (holder == null) {
+			return false;
+		}
+
+		holder.lock.lock();
+		try {
+			if (holder.finished) {
+				return false;
+			}
+
+			holder.finished = true;
+			sessions.remove(sessionId, holder);
+
+			if (holder.session != null) {
+				holder.session.finish();
+			}
+		} finally {
+			holder.lock.unlock();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replaces sessions not used for the given time with their snapshots.
+	 * Sessions in use are skipped.
+	 *
+	 * @param maxIdleMillis
+	 *            maximum idle time (in milliseconds)
+	 * @return number of evicted sessions
+	 */
+	public int evictIdleSessions(long maxIdleMillis) {
+		long idleSince = System.currentTimeMillis() - maxIdleMillis;
+		int evicted = 0;
+
+		for (SessionHolder holder : sessions.values()) {
+			if (holder.lastAccess > idleSince || !holder.lock.tryLock()) {
+				continue;
+			}
+
+			try {
+				if (holder.session == null || holder.finished
+						|| holder.lastAccess > idleSince) {
+					continue;
+				}
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				holder.session.writeSnapshot(new DataOutputStream(bytes));
+
+				holder.snapshot = bytes.toByteArray();
+				holder.session = null;
+				evicted++;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				holder.lock.unlock();
+			}
+		}
+
+		return evicted;
+	}
+
+	private RevisionsSession resume(String sessionId, byte[] snapshot) {
+		try {
+			return factory.resumeSession(sessionId, new DataInputStream(
+					new ByteArrayInputStream(snapshot)));
+		} catch (IOException e) {
+			// Starts anew rather than losing the session altogether.
+			e.printStackTrace();
+			return factory.createSession(sessionId);
+		}
+	}
+
+	public boolean contains(String sessionId) {
+		return sessions.containsKey(sessionId);
+	}
+
+	/**
+	 * @return number of hosted sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	private SessionHolder getHolder(String sessionId) {
+		SessionHolder holder = sessions.get(sessionId);
+
+		if (holder == null) {
+			SessionHolder created = new SessionHolder();
+			holder = sessions.putIfAbsent(sessionId, created);
+
+			if (holder == null) {
+				holder = created;
+			}
+		}
+
+		return holder;
+	}
+
+	/**
+	 * A session with its lock. The session is created lazily under the lock,
+	 * so that it is created only once and not inside the map.
+	 */
+	private static final class SessionHolder {
+
+		final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * The session (<code>null</code> if not created yet or evicted).
+		 */
+		RevisionsSession session = null;
+
+		/**
+		 * Snapshot of the evicted session.
+		 */
+		byte[] snapshot = null;
+
+		boolean finished = false;
+
+		/**
+		 * Time of the last use (read without the lock by the eviction).
+		 */
+		volatile long lastAccess = System.currentTimeMillis();
+	}
+}
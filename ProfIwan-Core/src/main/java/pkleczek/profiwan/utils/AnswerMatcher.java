@@ -0,0 +1,119 @@
+package pkleczek.profiwan.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import pkleczek.profiwan.model.Grade;
+import pkleczek.profiwan.model.PhraseEntry;
+
+/**
+ * The <code>AnswerMatcher</code> class checks typed answers (the phrase's
+ * second language text) using a {@link MatchPolicy} configured per language
+ * pair.
+ * 
+ * @author Pawel
+ * 
+ */
+public class AnswerMatcher {
+
+	private final MatchPolicy defaultPolicy;
+
+	private final ConcurrentMap<String, MatchPolicy> policies = new ConcurrentHashMap<String, MatchPolicy>();
+
+	public AnswerMatcher() {
+		this(MatchPolicy.EXACT);
+	}
+
+	/**
+	 * @param defaultPolicy
+	 *            policy for language pairs without a policy of their own
+	 */
+	public AnswerMatcher(MatchPolicy defaultPolicy) {
+		this.defaultPolicy = defaultPolicy;
+	}
+
+	public void setPolicy(String langA, String langB, MatchPolicy policy) {
+		policies.put(getKey(langA, langB), policy);
+	}
+
+	public MatchPolicy getPolicy(String langA, String langB) {
+		MatchPolicy policy = policies.get(getKey(langA, langB));
+		return policy != null ? policy : defaultPolicy;
+	}
+
+	/**
+	 * Prepares the phrase's answer to be matched (possibly many times, e.g.
+	 * as it is being typed).
+	 */
+	public PreparedAnswer prepare(PhraseEntry phrase) {
+		MatchPolicy policy = getPolicy(phrase.getLangA(), phrase.getLangB());
+		return new PreparedAnswer(policy, policy.normalize(phrase
+				.getLangBText()));
+	}
+
+	private static String getKey(String langA, String langB) {
+		return langA + '\u0000' + langB;
+	}
+
+	/**
+	 * An expected answer in its normalized form. Grading reuses a buffer of
+	 * the answer, so it is not thread-safe.
+	 */
+	public static final class PreparedAnswer {
+
+		private final MatchPolicy policy;
+
+		private final String normalized;
+
+		/**
+		 * Matcher of typos (<code>null</code> if typos are not accepted).
+		 */
+		private final BoundedEditDistance editDistance;
+
+		private final char[] buffer;
+
+		PreparedAnswer(MatchPolicy policy, String normalized) {
+			this.policy = policy;
+			this.normalized = normalized;
+
+			if (policy.getMaxTypos() > 0) {
+				editDistance = new BoundedEditDistance(normalized);
+				buffer = new char[normalized.length() + policy.getMaxTypos()];
+			} else {
+				editDistance = null;
+				buffer = null;
+			}
+		}
+
+		public MatchPolicy getPolicy() {
+			return policy;
+		}
+
+		public String getNormalized() {
+			return normalized;
+		}
+
+		public boolean matches(CharSequence input) {
+			return policy.matches(input, normalized);
+		}
+
+		/**
+		 * Grades the typed text: an answer which does not match, but differs
+		 * by at most {@link MatchPolicy#getMaxTypos()} edits (after
+		 * normalization) is almost correct.
+		 */
+		public Grade grade(CharSequence input) {
+			if (matches(input)) {
+				return Grade.CORRECT;
+			}
+
+			if (editDistance != null
+					&& policy.typos(input, editDistance, buffer) <= policy
+							.getMaxTypos()) {
+				return Grade.ALMOST_CORRECT;
+			}
+
+			return Grade.WRONG;
+		}
+	}
+}
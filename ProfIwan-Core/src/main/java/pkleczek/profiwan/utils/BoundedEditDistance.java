@@ -0,0 +1,219 @@
+package pkleczek.profiwan.utils;
+
+import java.util.Arrays;
+
+/**
+ * The <code>BoundedEditDistance</code> class computes the Levenshtein
+ * distance between a fixed pattern (e.g. the expected answer) and given
+ * texts, as long as it does not exceed a bound.
+ * <p>
+ * Patterns of up to 64 characters are matched with the bit-parallel algorithm
+ * of Myers (in the formulation of Hyyr&ouml;), processing a text character in
+ * a few word operations and without allocations. Longer patterns fall back to
+ * a dynamic programming restricted to the diagonal band of the bound.
+ *
+ * @author Pawel
+ *
+ */
+public final class BoundedEditDistance {
+
+	/**
+	 * Maximum length of a pattern matched bit-parallel.
+	 */
+	private static final int WORD_SIZE = 64;
+
+	private final String pattern;
+
+	/**
+	 * Open addressing table of the pattern's distinct characters (-1 marks
+	 * empty slots), <code>null</code> for long patterns.
+	 */
+	private final int[] alphabet;
+
+	/**
+	 * Bit masks of positions of the alphabet's characters in the pattern.
+	 */
+	private final long[] positions;
+
+	private final int hashShift;
+
+	public BoundedEditDistance(String pattern) {
+		this.pattern = pattern;
+
+		if (pattern.length() <= WORD_SIZE) {
+			// At most half full.
+			int bits = Math.max(3,
+					33 - Integer.numberOfLeadingZeros(pattern.length()));
+
+			alphabet = new int[1 << bits];
+			positions = new long[1 << bits];
+			hashShift = 32 - bits;
+			Arrays.fill(alphabet, -1);
+
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				int slot = slotOf(c);
+
+				alphabet[slot] = c;
+				positions[slot] |= 1L << i;
+			}
+		} else {
+			alphabet = null;
+			positions = null;
+			hashShift = 0;
+		}
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Computes the edit distance between the pattern and the text.
+	 *
+	 * @param text
+	 *            text
+	 * @param max
+	 *            bound of the distance
+	 * @return the distance, or <code>max + 1</code> if it exceeds the bound
+	 */
+	public int distance(CharSequence text, int max) {
+		char[] chars = new char[text.length()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = text.charAt(i);
+		}
+
+		return distance(chars, chars.length, max);
+	}
+
+	/**
+	 * Computes the edit distance between the pattern and the first
+	 * <code>length</code> characters of the text (without allocations for
+	 * patterns of up to 64 characters).
+	 *
+	 * @see #distance(CharSequence, int)
+	 */
+	public int distance(char[] text, int length, int max) {
+		int m = pattern.length();
+
+		if (Math.abs(m - length) > max) {
+			return max + 1;
+		}
+		if (m == 0) {
+			return length;
+		}
+
+		return alphabet != null ? distanceBitParallel(text, length, max)
+				: distanceBanded(text, length, max);
+	}
+
+	private int distanceBitParallel(char[] text, int length, int max) {
+		int m = pattern.length();
+		long last = 1L << (m - 1);
+
+		// Vertical deltas of the last column (+1 and -1), initially all +1.
+		long pv = -1L;
+		long mv = 0L;
+		int score = m;
+
+		for (int j = 0; j < length; j++) {
+			long eq = getPositions(text[j]);
+
+			long xv = eq | mv;
+			long xh = (((eq & pv) + pv) ^ pv) | eq;
+
+			long ph = mv | ~(xh | pv);
+			long mh = pv & xh;
+
+			if ((ph & last) != 0) {
+				score++;
+			} else if ((mh & last) != 0) {
+				score--;
+			}
+
+			// Distances in the first row grow with the text (global match).
+			ph = (ph << 1) | 1L;
+			mh = mh << 1;
+
+			pv = mh | ~(xv | ph);
+			mv = ph & xv;
+
+			// Each remaining character lowers the score at most by one.
+			if (score - (length - j - 1) > max) {
+				return max + 1;
+			}
+		}
+
+		return score <= max ? score : max + 1;
+	}
+
+	private long getPositions(char c) {
+		int slot = slotOf(c);
+		return alphabet[slot] == c ? positions[slot] : 0L;
+	}
+
+	/**
+	 * @return slot of the character in the alphabet's table, or the empty
+	 *         slot where it would be put
+	 */
+	private int slotOf(char c) {
+		int mask = alphabet.length - 1;
+		int slot = (c * 0x9E3779B1) >>> hashShift;
+
+		while (alphabet[slot] != -1 && alphabet[slot] != c) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * Ukkonen's dynamic programming over the cells at most <code>max</code>
+	 * off the diagonal.
+	 */
+	private int distanceBanded(char[] text, int length, int max) {
+		int m = pattern.length();
+		int infinity = max + 1;
+
+		int[] previous = new int[m + 1];
+		int[] current = new int[m + 1];
+
+		for (int i = 0; i <= m; i++) {
+			previous[i] = i <= max ? i : infinity;
+		}
+
+		for (int j = 1; j <= length; j++) {
+			char c = text[j - 1];
+			int from = Math.max(1, j - max);
+			int to = Math.min(m, j + max);
+
+			current[0] = j <= max ? j : infinity;
+			if (from > 1) {
+				current[from - 1] = infinity;
+			}
+
+			int best = current[0];
+			for (int i = from; i <= to; i++) {
+				int cost = pattern.charAt(i - 1) == c ? 0 : 1;
+				int d = Math.min(previous[i - 1] + cost,
+						Math.min(previous[i], current[i - 1]) + 1);
+
+				current[i] = Math.min(d, infinity);
+				best = Math.min(best, current[i]);
+			}
+			if (to < m) {
+				current[to + 1] = infinity;
+			}
+
+			if (best > max) {
+				return infinity;
+			}
+
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+
+		return Math.min(previous[m], infinity);
+	}
+}
@@ -0,0 +1,337 @@
+package pkleczek.profiwan.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DueForecast;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+import pkleczek.profiwan.utils.DictionaryCache.Dictionary;
+
+/**
+ * A database helper which serves reads from a dictionary kept in a
+ * {@link DictionaryCache} (loaded once with {@link #getDictionary()}) and
+ * updates the cached dictionary as it writes through to the backing helper.
+ * <p>
+ * Callers always get copies of the cached phrases. Bulk inserts and rolled
+ * back transactions invalidate the cached dictionary. Writes are counted by
+ * the cache, so a dictionary loaded while they are being made is not kept
+ * without them (see {@link DictionaryCache}). Revisions have to be
+ * stored with their IDs, thus write buffering (see
+ * {@link WriteBehindDatabaseHelper}) should be done in front of this helper,
+ * not behind it.
+ *
+ * @author Pawel
+ *
+ */
+public class CachingDatabaseHelper extends ForwardingDatabaseHelper {
+
+	private final DatabaseHelper delegate;
+
+	private final DictionaryCache cache;
+
+	/**
+	 * Key of the database's dictionary in the cache.
+	 */
+	private final String key;
+
+	private int transactionDepth = 0;
+
+	private boolean transactionSuccessful = false;
+
+	private boolean transactionFailed = false;
+
+	/**
+	 * @param delegate
+	 *            backing helper
+	 * @param cache
+	 *            cache (may be shared by helpers of many databases)
+	 * @param key
+	 *            key of the database (e.g. user's ID) in the cache
+	 */
+	public CachingDatabaseHelper(DatabaseHelper delegate,
+			DictionaryCache cache, String key) {
+		this.delegate = delegate;
+		this.cache = cache;
+		this.key = key;
+	}
+
+	@Override
+	protected DatabaseHelper delegate() {
+		return delegate;
+	}
+
+	@Override
+	public void beginTransaction() {
+		super.beginTransaction();
+
+		// Guarded by the backing helper's transaction.
+		if (transactionDepth == 0) {
+			transactionFailed = false;
+		}
+		transactionDepth++;
+		transactionSuccessful = false;
+	}
+
+	@Override
+	public void setTransactionSuccessful() {
+		transactionSuccessful = true;
+		super.setTransactionSuccessful();
+	}
+
+	@Override
+	public void endTransaction() {
+		boolean outermost = false;
+
+		if (transactionDepth > 0) {
+			transactionFailed |= !transactionSuccessful;
+			transactionSuccessful = false;
+			transactionDepth--;
+			outermost = transactionDepth == 0;
+
+			if (outermost && transactionFailed) {
+				// Changes written through have been rolled back.
+				cache.invalidate(key);
+			}
+		}
+
+		try {
+			super.endTransaction();
+		} catch (RuntimeException e) {
+			if (outermost) {
+				// Not committed (rolled back instead).
+				cache.invalidate(key);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public long createPhrase(PhraseEntry phrase) {
+		long id = super.createPhrase(phrase);
+		long generation = cache.nextGeneration(key);
+
+		Dictionary dictionary = cache.getIfPresent(key);
+		if (dictionary != null) {
+			synchronized (dictionary) {
+				if (!cache.startWrite(key, dictionary, generation)) {
+					return id;
+				}
+
+				if (id == 0L) {
+					cache.invalidate(key);
+				} else {
+					// Revisions are not stored along with the phrase.
+					dictionary.phrases.put(id,
+							DictionaryCache.copyOfFields(phrase));
+				}
+			}
+		}
+
+		return id;
+	}
+
+	@Override
+	public int updatePhrase(PhraseEntry phrase) {
+		int rv = super.updatePhrase(phrase);
+		long generation = cache.nextGeneration(key);
+
+		Dictionary dictionary = cache.getIfPresent(key);
+		if (dictionary != null) {
+			synchronized (dictionary) {
+				if (!cache.startWrite(key, dictionary, generation)) {
+					return rv;
+				}
+
+				PhraseEntry cached = dictionary.phrases.get(phrase.getId());
+
+				if (cached != null) {
+					PhraseEntry updated = DictionaryCache.copyOfFields(phrase);
+					updated.setRevisions(cached.getRevisions());
+					dictionary.phrases.put(phrase.getId(), updated);
+				} else {
+					cache.invalidate(key);
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	@Override
+	public void deletePhrase(long phrase_id) {
+		super.deletePhrase(phrase_id);
+		long generation = cache.nextGeneration(key);
+
+		Dictionary dictionary = cache.getIfPresent(key);
+		if (dictionary != null) {
+			synchronized (dictionary) {
+				if (cache.startWrite(key, dictionary, generation)) {
+					dictionary.phrases.remove(phrase_id);
+				}
+			}
+		}
+	}
+
+	@Override
+	public long createRevision(RevisionEntry revision, long phrase_id) {
+		long id = super.createRevision(revision, phrase_id);
+		long generation = cache.nextGeneration(key);
+
+		Dictionary dictionary = cache.getIfPresent(key);
+		if (dictionary != null) {
+			synchronized (dictionary) {
+				if (!cache.startWrite(key, dictionary, generation)) {
+					return id;
+				}
+
+				PhraseEntry cached = dictionary.phrases.get(phrase_id);
+
+				if (cached == null || id == 0L) {
+					cache.invalidate(key);
+				} else if (Dictionary.indexOfRevision(cached, id) < 0) {
+					// Unless loaded along with the dictionary.
+					RevisionEntry copy = new RevisionEntry();
+					copy.setId(id);
+					copy.setCreatedAt(revision.getCreatedAt());
+					copy.setMistakes(revision.getMistakes());
+					copy.setTypos(revision.getTypos());
+
+					cached.addRevision(copy);
+					dictionary.revisionOwners.put(id, phrase_id);
+				}
+			}
+		}
+
+		return id;
+	}
+
+	@Override
+	public int updateRevision(RevisionEntry revision) {
+		int rv = super.updateRevision(revision);
+		long generation = cache.nextGeneration(key);
+
+		Dictionary dictionary = cache.getIfPresent(key);
+		if (dictionary != null) {
+			synchronized (dictionary) {
+				if (!cache.startWrite(key, dictionary, generation)) {
+					return rv;
+				}
+
+				PhraseEntry owner = dictionary.findRevisionOwner(revision
+						.getId());
+
+				if (owner != null) {
+					List<RevisionEntry> revisions = owner.getRevisions();
+					int index = Dictionary.indexOfRevision(owner,
+							revision.getId());
+
+					RevisionEntry cachedRevision = revisions.get(index);
+					cachedRevision.setMistakes(revision.getMistakes());
+					cachedRevision.setTypos(revision.getTypos());
+
+					if (index < revisions.size() - 1) {
+						owner.recomputeSchedule();
+					}
+				} else {
+					cache.invalidate(key);
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	@Override
+	public int createPhrases(Iterable<PhraseEntry> phrases) {
+		int created = super.createPhrases(phrases);
+		cache.invalidate(key);
+
+		return created;
+	}
+
+	@Override
+	public int createRevisions(Iterable<PhraseEntry> phrases) {
+		int created = super.createRevisions(phrases);
+		cache.invalidate(key);
+
+		return created;
+	}
+
+	@Override
+	public List<PhraseEntry> getDictionary() {
+		Dictionary dictionary = cache.get(key, delegate);
+
+		synchronized (dictionary) {
+			List<PhraseEntry> phrases = new ArrayList<PhraseEntry>(
+					dictionary.phrases.size());
+
+			for (PhraseEntry pe : dictionary.phrases.values()) {
+				phrases.add(DictionaryCache.copyOf(pe));
+			}
+
+			return phrases;
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getPhrases(Collection<Long> ids) {
+		Dictionary dictionary = cache.get(key, delegate);
+
+		synchronized (dictionary) {
+			List<PhraseEntry> phrases = new ArrayList<PhraseEntry>(ids.size());
+
+			for (Long id : new TreeSet<Long>(ids)) {
+				PhraseEntry pe = dictionary.phrases.get(id);
+				if (pe != null) {
+					phrases.add(DictionaryCache.copyOf(pe));
+				}
+			}
+
+			return phrases;
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		Dictionary dictionary = cache.get(key, delegate);
+
+		synchronized (dictionary) {
+			List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+
+			for (PhraseEntry pe : dictionary.phrases.values()) {
+				if (pe.isInRevisions()
+						&& !pe.getNextRevisionDate().isAfter(dueDate)) {
+					phrases.add(DictionaryCache.copyOf(pe));
+				}
+			}
+
+			return phrases;
+		}
+	}
+
+	@Override
+	public DueForecast getDueForecast(LocalDate start, int days) {
+		Dictionary dictionary = cache.get(key, delegate);
+
+		synchronized (dictionary) {
+			return DueForecast.compute(dictionary.phrases.values(), start,
+					days);
+		}
+	}
+
+	@Override
+	public PhraseCursor openDictionary() {
+		return PhraseCursors.of(getDictionary());
+	}
+
+	@Override
+	public PhraseCursor openDuePhrases(DateTime dueDate) {
+		return PhraseCursors.of(getDuePhrases(dueDate));
+	}
+}
@@ -0,0 +1,70 @@
+package pkleczek.profiwan.utils;
+
+import org.joda.time.DateTime;
+
+/**
+ * The <code>Clock</code> class is the source of the current time for
+ * scheduling of revisions. The default clock (see {@link #setDefault(Clock)})
+ * is the system clock; another one can be set e.g. to test schedules on
+ * given dates.
+ * <p>
+ * Days are represented as local epoch days (see
+ * {@link DBUtils#getEpochDayFromMillis(long)}), so "today" can be computed
+ * once and compared with dates of revisions without creating any objects.
+ *
+ * @author Pawel
+ *
+ */
+public abstract class Clock {
+
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long getMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private static volatile Clock defaultClock = SYSTEM;
+
+	/**
+	 * @return the clock in use
+	 */
+	public static Clock getDefault() {
+		return defaultClock;
+	}
+
+	/**
+	 * Sets the clock in use (<code>null</code> - the system clock).
+	 */
+	public static void setDefault(Clock clock) {
+		defaultClock = clock != null ? clock : SYSTEM;
+	}
+
+	/**
+	 * @return clock always showing the given time
+	 */
+	public static Clock fixed(final long millis) {
+		return new Clock() {
+			@Override
+			public long getMillis() {
+				return millis;
+			}
+		};
+	}
+
+	/**
+	 * @return current time in milliseconds since epoch
+	 */
+	public abstract long getMillis();
+
+	public DateTime now() {
+		return new DateTime(getMillis());
+	}
+
+	/**
+	 * @return the current local epoch day
+	 */
+	public int getToday() {
+		return DBUtils.getEpochDayFromMillis(getMillis());
+	}
+}
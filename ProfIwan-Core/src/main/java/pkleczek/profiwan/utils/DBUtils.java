@@ -7,9 +7,16 @@ import java.io.IOException;
 import java.nio.channels.FileChannel;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
 
 public class DBUtils {
 
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private static final LocalDate EPOCH = new LocalDate(1970, 1, 1);
+
 	public static int getIntFromDateTime(DateTime dt) {
 		return (int) (dt.getMillis() / 1000);
 	}
@@ -17,7 +24,40 @@ public class DBUtils {
 	public static DateTime getDateTimeFromInt(int i) {
 		return new DateTime((long) i*1000L);
 	}
+
+	/**
+	 * Returns the number of the (local) day of the time given in epoch
+	 * seconds, counting from 1970-01-01 (like SQLite's
+	 * <code>'localtime'</code> modifier, in the default time zone).
+	 */
+	public static int getEpochDayFromInt(int seconds) {
+		return getEpochDayFromMillis((long) seconds * 1000L);
+	}
+
+	/**
+	 * Returns the number of the (local) day of the time given in epoch
+	 * milliseconds (see {@link #getEpochDayFromInt(int)}).
+	 */
+	public static int getEpochDayFromMillis(long millis) {
+		long local = millis + DateTimeZone.getDefault().getOffset(millis);
+
+		return (int) Math.floor(local / (double) MILLIS_PER_DAY);
+	}
+
+	public static int getEpochDay(LocalDate date) {
+		return Days.daysBetween(EPOCH, date).getDays();
+	}
+
+	public static LocalDate getLocalDateFromEpochDay(int day) {
+		return EPOCH.plusDays(day);
+	}
 	
+	/**
+	 * @deprecated Copying the file of a database which is being written does
+	 *             not give a consistent copy, use {@link DatabaseBackup}
+	 *             instead.
+	 */
+	@Deprecated
 	public static void copyFile(File sourceFile, File destFile) throws IOException {
 	    if(!destFile.exists()) {
 	        destFile.createNewFile();
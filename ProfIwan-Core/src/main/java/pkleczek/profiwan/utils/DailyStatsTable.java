@@ -0,0 +1,125 @@
+package pkleczek.profiwan.utils;
+
+import static pkleczek.profiwan.utils.DatabaseHelper.*;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import pkleczek.profiwan.model.DailyStats;
+
+/**
+ * The <code>DailyStatsTable</code> class holds the statements which maintain
+ * and query the table of daily totals of revisions, shared by JDBC
+ * implementations of {@link DatabaseHelper}.
+ * <p>
+ * The totals are kept up to date by triggers on the revision table, so they
+ * follow inserts, updates and (cascaded) deletes of revisions, whatever
+ * statement makes them.
+ *
+ * @author Pawel
+ *
+ */
+final class DailyStatsTable {
+
+	static final String TRIGGER_INSERT = "Revision_stats_insert";
+
+	static final String TRIGGER_UPDATE = "Revision_stats_update";
+
+	static final String TRIGGER_DELETE = "Revision_stats_delete";
+
+	static final String CREATE_TRIGGER_INSERT = "CREATE TRIGGER "
+			+ TRIGGER_INSERT + " AFTER INSERT ON " + TABLE_REVISION
+			+ " BEGIN " + add("NEW") + " END;";
+
+	static final String CREATE_TRIGGER_UPDATE = "CREATE TRIGGER "
+			+ TRIGGER_UPDATE + " AFTER UPDATE OF " + KEY_CREATED_AT + ","
+			+ KEY_REVISION_MISTAKES + "," + KEY_REVISION_TYPOS + " ON "
+			+ TABLE_REVISION + " BEGIN " + subtract("OLD") + add("NEW")
+			+ " END;";
+
+	static final String CREATE_TRIGGER_DELETE = "CREATE TRIGGER "
+			+ TRIGGER_DELETE + " AFTER DELETE ON " + TABLE_REVISION
+			+ " BEGIN " + subtract("OLD") + " END;";
+
+	/**
+	 * Computes the totals of the revisions already stored.
+	 */
+	static final String FILL_QUERY = "INSERT INTO " + TABLE_DAILY_STATS
+			+ " SELECT " + dayOf(KEY_CREATED_AT) + " AS d,count(*),sum(abs("
+			+ KEY_REVISION_MISTAKES + ")),sum(" + KEY_REVISION_TYPOS
+			+ "),sum(" + KEY_REVISION_MISTAKES + "=0) FROM " + TABLE_REVISION
+			+ " GROUP BY d;";
+
+	static final String SELECT_QUERY = "SELECT * FROM " + TABLE_DAILY_STATS
+			+ " WHERE " + KEY_DAILY_STATS_DAY + " BETWEEN ? AND ? ORDER BY "
+			+ KEY_DAILY_STATS_DAY + ";";
+
+	private DailyStatsTable() {
+	}
+
+	/**
+	 * @return SQL expression of the local day (since 1970-01-01) of the time
+	 *         (in epoch seconds)
+	 */
+	private static String dayOf(String seconds) {
+		return "CAST(julianday(" + seconds
+				+ ",'unixepoch','localtime')-2440587.5 AS INTEGER)";
+	}
+
+	/**
+	 * @return statements adding the revision (<code>NEW</code>) to the totals
+	 */
+	private static String add(String row) {
+		String day = dayOf(row + "." + KEY_CREATED_AT);
+
+		return "INSERT OR IGNORE INTO " + TABLE_DAILY_STATS + "("
+				+ KEY_DAILY_STATS_DAY + ") VALUES (" + day + ");" + "UPDATE "
+				+ TABLE_DAILY_STATS + " SET " + change(row, '+') + " WHERE "
+				+ KEY_DAILY_STATS_DAY + "=" + day + ";";
+	}
+
+	/**
+	 * @return statements removing the revision (<code>OLD</code>) from the
+	 *         totals (and days left without revisions)
+	 */
+	private static String subtract(String row) {
+		String day = dayOf(row + "." + KEY_CREATED_AT);
+
+		return "UPDATE " + TABLE_DAILY_STATS + " SET " + change(row, '-')
+				+ " WHERE " + KEY_DAILY_STATS_DAY + "=" + day + ";"
+				+ "DELETE FROM " + TABLE_DAILY_STATS + " WHERE "
+				+ KEY_DAILY_STATS_DAY + "=" + day + " AND "
+				+ KEY_DAILY_STATS_REVISIONS + "=0;";
+	}
+
+	private static String change(String row, char sign) {
+		return KEY_DAILY_STATS_REVISIONS + "=" + KEY_DAILY_STATS_REVISIONS
+				+ sign + "1," + KEY_DAILY_STATS_MISTAKES + "="
+				+ KEY_DAILY_STATS_MISTAKES + sign + "abs(" + row + "."
+				+ KEY_REVISION_MISTAKES + ")," + KEY_DAILY_STATS_TYPOS + "="
+				+ KEY_DAILY_STATS_TYPOS + sign + row + "."
+				+ KEY_REVISION_TYPOS + "," + KEY_DAILY_STATS_LEARNED + "="
+				+ KEY_DAILY_STATS_LEARNED + sign + "(" + row + "."
+				+ KEY_REVISION_MISTAKES + "=0)";
+	}
+
+	/**
+	 * Reads the rows of {@link #SELECT_QUERY}.
+	 */
+	static List<DailyStats> read(ResultSet rs) throws SQLException {
+		List<DailyStats> stats = new ArrayList<DailyStats>();
+
+		while (rs.next()) {
+			stats.add(new DailyStats(DBUtils.getLocalDateFromEpochDay(rs
+					.getInt(KEY_DAILY_STATS_DAY)), rs
+					.getInt(KEY_DAILY_STATS_REVISIONS), rs
+					.getInt(KEY_DAILY_STATS_MISTAKES), rs
+					.getInt(KEY_DAILY_STATS_TYPOS), rs
+					.getInt(KEY_DAILY_STATS_LEARNED)));
+		}
+
+		return stats;
+	}
+}
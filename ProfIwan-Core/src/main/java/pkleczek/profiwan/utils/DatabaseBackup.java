@@ -0,0 +1,406 @@
+package pkleczek.profiwan.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * The <code>DatabaseBackup</code> class keeps an up to date copy of an SQLite
+ * database, copying only pages changed since the previous backup.
+ * <p>
+ * A backup takes a consistent snapshot of the database with SQLite's online
+ * backup API into a staging file next to the destination. The snapshot is
+ * read inside a read transaction, so (in WAL mode) writers go on meanwhile.
+ * (The database's files are not read directly: after the transaction's
+ * start, writers may restart the WAL over the snapshot's frames.)
+ * The staging file is then compared page by page with the CRC32 checksums of
+ * the destination's pages (kept in a manifest file), and only the pages which
+ * differ are written to the destination and verified.
+ * <p>
+ * The manifest is removed while the destination is being updated and written
+ * anew at the end, so an interrupted backup is followed by a full copy.
+ *
+ * @author Pawel
+ *
+ */
+public class DatabaseBackup {
+
+	public static final String MANIFEST_SUFFIX = ".manifest"; //$NON-NLS-1$
+
+	public static final String STAGING_SUFFIX = ".staging"; //$NON-NLS-1$
+
+	private static final int MANIFEST_MAGIC = 0x50574231;
+
+	/**
+	 * Offset of the page size in the database file's header.
+	 */
+	private static final int PAGE_SIZE_OFFSET = 16;
+
+	private final File destination;
+
+	private final File manifest;
+
+	private final File staging;
+
+	/**
+	 * @param destination
+	 *            file of the copy (created by the first backup)
+	 */
+	public DatabaseBackup(File destination) {
+		this.destination = destination;
+		this.manifest = new File(destination.getPath() + MANIFEST_SUFFIX);
+		this.staging = new File(destination.getPath() + STAGING_SUFFIX);
+	}
+
+	public File getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Backs up the main database of the connection. The connection has to be
+	 * in auto-commit mode; it is used for a read transaction.
+	 *
+	 * @param conn
+	 *            SQLite connection
+	 * @return summary of the backup
+	 * @throws SQLException
+	 *             if the snapshot cannot be taken
+	 * @throws IOException
+	 *             if the destination cannot be updated
+	 */
+	public Result backup(Connection conn) throws SQLException, IOException {
+		takeSnapshot(conn);
+
+		try {
+			return update(staging);
+		} finally {
+			staging.delete();
+		}
+	}
+
+	private void takeSnapshot(Connection conn) throws SQLException,
+			IOException {
+		String path = staging.getAbsolutePath();
+		if (path.indexOf('"') >= 0) {
+			throw new IOException("unsupported path: " + path); //$NON-NLS-1$
+		}
+
+		if (staging.exists() && !staging.delete()) {
+			throw new IOException("cannot delete " + path); //$NON-NLS-1$
+		}
+
+		Statement stmt = conn.createStatement();
+		conn.setAutoCommit(false);
+
+		try {
+			// Pins the snapshot: changes committed by other connections
+			// meanwhile neither get into the copy nor restart it.
+			ResultSet rs = stmt
+					.executeQuery("SELECT count(*) FROM sqlite_master;"); //$NON-NLS-1$
+			rs.close();
+
+			stmt.executeUpdate("backup to \"" + path + "\""); //$NON-NLS-1$ //$NON-NLS-2$
+		} finally {
+			try {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	/**
+	 * Updates the destination so that it is a copy of the given (consistent)
+	 * database file.
+	 *
+	 * @param snapshot
+	 *            database file not written meanwhile
+	 * @return summary of the backup
+	 * @throws IOException
+	 *             if the destination cannot be updated
+	 */
+	public Result update(File snapshot) throws IOException {
+		FileInputStream in = new FileInputStream(snapshot);
+
+		try {
+			FileChannel source = in.getChannel();
+			int pageSize = readPageSize(source);
+			long length = source.size();
+			int pageCount = (int) ((length + pageSize - 1) / pageSize);
+
+			Manifest previous = readManifest();
+			if (previous != null
+					&& (previous.pageSize != pageSize
+							|| !destination.exists() || destination.length() != previous.length)) {
+				previous = null;
+			}
+
+			// From now on the destination does not match the manifest.
+			if (manifest.exists() && !manifest.delete()) {
+				throw new IOException("cannot delete " + manifest); //$NON-NLS-1$
+			}
+
+			Manifest current = new Manifest(pageSize, length, pageCount);
+			BitSet copied = new BitSet(pageCount);
+
+			RandomAccessFile out = new RandomAccessFile(destination, "rw"); //$NON-NLS-1$
+			try {
+				FileChannel target = out.getChannel();
+				ByteBuffer page = ByteBuffer.allocate(pageSize);
+
+				for (int i = 0; i < pageCount; i++) {
+					long position = (long) i * pageSize;
+
+					readFully(source, page, position);
+					current.checksums[i] = checksum(page);
+
+					if (previous == null || i >= previous.checksums.length
+							|| previous.checksums[i] != current.checksums[i]) {
+						while (page.hasRemaining()) {
+							target.write(page, position + page.position());
+						}
+						copied.set(i);
+					}
+				}
+
+				target.truncate(length);
+				target.force(true);
+
+				// Written pages are read back.
+				for (int i = copied.nextSetBit(0); i >= 0; i = copied
+						.nextSetBit(i + 1)) {
+					readFully(target, page, (long) i * pageSize);
+
+					if (checksum(page) != current.checksums[i]) {
+						throw new IOException("page " + i //$NON-NLS-1$
+								+ " of the backup is corrupt"); //$NON-NLS-1$
+					}
+				}
+			} finally {
+				out.close();
+			}
+
+			writeManifest(current);
+
+			return new Result(pageCount, copied.cardinality(), pageSize);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Checks the destination's pages against the checksums of the last
+	 * backup. Backups compare the database only with these checksums, so if
+	 * the destination has been damaged, the manifest is removed and the next
+	 * backup is a full copy.
+	 *
+	 * @return <code>false</code> if the destination has changed since (or
+	 *         the last backup did not complete)
+	 * @throws IOException
+	 *             if the destination cannot be read
+	 */
+	public boolean verify() throws IOException {
+		Manifest current = readManifest();
+
+		if (current == null || !destination.exists()
+				|| destination.length() != current.length) {
+			return false;
+		}
+
+		FileInputStream in = new FileInputStream(destination);
+
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer page = ByteBuffer.allocate(current.pageSize);
+
+			for (int i = 0; i < current.checksums.length; i++) {
+				readFully(channel, page, (long) i * current.pageSize);
+
+				if (checksum(page) != current.checksums[i]) {
+					in.close();
+					manifest.delete();
+					return false;
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return true;
+	}
+
+	private static int readPageSize(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(2);
+		readFully(channel, header, PAGE_SIZE_OFFSET);
+
+		int pageSize = header.getShort(0) & 0xFFFF;
+		// 1 stands for 65536 (which does not fit).
+		return pageSize == 1 ? 65536 : pageSize;
+	}
+
+	/**
+	 * Reads the buffer's capacity from the position (the last page may be
+	 * shorter), leaving the buffer flipped for reading.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		buffer.clear();
+
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				break;
+			}
+		}
+
+		if (buffer.position() == 0) {
+			throw new EOFException();
+		}
+
+		buffer.flip();
+	}
+
+	private static int checksum(ByteBuffer page) {
+		CRC32 crc = new CRC32();
+		crc.update(page.array(), 0, page.limit());
+
+		return (int) crc.getValue();
+	}
+
+	private Manifest readManifest() throws IOException {
+		if (!manifest.exists()) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(manifest)));
+
+		try {
+			if (in.readInt() != MANIFEST_MAGIC) {
+				return null;
+			}
+
+			int pageSize = in.readInt();
+			long length = in.readLong();
+			int pageCount = in.readInt();
+			if (pageSize <= 0 || pageCount < 0
+					|| (long) pageCount * pageSize < length) {
+				return null;
+			}
+
+			Manifest m = new Manifest(pageSize, length, pageCount);
+			for (int i = 0; i < m.checksums.length; i++) {
+				m.checksums[i] = in.readInt();
+			}
+
+			return m;
+		} catch (EOFException e) {
+			// Truncated.
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeManifest(Manifest m) throws IOException {
+		File tmp = new File(manifest.getPath() + ".tmp"); //$NON-NLS-1$
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				fos));
+
+		try {
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeInt(m.pageSize);
+			out.writeLong(m.length);
+			out.writeInt(m.checksums.length);
+			for (int checksum : m.checksums) {
+				out.writeInt(checksum);
+			}
+
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(manifest)) {
+			throw new IOException("cannot write " + manifest); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Checksums of a backup's pages.
+	 */
+	private static final class Manifest {
+
+		final int pageSize;
+
+		final long length;
+
+		final int[] checksums;
+
+		Manifest(int pageSize, long length, int pageCount) {
+			this.pageSize = pageSize;
+			this.length = length;
+			this.checksums = new int[pageCount];
+		}
+	}
+
+	/**
+	 * Summary of a backup.
+	 */
+	public static final class Result {
+
+		private final int pagesNumber;
+
+		private final int copiedPagesNumber;
+
+		private final int pageSize;
+
+		Result(int pagesNumber, int copiedPagesNumber, int pageSize) {
+			this.pagesNumber = pagesNumber;
+			this.copiedPagesNumber = copiedPagesNumber;
+			this.pageSize = pageSize;
+		}
+
+		/**
+		 * @return number of the database's pages
+		 */
+		public int getPagesNumber() {
+			return pagesNumber;
+		}
+
+		/**
+		 * @return number of pages written to the destination
+		 */
+		public int getCopiedPagesNumber() {
+			return copiedPagesNumber;
+		}
+
+		public int getPageSize() {
+			return pageSize;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d of %d pages copied", copiedPagesNumber, //$NON-NLS-1$
+					pagesNumber);
+		}
+	}
+}
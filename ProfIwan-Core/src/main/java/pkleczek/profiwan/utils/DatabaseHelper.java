@@ -1,7 +1,13 @@
 package pkleczek.profiwan.utils;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.DueForecast;
 import pkleczek.profiwan.model.PhraseEntry;
 import pkleczek.profiwan.model.RevisionEntry;
 import pkleczek.profiwan.model.RevisionsSession;
@@ -19,6 +25,7 @@ public interface DatabaseHelper {
 	// Table Names
 	String TABLE_PHRASE = "Phrase";
 	String TABLE_REVISION = "Revision";
+	String TABLE_DAILY_STATS = "DailyStats";
 
 	// Common column names
 	String KEY_ID = "_id";
@@ -31,11 +38,26 @@ public interface DatabaseHelper {
 	String KEY_PHRASE_LANG2_TEXT = "lang2_text";
 	String KEY_PHRASE_LABEL = "label";
 	String KEY_PHRASE_IN_REVISION = "in_revision";
+	String KEY_PHRASE_NEXT_DUE = "next_due";
 
 	// REVISION Table - column names
 	String KEY_REVISION_MISTAKES = "mistakes";
+	String KEY_REVISION_TYPOS = "typos";
 	String KEY_REVISION_PHRASE_ID = "Phrase_idPhrase";
 
+	// DAILY_STATS Table - column names
+	String KEY_DAILY_STATS_DAY = "day";
+	String KEY_DAILY_STATS_REVISIONS = "revisions";
+	String KEY_DAILY_STATS_MISTAKES = "mistakes";
+	String KEY_DAILY_STATS_TYPOS = "typos";
+	String KEY_DAILY_STATS_LEARNED = "learned";
+
+	// PHRASE-REVISION join - aliased revision column names
+	String KEY_JOIN_REVISION_ID = "revision_id";
+	String KEY_JOIN_REVISION_CREATED_AT = "revision_created_at";
+	String KEY_JOIN_REVISION_MISTAKES = "revision_mistakes";
+	String KEY_JOIN_REVISION_TYPOS = "revision_typos";
+
 	// Table Create Statements
 	// PHRASE Table - create statement
 	String CREATE_TABLE_PHRASE = "CREATE TABLE " + TABLE_PHRASE + "(" + KEY_ID
@@ -44,16 +66,61 @@ public interface DatabaseHelper {
 			+ KEY_PHRASE_LANG1_TEXT + " TEXT NOT NULL," + KEY_PHRASE_LANG2_TEXT
 			+ " TEXT NOT NULL," + KEY_PHRASE_LABEL + " TEXT NOT NULL,"
 			+ KEY_CREATED_AT + " INTEGER NOT NULL," + KEY_PHRASE_IN_REVISION
-			+ " INTEGER NOT NULL" + ");";
+			+ " INTEGER NOT NULL," + KEY_PHRASE_NEXT_DUE
+			+ " INTEGER NOT NULL DEFAULT 0" + ");";
 
 	String CREATE_TABLE_REVISION = "CREATE TABLE " + TABLE_REVISION + "("
 			+ KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + KEY_CREATED_AT
 			+ " INTEGER NOT NULL," + KEY_REVISION_MISTAKES
-			+ " INTEGER NOT NULL," + KEY_REVISION_PHRASE_ID
+			+ " INTEGER NOT NULL," + KEY_REVISION_TYPOS
+			+ " INTEGER NOT NULL DEFAULT 0," + KEY_REVISION_PHRASE_ID
 			+ " INTEGER NOT NULL," + "FOREIGN KEY(" + KEY_REVISION_PHRASE_ID
 			+ ") REFERENCES " + TABLE_PHRASE + "(" + KEY_ID
 			+ ") ON DELETE CASCADE ON UPDATE CASCADE" + ");";
 
+	// Totals of revisions by (local) day since 1970-01-01, kept by triggers
+	String CREATE_TABLE_DAILY_STATS = "CREATE TABLE " + TABLE_DAILY_STATS
+			+ "(" + KEY_DAILY_STATS_DAY + " INTEGER PRIMARY KEY,"
+			+ KEY_DAILY_STATS_REVISIONS + " INTEGER NOT NULL DEFAULT 0,"
+			+ KEY_DAILY_STATS_MISTAKES + " INTEGER NOT NULL DEFAULT 0,"
+			+ KEY_DAILY_STATS_TYPOS + " INTEGER NOT NULL DEFAULT 0,"
+			+ KEY_DAILY_STATS_LEARNED + " INTEGER NOT NULL DEFAULT 0" + ");";
+
+	// Index Names
+	String INDEX_PHRASE_NEXT_DUE = "Phrase_next_due_idx";
+	String INDEX_REVISION_PHRASE = "Revision_phrase_idx";
+
+	// Index Create Statements
+	String CREATE_INDEX_PHRASE_NEXT_DUE = "CREATE INDEX IF NOT EXISTS "
+			+ INDEX_PHRASE_NEXT_DUE + " ON " + TABLE_PHRASE + "("
+			+ KEY_PHRASE_IN_REVISION + "," + KEY_PHRASE_NEXT_DUE + ");";
+
+	// Covers the revision columns of the phrase-revision join.
+	String CREATE_INDEX_REVISION_PHRASE = "CREATE INDEX IF NOT EXISTS "
+			+ INDEX_REVISION_PHRASE + " ON " + TABLE_REVISION + "("
+			+ KEY_REVISION_PHRASE_ID + "," + KEY_CREATED_AT + "," + KEY_ID
+			+ "," + KEY_REVISION_MISTAKES + "," + KEY_REVISION_TYPOS + ");";
+
+	/**
+	 * Begins a transaction. Transactions can be nested: the outermost
+	 * {@link #endTransaction()} commits changes only if all transactions were
+	 * marked successful, and rolls them back otherwise.
+	 */
+	void beginTransaction();
+
+	/**
+	 * Marks the current transaction as successful. No database work should be
+	 * done between this call and {@link #endTransaction()}.
+	 */
+	void setTransactionSuccessful();
+
+	/**
+	 * Ends the current transaction. If the outermost transaction cannot be
+	 * committed, its changes are rolled back and an unchecked exception is
+	 * thrown.
+	 */
+	void endTransaction();
+
 	long createPhrase(PhraseEntry phrase);
 
 	int updatePhrase(PhraseEntry phrase);
@@ -62,7 +129,92 @@ public interface DatabaseHelper {
 
 	long createRevision(RevisionEntry revision, long phrase_id);
 
+	/**
+	 * Inserts phrases in a single transaction (batched), assigning generated
+	 * IDs to the entries. Revisions of the phrases are not stored (see
+	 * {@link #createRevisions(Iterable)}).
+	 * 
+	 * @param phrases
+	 *            phrases to insert
+	 * @return number of inserted phrases (0 if the transaction was rolled back)
+	 */
+	int createPhrases(Iterable<PhraseEntry> phrases);
+
+	/**
+	 * Inserts all revisions of the given (already stored) phrases in a single
+	 * transaction (batched), assigning generated IDs to the entries.
+	 * 
+	 * @param phrases
+	 *            phrases whose revisions are to be inserted
+	 * @return number of inserted revisions (0 if the transaction was rolled
+	 *         back)
+	 */
+	int createRevisions(Iterable<PhraseEntry> phrases);
+
 	int updateRevision(RevisionEntry revision);
 
 	List<PhraseEntry> getDictionary();
+
+	/**
+	 * Returns phrases with the given IDs (ordered by ID). IDs of nonexistent
+	 * phrases are skipped.
+	 * 
+	 * @param ids
+	 *            phrases' IDs
+	 * @return the phrases
+	 */
+	List<PhraseEntry> getPhrases(Collection<Long> ids);
+
+	/**
+	 * Returns phrases in revision whose next revision date (as stored by
+	 * {@link #createPhrase(PhraseEntry)} and
+	 * {@link #updatePhrase(PhraseEntry)}) is not after the given date.
+	 * 
+	 * @param dueDate
+	 *            due date
+	 * @return candidates for {@link PhraseEntry#isReviseNow(DateTime)}
+	 */
+	List<PhraseEntry> getDuePhrases(DateTime dueDate);
+
+	/**
+	 * Streaming variant of {@link #getDictionary()}.
+	 * 
+	 * @return cursor over all phrases (has to be closed unless exhausted)
+	 */
+	PhraseCursor openDictionary();
+
+	/**
+	 * Streaming variant of {@link #getDuePhrases(DateTime)}.
+	 * 
+	 * @param dueDate
+	 *            due date
+	 * @return cursor over the due phrases (has to be closed unless exhausted)
+	 */
+	PhraseCursor openDuePhrases(DateTime dueDate);
+
+	/**
+	 * Returns totals of the revisions made on each day of the range (days
+	 * without revisions are skipped). The totals are kept up to date as
+	 * revisions are stored, so the cost depends on the number of days only.
+	 * 
+	 * @param from
+	 *            first day
+	 * @param to
+	 *            last day (inclusive)
+	 * @return totals in order of days
+	 */
+	List<DailyStats> getDailyStats(LocalDate from, LocalDate to);
+
+	/**
+	 * Counts phrases in revision becoming due on each of the days (by the
+	 * next revision dates stored along with the phrases), without loading
+	 * them.
+	 * 
+	 * @param start
+	 *            first day
+	 * @param days
+	 *            number of days
+	 * @return the forecast
+	 */
+	DueForecast getDueForecast(LocalDate start, int days);
 }
@@ -0,0 +1,395 @@
+package pkleczek.profiwan.utils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pkleczek.profiwan.model.PackedRevisionList;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * The <code>DictionaryCache</code> class keeps loaded dictionaries of many
+ * databases (users), each under its own key, and evicts the least recently
+ * used ones when their total size exceeds the limit. It is shared by
+ * {@link CachingDatabaseHelper}s.
+ * <p>
+ * Writes to each database are counted (see {@link #nextGeneration(String)}),
+ * and a cached dictionary knows the number of the last write it reflects. A
+ * write which does not find its dictionary cached (e.g. as it is being
+ * loaded) cannot update it, so a dictionary behind the count is loaded
+ * again. The count of a database is dropped when its dictionary is neither
+ * cached nor being loaded.
+ *
+ * @author Pawel
+ *
+ */
+public class DictionaryCache {
+
+	private final Cache<String, Dictionary> cache;
+
+	/**
+	 * Numbers of writes to the databases.
+	 */
+	private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Numbers of loads in progress (guards dropping of the counts of writes).
+	 */
+	private final Map<String, Integer> loads = new HashMap<String, Integer>();
+
+	/**
+	 * @param maximumWeight
+	 *            maximum total number of phrases and revisions kept (the size
+	 *            of a dictionary is taken when it is loaded)
+	 */
+	public DictionaryCache(long maximumWeight) {
+		cache = CacheBuilder.newBuilder().maximumWeight(maximumWeight)
+				.weigher(new Weigher<String, Dictionary>() {
+					public int weigh(String key, Dictionary dictionary) {
+						return dictionary.weight;
+					}
+				})
+				.removalListener(new RemovalListener<String, Dictionary>() {
+					public void onRemoval(
+							RemovalNotification<String, Dictionary> notification) {
+						removeUnused(notification.getKey());
+					}
+				}).recordStats().build();
+	}
+
+	/**
+	 * @return hit and miss statistics
+	 */
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	/**
+	 * @return number of cached dictionaries
+	 */
+	public long size() {
+		return cache.size();
+	}
+
+	/**
+	 * Drops the dictionary, as well as the one being loaded.
+	 */
+	public void invalidate(String key) {
+		nextGeneration(key);
+		cache.invalidate(key);
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Returns the dictionary cached under the key, loading it if needed.
+	 */
+	Dictionary get(final String key, final DatabaseHelper loader) {
+		while (true) {
+			final boolean[] loading = { false };
+			Callable<Dictionary> load = new Callable<Dictionary>() {
+				public Dictionary call() {
+					startLoad(key);
+					loading[0] = true;
+
+					// Writes counted till now are in the database.
+					long generation = getGeneration(key);
+
+					return new Dictionary(loader.getDictionary(), generation);
+				}
+			};
+
+			Dictionary dictionary;
+			try {
+				dictionary = cache.get(key, load);
+			} catch (ExecutionException e) {
+				throw Throwables.propagate(e.getCause());
+			} finally {
+				if (loading[0]) {
+					// Cached by now (unless failed).
+					endLoad(key);
+				}
+			}
+
+			synchronized (dictionary) {
+				if (dictionary.generation >= getGeneration(key)) {
+					return dictionary;
+				}
+			}
+
+			// A write made during the load may be missing.
+			cache.asMap().remove(key, dictionary);
+		}
+	}
+
+	private void startLoad(String key) {
+		synchronized (loads) {
+			Integer number = loads.get(key);
+			loads.put(key, number == null ? 1 : number + 1);
+		}
+	}
+
+	private void endLoad(String key) {
+		synchronized (loads) {
+			int number = loads.get(key);
+			if (number > 1) {
+				loads.put(key, number - 1);
+			} else {
+				loads.remove(key);
+			}
+		}
+
+		removeUnused(key);
+	}
+
+	/**
+	 * Drops the count of writes to the database if its dictionary is neither
+	 * cached nor being loaded (a load started later counts anew, and sees
+	 * the writes counted till now, as they are made before).
+	 *
+	 * @return <code>true</code> if the count is dropped
+	 */
+	private boolean removeUnused(String key) {
+		synchronized (loads) {
+			if (!loads.containsKey(key) && !cache.asMap().containsKey(key)) {
+				generations.remove(key);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return number of databases whose writes are counted
+	 */
+	int getGenerationsNumber() {
+		return generations.size();
+	}
+
+	/**
+	 * Counts a write to the database (made before).
+	 *
+	 * @return number of the write, or 0 if no dictionary is to reflect it (a
+	 *         dictionary loaded later does already)
+	 */
+	long nextGeneration(String key) {
+		long generation = getCounter(key).incrementAndGet();
+
+		if (removeUnused(key)) {
+			return 0L;
+		}
+		return generation;
+	}
+
+	/**
+	 * @return number of the last write to the database
+	 */
+	long getGeneration(String key) {
+		AtomicLong counter = generations.get(key);
+		return counter != null ? counter.get() : 0L;
+	}
+
+	private AtomicLong getCounter(String key) {
+		AtomicLong counter = generations.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = generations.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+
+		return counter;
+	}
+
+	/**
+	 * Decides whether the write can be applied to the cached dictionary
+	 * (whose lock is held). It can if the dictionary reflects all writes
+	 * before it; if the dictionary is further behind, it is dropped.
+	 *
+	 * @param generation
+	 *            number of the write
+	 * @return <code>true</code> if the write is to be applied (the dictionary
+	 *         is counted as reflecting it)
+	 */
+	boolean startWrite(String key, Dictionary dictionary, long generation) {
+		if (dictionary.generation >= generation) {
+			// Loaded after the write.
+			return false;
+		}
+
+		if (dictionary.generation < generation - 1) {
+			cache.asMap().remove(key, dictionary);
+			return false;
+		}
+
+		dictionary.generation = generation;
+		return true;
+	}
+
+	/**
+	 * Returns the dictionary cached under the key (<code>null</code> if it is
+	 * not loaded). Unlike {@link #get(String, DatabaseHelper)}, it is not
+	 * counted as a hit nor a miss.
+	 */
+	Dictionary getIfPresent(String key) {
+		return cache.asMap().get(key);
+	}
+
+	/**
+	 * Returns a copy of the phrase (with a copy of its revisions).
+	 */
+	static PhraseEntry copyOf(PhraseEntry phrase) {
+		PhraseEntry copy = copyOfFields(phrase);
+
+		List<RevisionEntry> revisions = phrase.getRevisions();
+		PackedRevisionList revisionsCopy = new PackedRevisionList(
+				revisions.size());
+
+		if (revisions instanceof PackedRevisionList) {
+			PackedRevisionList packed = (PackedRevisionList) revisions;
+			for (int i = 0; i < packed.size(); i++) {
+				revisionsCopy.add(packed.getId(i),
+						packed.getCreatedAtSeconds(i), packed.getMistakes(i),
+						packed.getTypos(i));
+			}
+		} else {
+			revisionsCopy.addAll(revisions);
+		}
+		copy.setRevisions(revisionsCopy);
+
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of the phrase without revisions.
+	 */
+	static PhraseEntry copyOfFields(PhraseEntry phrase) {
+		PhraseEntry copy = new PhraseEntry();
+		copy.setId(phrase.getId());
+		copy.setLangA(phrase.getLangA());
+		copy.setLangB(phrase.getLangB());
+		copy.setLangAText(phrase.getLangAText());
+		copy.setLangBText(phrase.getLangBText());
+		copy.setInRevisions(phrase.isInRevisions());
+		copy.setCreatedAt(phrase.getCreatedAt());
+		copy.setLabel(phrase.getLabel());
+		copy.setRevisions(new PackedRevisionList());
+
+		return copy;
+	}
+
+	/**
+	 * Phrases of a single database, accessed while holding its lock. Cached
+	 * phrases are never handed out, only their copies.
+	 */
+	static final class Dictionary {
+
+		/**
+		 * Phrases by ID (in the order of the database's queries).
+		 */
+		final TreeMap<Long, PhraseEntry> phrases = new TreeMap<Long, PhraseEntry>();
+
+		/**
+		 * Maps revision's ID on its phrase's ID.
+		 */
+		final Map<Long, Long> revisionOwners = new HashMap<Long, Long>();
+
+		final int weight;
+
+		/**
+		 * Number of the last write reflected (at least).
+		 */
+		long generation;
+
+		Dictionary(List<PhraseEntry> loaded, long generation) {
+			this.generation = generation;
+
+			for (PhraseEntry pe : loaded) {
+				phrases.put(pe.getId(), pe);
+				indexRevisions(pe);
+			}
+
+			weight = (int) Math.min(Integer.MAX_VALUE,
+					(long) phrases.size() + revisionOwners.size());
+		}
+
+		private void indexRevisions(PhraseEntry phrase) {
+			List<RevisionEntry> revisions = phrase.getRevisions();
+			Long owner = phrase.getId();
+
+			if (revisions instanceof PackedRevisionList) {
+				// Without creating views.
+				PackedRevisionList packed = (PackedRevisionList) revisions;
+				for (int i = 0; i < packed.size(); i++) {
+					revisionOwners.put(packed.getId(i), owner);
+				}
+			} else {
+				for (RevisionEntry re : revisions) {
+					revisionOwners.put(re.getId(), owner);
+				}
+			}
+		}
+
+		/**
+		 * Finds the phrase which has a revision with the given ID.
+		 *
+		 * @return the phrase or <code>null</code> if it is not cached
+		 */
+		PhraseEntry findRevisionOwner(long revisionId) {
+			Long owner = revisionOwners.get(revisionId);
+
+			if (owner != null) {
+				PhraseEntry pe = phrases.get(owner);
+				if (pe != null && indexOfRevision(pe, revisionId) >= 0) {
+					return pe;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * @return index of the revision in the phrase's revisions' list, or -1
+		 */
+		static int indexOfRevision(PhraseEntry phrase, long revisionId) {
+			List<RevisionEntry> revisions = phrase.getRevisions();
+
+			if (revisions instanceof PackedRevisionList) {
+				// Without creating views.
+				PackedRevisionList packed = (PackedRevisionList) revisions;
+				for (int i = packed.size() - 1; i >= 0; i--) {
+					if (packed.getId(i) == revisionId) {
+						return i;
+					}
+				}
+				return -1;
+			}
+
+			for (int i = revisions.size() - 1; i >= 0; i--) {
+				if (revisions.get(i).getId() == revisionId) {
+					return i;
+				}
+			}
+
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,596 @@
+package pkleczek.profiwan.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import pkleczek.profiwan.model.PackedRevisionList;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+/**
+ * The <code>DictionaryFile</code> class reads and writes dictionaries
+ * (phrases with their revisions) in a compact binary format, meant for
+ * courses shared by many users.
+ * <p>
+ * The file consists of a header, fixed-width columns (one per field, of
+ * phrases and of revisions) and a table of distinct strings (UTF-16), which
+ * columns refer to by index. An opened file is memory-mapped and only its
+ * header is checked: fields are read from the columns on demand, so opening
+ * takes the same time regardless of the dictionary's size, and phrases are
+ * only built when asked for (see {@link #getPhrase(int)}).
+ * <p>
+ * The file's structure is checked, but its content is not checksummed.
+ *
+ * @author Pawel
+ *
+ */
+public final class DictionaryFile {
+
+	private static final int MAGIC = 0x50574431;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Phrases are stored in ascending order of their IDs.
+	 */
+	private static final int FLAG_SORTED = 1;
+
+	private static final int PHRASE_IN_REVISIONS = 1;
+
+	private static final int STRING_COLUMNS = 5;
+
+	// Indexes of the phrase's string columns.
+	private static final int LANG_A = 0;
+	private static final int LANG_B = 1;
+	private static final int LANG_A_TEXT = 2;
+	private static final int LANG_B_TEXT = 3;
+	private static final int LABEL = 4;
+
+	private final int phrasesNumber;
+
+	private final int revisionsNumber;
+
+	private final int flags;
+
+	private final LongBuffer phraseIds;
+
+	private final IntBuffer phraseCreatedAt;
+
+	private final IntBuffer phraseFlags;
+
+	private final IntBuffer[] phraseStrings = new IntBuffer[STRING_COLUMNS];
+
+	/**
+	 * Index of the first revision of each phrase (and the number of revisions
+	 * at the end).
+	 */
+	private final IntBuffer revisionStarts;
+
+	private final LongBuffer revisionIds;
+
+	private final IntBuffer revisionCreatedAt;
+
+	private final IntBuffer revisionMistakes;
+
+	private final IntBuffer revisionTypos;
+
+	/**
+	 * Offset of each string in the characters (and their number at the end).
+	 */
+	private final IntBuffer stringOffsets;
+
+	private final CharBuffer stringChars;
+
+	private DictionaryFile(ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("not a dictionary file"); //$NON-NLS-1$
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("unsupported version " + buffer.getInt(4)); //$NON-NLS-1$
+		}
+
+		phrasesNumber = buffer.getInt(8);
+		revisionsNumber = buffer.getInt(12);
+		int stringsNumber = buffer.getInt(16);
+		int charsNumber = buffer.getInt(20);
+		flags = buffer.getInt(24);
+
+		Layout layout = new Layout(phrasesNumber, revisionsNumber,
+				stringsNumber, charsNumber);
+		if (phrasesNumber < 0 || revisionsNumber < 0 || stringsNumber < 0
+				|| charsNumber < 0 || layout.length != buffer.capacity()) {
+			throw new IOException("truncated dictionary file"); //$NON-NLS-1$
+		}
+
+		// Each column ends where its values do.
+		phraseIds = (LongBuffer) slice(buffer, layout.phraseIds)
+				.asLongBuffer().limit(phrasesNumber);
+		phraseCreatedAt = ints(buffer, layout.phraseCreatedAt, phrasesNumber);
+		phraseFlags = ints(buffer, layout.phraseFlags, phrasesNumber);
+		for (int i = 0; i < STRING_COLUMNS; i++) {
+			phraseStrings[i] = ints(buffer, layout.phraseStrings[i],
+					phrasesNumber);
+		}
+		revisionStarts = ints(buffer, layout.revisionStarts,
+				phrasesNumber + 1);
+
+		revisionIds = (LongBuffer) slice(buffer, layout.revisionIds)
+				.asLongBuffer().limit(revisionsNumber);
+		revisionCreatedAt = ints(buffer, layout.revisionCreatedAt,
+				revisionsNumber);
+		revisionMistakes = ints(buffer, layout.revisionMistakes,
+				revisionsNumber);
+		revisionTypos = ints(buffer, layout.revisionTypos, revisionsNumber);
+
+		stringOffsets = ints(buffer, layout.stringOffsets, stringsNumber + 1);
+		stringChars = (CharBuffer) slice(buffer, layout.stringChars)
+				.asCharBuffer().limit(charsNumber);
+	}
+
+	private static IntBuffer ints(ByteBuffer buffer, long offset, int length) {
+		return (IntBuffer) slice(buffer, offset).asIntBuffer().limit(length);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, long offset) {
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position((int) offset);
+
+		return duplicate.slice();
+	}
+
+	/**
+	 * Maps the file into memory.
+	 *
+	 * @param file
+	 *            dictionary file
+	 * @return the dictionary
+	 * @throws IOException
+	 *             if the file cannot be read or is not a dictionary file
+	 */
+	public static DictionaryFile open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+
+		try {
+			if (raf.length() > Integer.MAX_VALUE) {
+				throw new IOException("dictionary file too large"); //$NON-NLS-1$
+			}
+
+			// The mapping stays valid after the file is closed.
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0L, raf.length());
+			return new DictionaryFile(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a dictionary from the buffer's content (from position 0 to the
+	 * capacity).
+	 */
+	public static DictionaryFile wrap(ByteBuffer buffer) throws IOException {
+		return new DictionaryFile(buffer);
+	}
+
+	/**
+	 * Writes the phrases (with their revisions) to the file.
+	 *
+	 * @param phrases
+	 *            phrases
+	 * @param file
+	 *            dictionary file (overwritten)
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public static void write(List<PhraseEntry> phrases, File file)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+
+		try {
+			raf.setLength(0L);
+			Writer writer = new Writer(phrases);
+
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0L, writer.layout.length);
+			writer.writeTo(buffer);
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the phrases (with their revisions) to a new buffer.
+	 */
+	public static ByteBuffer toByteBuffer(List<PhraseEntry> phrases)
+			throws IOException {
+		Writer writer = new Writer(phrases);
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) writer.layout.length);
+		writer.writeTo(buffer);
+
+		return buffer;
+	}
+
+	/**
+	 * @return number of phrases
+	 */
+	public int size() {
+		return phrasesNumber;
+	}
+
+	public int getRevisionsNumber() {
+		return revisionsNumber;
+	}
+
+	public long getId(int index) {
+		return phraseIds.get(index);
+	}
+
+	public int getCreatedAtSeconds(int index) {
+		return phraseCreatedAt.get(index);
+	}
+
+	public boolean isInRevisions(int index) {
+		return (phraseFlags.get(index) & PHRASE_IN_REVISIONS) != 0;
+	}
+
+	public String getLangA(int index) {
+		return getString(phraseStrings[LANG_A].get(index));
+	}
+
+	public String getLangB(int index) {
+		return getString(phraseStrings[LANG_B].get(index));
+	}
+
+	public String getLangAText(int index) {
+		return getString(phraseStrings[LANG_A_TEXT].get(index));
+	}
+
+	public String getLangBText(int index) {
+		return getString(phraseStrings[LANG_B_TEXT].get(index));
+	}
+
+	public String getLabel(int index) {
+		return getString(phraseStrings[LABEL].get(index));
+	}
+
+	/**
+	 * @return number of revisions of the phrase
+	 */
+	public int getRevisionsNumber(int index) {
+		return revisionStarts.get(index + 1) - revisionStarts.get(index);
+	}
+
+	private String getString(int string) {
+		int start = stringOffsets.get(string);
+		int end = stringOffsets.get(string + 1);
+
+		return stringChars.subSequence(start, end).toString();
+	}
+
+	/**
+	 * Finds the phrase with the given ID.
+	 *
+	 * @return index of the phrase, or -1
+	 */
+	public int indexOf(long id) {
+		if ((flags & FLAG_SORTED) == 0) {
+			for (int i = 0; i < phrasesNumber; i++) {
+				if (phraseIds.get(i) == id) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		int low = 0;
+		int high = phrasesNumber - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleId = phraseIds.get(middle);
+
+			if (middleId < id) {
+				low = middle + 1;
+			} else if (middleId > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Builds the phrase with the given index (along with its revisions).
+	 */
+	public PhraseEntry getPhrase(int index) {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setId(getId(index));
+		pe.setLangA(getLangA(index));
+		pe.setLangB(getLangB(index));
+		pe.setLangAText(getLangAText(index));
+		pe.setLangBText(getLangBText(index));
+		pe.setLabel(getLabel(index));
+		pe.setInRevisions(isInRevisions(index));
+		pe.setCreatedAt(DBUtils.getDateTimeFromInt(getCreatedAtSeconds(index)));
+
+		int start = revisionStarts.get(index);
+		int end = revisionStarts.get(index + 1);
+
+		PackedRevisionList revisions = new PackedRevisionList(end - start);
+		for (int i = start; i < end; i++) {
+			revisions.add(revisionIds.get(i), revisionCreatedAt.get(i),
+					revisionMistakes.get(i), revisionTypos.get(i));
+		}
+		pe.setRevisions(revisions);
+
+		return pe;
+	}
+
+	/**
+	 * Returns a list view of the phrases; a phrase is built on each access.
+	 */
+	public List<PhraseEntry> asList() {
+		return new PhraseList();
+	}
+
+	/**
+	 * Stores all phrases (with their revisions) using the helper. Phrases and
+	 * revisions get new IDs.
+	 *
+	 * @return number of stored phrases
+	 */
+	public int importInto(DatabaseHelper dbHelper) {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>(asList());
+		int created = 0;
+
+		dbHelper.beginTransaction();
+		try {
+			created = dbHelper.createPhrases(phrases);
+
+			if (created == phrases.size()
+					&& dbHelper.createRevisions(phrases) == revisionsNumber) {
+				dbHelper.setTransactionSuccessful();
+			} else {
+				created = 0;
+			}
+		} finally {
+			dbHelper.endTransaction();
+		}
+
+		return created;
+	}
+
+	private final class PhraseList extends AbstractList<PhraseEntry>
+			implements RandomAccess {
+
+		@Override
+		public PhraseEntry get(int index) {
+			if (index < 0 || index >= phrasesNumber) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+
+			return getPhrase(index);
+		}
+
+		@Override
+		public int size() {
+			return phrasesNumber;
+		}
+	}
+
+	/**
+	 * Offsets of the columns (each aligned to 8 bytes) and the file's length.
+	 */
+	private static final class Layout {
+
+		final long phraseIds;
+		final long phraseCreatedAt;
+		final long phraseFlags;
+		final long[] phraseStrings = new long[STRING_COLUMNS];
+		final long revisionStarts;
+		final long revisionIds;
+		final long revisionCreatedAt;
+		final long revisionMistakes;
+		final long revisionTypos;
+		final long stringOffsets;
+		final long stringChars;
+		final long length;
+
+		Layout(int phrasesNumber, int revisionsNumber, int stringsNumber,
+				int charsNumber) {
+			long offset = HEADER_SIZE;
+
+			phraseIds = offset;
+			offset = align(offset + 8L * phrasesNumber);
+			phraseCreatedAt = offset;
+			offset = align(offset + 4L * phrasesNumber);
+			phraseFlags = offset;
+			offset = align(offset + 4L * phrasesNumber);
+			for (int i = 0; i < STRING_COLUMNS; i++) {
+				phraseStrings[i] = offset;
+				offset = align(offset + 4L * phrasesNumber);
+			}
+			revisionStarts = offset;
+			offset = align(offset + 4L * (phrasesNumber + 1L));
+
+			revisionIds = offset;
+			offset = align(offset + 8L * revisionsNumber);
+			revisionCreatedAt = offset;
+			offset = align(offset + 4L * revisionsNumber);
+			revisionMistakes = offset;
+			offset = align(offset + 4L * revisionsNumber);
+			revisionTypos = offset;
+			offset = align(offset + 4L * revisionsNumber);
+
+			stringOffsets = offset;
+			offset = align(offset + 4L * (stringsNumber + 1L));
+			stringChars = offset;
+			length = align(offset + 2L * charsNumber);
+		}
+
+		private static long align(long offset) {
+			return (offset + 7) & ~7L;
+		}
+	}
+
+	/**
+	 * Builds the string table and the layout, then fills a buffer.
+	 */
+	private static final class Writer {
+
+		final List<PhraseEntry> phrases;
+
+		final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+
+		final List<String> strings = new ArrayList<String>();
+
+		final int[][] phraseStrings;
+
+		int revisionsNumber = 0;
+
+		int charsNumber = 0;
+
+		final boolean sorted;
+
+		final Layout layout;
+
+		Writer(List<PhraseEntry> phrases) throws IOException {
+			this.phrases = phrases;
+			phraseStrings = new int[STRING_COLUMNS][phrases.size()];
+
+			boolean ascending = true;
+			for (int i = 0; i < phrases.size(); i++) {
+				PhraseEntry pe = phrases.get(i);
+
+				phraseStrings[LANG_A][i] = indexOf(pe.getLangA());
+				phraseStrings[LANG_B][i] = indexOf(pe.getLangB());
+				phraseStrings[LANG_A_TEXT][i] = indexOf(pe.getLangAText());
+				phraseStrings[LANG_B_TEXT][i] = indexOf(pe.getLangBText());
+				phraseStrings[LABEL][i] = indexOf(pe.getLabel());
+
+				revisionsNumber += pe.getRevisions().size();
+				ascending &= i == 0
+						|| phrases.get(i - 1).getId() < pe.getId();
+			}
+			sorted = ascending;
+
+			layout = new Layout(phrases.size(), revisionsNumber,
+					strings.size(), charsNumber);
+			if (layout.length > Integer.MAX_VALUE) {
+				throw new IOException("dictionary too large"); //$NON-NLS-1$
+			}
+		}
+
+		private int indexOf(String s) {
+			if (s == null) {
+				s = ""; //$NON-NLS-1$
+			}
+
+			Integer index = stringIndexes.get(s);
+			if (index == null) {
+				index = strings.size();
+				stringIndexes.put(s, index);
+				strings.add(s);
+				charsNumber += s.length();
+			}
+
+			return index;
+		}
+
+		void writeTo(ByteBuffer buffer) {
+			int n = phrases.size();
+
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, n);
+			buffer.putInt(12, revisionsNumber);
+			buffer.putInt(16, strings.size());
+			buffer.putInt(20, charsNumber);
+			buffer.putInt(24, sorted ? FLAG_SORTED : 0);
+
+			LongBuffer ids = slice(buffer, layout.phraseIds).asLongBuffer();
+			IntBuffer createdAt = slice(buffer, layout.phraseCreatedAt)
+					.asIntBuffer();
+			IntBuffer phraseFlags = slice(buffer, layout.phraseFlags)
+					.asIntBuffer();
+			IntBuffer starts = slice(buffer, layout.revisionStarts)
+					.asIntBuffer();
+
+			LongBuffer revisionIds = slice(buffer, layout.revisionIds)
+					.asLongBuffer();
+			IntBuffer revisionCreatedAt = slice(buffer,
+					layout.revisionCreatedAt).asIntBuffer();
+			IntBuffer mistakes = slice(buffer, layout.revisionMistakes)
+					.asIntBuffer();
+			IntBuffer typos = slice(buffer, layout.revisionTypos)
+					.asIntBuffer();
+
+			int revision = 0;
+			for (int i = 0; i < n; i++) {
+				PhraseEntry pe = phrases.get(i);
+
+				ids.put(pe.getId());
+				createdAt.put(DBUtils.getIntFromDateTime(pe.getCreatedAt()));
+				phraseFlags.put(pe.isInRevisions() ? PHRASE_IN_REVISIONS : 0);
+				starts.put(revision);
+
+				List<RevisionEntry> revisions = pe.getRevisions();
+				if (revisions instanceof PackedRevisionList) {
+					// Without creating views.
+					PackedRevisionList packed = (PackedRevisionList) revisions;
+					for (int j = 0; j < packed.size(); j++) {
+						revisionIds.put(packed.getId(j));
+						revisionCreatedAt.put(packed.getCreatedAtSeconds(j));
+						mistakes.put(packed.getMistakes(j));
+						typos.put(packed.getTypos(j));
+					}
+				} else {
+					for (RevisionEntry re : revisions) {
+						revisionIds.put(re.getId());
+						revisionCreatedAt.put(DBUtils.getIntFromDateTime(re
+								.getCreatedAt()));
+						mistakes.put(re.getMistakes());
+						typos.put(re.getTypos());
+					}
+				}
+				revision += revisions.size();
+			}
+			starts.put(revision);
+
+			for (int i = 0; i < STRING_COLUMNS; i++) {
+				slice(buffer, layout.phraseStrings[i]).asIntBuffer().put(
+						phraseStrings[i]);
+			}
+
+			IntBuffer offsets = slice(buffer, layout.stringOffsets)
+					.asIntBuffer();
+			CharBuffer chars = slice(buffer, layout.stringChars)
+					.asCharBuffer();
+			int offset = 0;
+			for (String s : strings) {
+				offsets.put(offset);
+				chars.put(s);
+				offset += s.length();
+			}
+			offsets.put(offset);
+		}
+	}
+}
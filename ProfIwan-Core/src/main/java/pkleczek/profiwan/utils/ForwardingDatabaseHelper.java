@@ -0,0 +1,95 @@
+package pkleczek.profiwan.utils;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.DueForecast;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+/**
+ * A database helper which forwards all its method calls to another database
+ * helper. Subclasses override methods to decorate the backing helper.
+ * 
+ * @author Pawel
+ * 
+ */
+public abstract class ForwardingDatabaseHelper implements DatabaseHelper {
+
+	/**
+	 * Returns the backing helper which methods are forwarded to.
+	 */
+	protected abstract DatabaseHelper delegate();
+
+	public void beginTransaction() {
+		delegate().beginTransaction();
+	}
+
+	public void setTransactionSuccessful() {
+		delegate().setTransactionSuccessful();
+	}
+
+	public void endTransaction() {
+		delegate().endTransaction();
+	}
+
+	public long createPhrase(PhraseEntry phrase) {
+		return delegate().createPhrase(phrase);
+	}
+
+	public int updatePhrase(PhraseEntry phrase) {
+		return delegate().updatePhrase(phrase);
+	}
+
+	public void deletePhrase(long phrase_id) {
+		delegate().deletePhrase(phrase_id);
+	}
+
+	public long createRevision(RevisionEntry revision, long phrase_id) {
+		return delegate().createRevision(revision, phrase_id);
+	}
+
+	public int createPhrases(Iterable<PhraseEntry> phrases) {
+		return delegate().createPhrases(phrases);
+	}
+
+	public int createRevisions(Iterable<PhraseEntry> phrases) {
+		return delegate().createRevisions(phrases);
+	}
+
+	public int updateRevision(RevisionEntry revision) {
+		return delegate().updateRevision(revision);
+	}
+
+	public List<PhraseEntry> getDictionary() {
+		return delegate().getDictionary();
+	}
+
+	public List<PhraseEntry> getPhrases(Collection<Long> ids) {
+		return delegate().getPhrases(ids);
+	}
+
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		return delegate().getDuePhrases(dueDate);
+	}
+
+	public PhraseCursor openDictionary() {
+		return delegate().openDictionary();
+	}
+
+	public PhraseCursor openDuePhrases(DateTime dueDate) {
+		return delegate().openDuePhrases(dueDate);
+	}
+
+	public List<DailyStats> getDailyStats(LocalDate from, LocalDate to) {
+		return delegate().getDailyStats(from, to);
+	}
+
+	public DueForecast getDueForecast(LocalDate start, int days) {
+		return delegate().getDueForecast(start, days);
+	}
+}
@@ -0,0 +1,334 @@
+package pkleczek.profiwan.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.DueForecast;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+/**
+ * A database helper which reports the latency of every call to the backing
+ * helper to {@link Metrics} (a timer per method, named by the constants of
+ * this class, whose count is the number of calls), and counts calls which
+ * failed with an exception.
+ * <p>
+ * Calls opening cursors are timed till the cursor is returned. Flushing and
+ * closing are forwarded to the backing helper if it supports them.
+ *
+ * @author Pawel
+ *
+ */
+public class InstrumentedDatabaseHelper extends ForwardingDatabaseHelper
+		implements Flushable, Closeable {
+
+	public static final String PREFIX = "db."; //$NON-NLS-1$
+
+	public static final String BEGIN_TRANSACTION = PREFIX + "beginTransaction"; //$NON-NLS-1$
+	public static final String SET_TRANSACTION_SUCCESSFUL = PREFIX + "setTransactionSuccessful"; //$NON-NLS-1$
+	public static final String END_TRANSACTION = PREFIX + "endTransaction"; //$NON-NLS-1$
+	public static final String CREATE_PHRASE = PREFIX + "createPhrase"; //$NON-NLS-1$
+	public static final String UPDATE_PHRASE = PREFIX + "updatePhrase"; //$NON-NLS-1$
+	public static final String DELETE_PHRASE = PREFIX + "deletePhrase"; //$NON-NLS-1$
+	public static final String CREATE_REVISION = PREFIX + "createRevision"; //$NON-NLS-1$
+	public static final String CREATE_PHRASES = PREFIX + "createPhrases"; //$NON-NLS-1$
+	public static final String CREATE_REVISIONS = PREFIX + "createRevisions"; //$NON-NLS-1$
+	public static final String UPDATE_REVISION = PREFIX + "updateRevision"; //$NON-NLS-1$
+	public static final String GET_DICTIONARY = PREFIX + "getDictionary"; //$NON-NLS-1$
+	public static final String GET_PHRASES = PREFIX + "getPhrases"; //$NON-NLS-1$
+	public static final String GET_DUE_PHRASES = PREFIX + "getDuePhrases"; //$NON-NLS-1$
+	public static final String OPEN_DICTIONARY = PREFIX + "openDictionary"; //$NON-NLS-1$
+	public static final String OPEN_DUE_PHRASES = PREFIX + "openDuePhrases"; //$NON-NLS-1$
+	public static final String GET_DAILY_STATS = PREFIX + "getDailyStats"; //$NON-NLS-1$
+	public static final String GET_DUE_FORECAST = PREFIX + "getDueForecast"; //$NON-NLS-1$
+	public static final String FLUSH = PREFIX + "flush"; //$NON-NLS-1$
+
+	/**
+	 * Counter of calls which threw an exception. {@link SQLiteDatabaseHelper}
+	 * swallows SQL errors, so it reports them under this name itself if given
+	 * the metrics.
+	 */
+	public static final String ERRORS = PREFIX + "errors"; //$NON-NLS-1$
+
+	private final DatabaseHelper delegate;
+
+	private final Metrics metrics;
+
+	public InstrumentedDatabaseHelper(DatabaseHelper delegate, Metrics metrics) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+	}
+
+	@Override
+	protected DatabaseHelper delegate() {
+		return delegate;
+	}
+
+	@Override
+	public void beginTransaction() {
+		long startNanos = System.nanoTime();
+
+		try {
+			super.beginTransaction();
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(BEGIN_TRANSACTION, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public void setTransactionSuccessful() {
+		long startNanos = System.nanoTime();
+
+		try {
+			super.setTransactionSuccessful();
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(SET_TRANSACTION_SUCCESSFUL, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public void endTransaction() {
+		long startNanos = System.nanoTime();
+
+		try {
+			super.endTransaction();
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(END_TRANSACTION, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public long createPhrase(PhraseEntry phrase) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.createPhrase(phrase);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(CREATE_PHRASE, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public int updatePhrase(PhraseEntry phrase) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.updatePhrase(phrase);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(UPDATE_PHRASE, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public void deletePhrase(long phrase_id) {
+		long startNanos = System.nanoTime();
+
+		try {
+			super.deletePhrase(phrase_id);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(DELETE_PHRASE, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public long createRevision(RevisionEntry revision, long phrase_id) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.createRevision(revision, phrase_id);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(CREATE_REVISION, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public int createPhrases(Iterable<PhraseEntry> phrases) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.createPhrases(phrases);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(CREATE_PHRASES, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public int createRevisions(Iterable<PhraseEntry> phrases) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.createRevisions(phrases);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(CREATE_REVISIONS, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public int updateRevision(RevisionEntry revision) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.updateRevision(revision);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(UPDATE_REVISION, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getDictionary() {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.getDictionary();
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(GET_DICTIONARY, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getPhrases(Collection<Long> ids) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.getPhrases(ids);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(GET_PHRASES, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.getDuePhrases(dueDate);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(GET_DUE_PHRASES, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public PhraseCursor openDictionary() {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.openDictionary();
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(OPEN_DICTIONARY, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public PhraseCursor openDuePhrases(DateTime dueDate) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.openDuePhrases(dueDate);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(OPEN_DUE_PHRASES, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public List<DailyStats> getDailyStats(LocalDate from, LocalDate to) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.getDailyStats(from, to);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(GET_DAILY_STATS, System.nanoTime() - startNanos);
+		}
+	}
+
+	@Override
+	public DueForecast getDueForecast(LocalDate start, int days) {
+		long startNanos = System.nanoTime();
+
+		try {
+			return super.getDueForecast(start, days);
+		} catch (RuntimeException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(GET_DUE_FORECAST, System.nanoTime() - startNanos);
+		}
+	}
+
+	public void flush() throws IOException {
+		if (!(delegate instanceof Flushable)) {
+			return;
+		}
+
+		long startNanos = System.nanoTime();
+
+		try {
+			((Flushable) delegate).flush();
+		} catch (IOException e) {
+			metrics.count(ERRORS, 1L);
+			throw e;
+		} finally {
+			metrics.time(FLUSH, System.nanoTime() - startNanos);
+		}
+	}
+
+	public void close() throws IOException {
+		if (delegate instanceof Closeable) {
+			((Closeable) delegate).close();
+		}
+	}
+}
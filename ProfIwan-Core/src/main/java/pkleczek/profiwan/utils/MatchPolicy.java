@@ -0,0 +1,288 @@
+package pkleczek.profiwan.utils;
+
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+
+/**
+ * The <code>MatchPolicy</code> class defines when a typed answer is equal to
+ * the expected one. Accent markers (see {@link TextUtils#CUSTOM_ACCENT_MARKER})
+ * are always resolved and both texts are compared in Unicode NFC; case,
+ * whitespace and stress marks (the combining acute accent) are optionally
+ * ignored. Answers differing from the expected one by a few typos (see
+ * {@link #getMaxTypos()}) can be accepted as almost correct.
+ * <p>
+ * The expected answer is normalized once (see {@link #normalize(String)}),
+ * typed answers are then compared with it without allocations, unless they
+ * contain combining marks which have to be composed.
+ * 
+ * @author Pawel
+ * 
+ */
+public final class MatchPolicy {
+
+	/**
+	 * Texts have to be equal (after resolving accent markers).
+	 */
+	public static final MatchPolicy EXACT = new MatchPolicy(false, false,
+			false);
+
+	/**
+	 * Ignores case and surrounding or repeated whitespace.
+	 */
+	public static final MatchPolicy LENIENT = new MatchPolicy(true, true,
+			false);
+
+	private final boolean ignoreCase;
+
+	private final boolean foldWhitespace;
+
+	private final boolean ignoreStressMarks;
+
+	private final int maxTypos;
+
+	/**
+	 * @param ignoreCase
+	 *            compare characters regardless of their case
+	 * @param foldWhitespace
+	 *            ignore leading and trailing whitespace, treat runs of
+	 *            whitespace as a single space
+	 * @param ignoreStressMarks
+	 *            ignore combining acute accents (e.g. Russian stress marks)
+	 */
+	public MatchPolicy(boolean ignoreCase, boolean foldWhitespace,
+			boolean ignoreStressMarks) {
+		this(ignoreCase, foldWhitespace, ignoreStressMarks, 0);
+	}
+
+	/**
+	 * @param maxTypos
+	 *            maximum edit distance (after normalization) of an almost
+	 *            correct answer
+	 * @see #MatchPolicy(boolean, boolean, boolean)
+	 */
+	public MatchPolicy(boolean ignoreCase, boolean foldWhitespace,
+			boolean ignoreStressMarks, int maxTypos) {
+		if (maxTypos < 0) {
+			throw new IllegalArgumentException("maxTypos < 0"); //$NON-NLS-1$
+		}
+
+		this.ignoreCase = ignoreCase;
+		this.foldWhitespace = foldWhitespace;
+		this.ignoreStressMarks = ignoreStressMarks;
+		this.maxTypos = maxTypos;
+	}
+
+	public boolean isIgnoreCase() {
+		return ignoreCase;
+	}
+
+	public boolean isFoldWhitespace() {
+		return foldWhitespace;
+	}
+
+	public boolean isIgnoreStressMarks() {
+		return ignoreStressMarks;
+	}
+
+	/**
+	 * @return maximum number of typos (0 if only correct answers are
+	 *         accepted)
+	 */
+	public int getMaxTypos() {
+		return maxTypos;
+	}
+
+	/**
+	 * Returns a policy which differs from this one only by the maximum
+	 * number of typos.
+	 */
+	public MatchPolicy withMaxTypos(int maxTypos) {
+		return new MatchPolicy(ignoreCase, foldWhitespace, ignoreStressMarks,
+				maxTypos);
+	}
+
+	/**
+	 * Returns the normalized form of the expected answer, to be passed to
+	 * {@link #matches(CharSequence, String)}.
+	 */
+	public String normalize(String text) {
+		String composed = Normalizer.normalize(
+				TextUtils.getAccentedString(text), Form.NFC);
+		char[] normalized = new char[composed.length()];
+
+		return new String(normalized, 0, fold(composed, normalized));
+	}
+
+	/**
+	 * Checks whether the typed text matches the expected answer.
+	 * 
+	 * @param input
+	 *            typed text
+	 * @param normalized
+	 *            expected answer, normalized with {@link #normalize(String)}
+	 */
+	public boolean matches(CharSequence input, String normalized) {
+		if (matchesComposed(input, normalized)) {
+			return true;
+		}
+
+		// Decomposed characters are compared in NFC.
+		return hasCombiningMarks(input)
+				&& matchesComposed(Normalizer.normalize(TextUtils
+						.getAccentedString(input.toString()), Form.NFC),
+						normalized);
+	}
+
+	/**
+	 * Computes the number of typos in the typed text.
+	 * 
+	 * @param input
+	 *            typed text
+	 * @param answer
+	 *            expected answer (its normalized form)
+	 * @param buffer
+	 *            buffer for the normalized text (answers longer than it are
+	 *            rejected, so its length should be at least the answer's
+	 *            length plus the maximum number of typos)
+	 * @return edit distance, or <code>getMaxTypos() + 1</code> if it exceeds
+	 *         the maximum
+	 */
+	int typos(CharSequence input, BoundedEditDistance answer, char[] buffer) {
+		CharSequence composed = hasCombiningMarks(input) ? Normalizer
+				.normalize(TextUtils.getAccentedString(input.toString()),
+						Form.NFC) : input;
+
+		int length = fold(composed, buffer);
+		if (length < 0) {
+			return maxTypos + 1;
+		}
+
+		return answer.distance(buffer, length, maxTypos);
+	}
+
+	/**
+	 * Writes the composed text, as normalized, to the buffer.
+	 * 
+	 * @return length of the normalized text, or -1 if it does not fit
+	 */
+	private int fold(CharSequence text, char[] buffer) {
+		int length = 0;
+
+		boolean pendingSpace = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = fold(text.charAt(i));
+
+			if (ignoreStressMarks && c == TextUtils.UNICODE_ACCENT_MARKER_CHAR) {
+				continue;
+			}
+			if (foldWhitespace && isWhitespace(c)) {
+				pendingSpace = length > 0;
+				continue;
+			}
+
+			if (length + (pendingSpace ? 2 : 1) > buffer.length) {
+				return -1;
+			}
+			if (pendingSpace) {
+				buffer[length++] = ' ';
+				pendingSpace = false;
+			}
+			buffer[length++] = c;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Compares the text, as if it was normalized, with the normalized
+	 * answer (assumes that the text is composed).
+	 */
+	private boolean matchesComposed(CharSequence input, String normalized) {
+		int length = normalized.length();
+		int j = 0;
+
+		boolean started = false;
+		boolean pendingSpace = false;
+		for (int i = 0; i < input.length(); i++) {
+			char c = input.charAt(i);
+
+			// The normalized answer has no markers, nor ignored characters
+			// (except for folded spaces), so equal characters match as is.
+			if (!pendingSpace && j < length && normalized.charAt(j) == c
+					&& c != ' ') {
+				j++;
+				started = true;
+				continue;
+			}
+
+			c = fold(c);
+
+			if (ignoreStressMarks && c == TextUtils.UNICODE_ACCENT_MARKER_CHAR) {
+				continue;
+			}
+			if (foldWhitespace && isWhitespace(c)) {
+				pendingSpace = started;
+				continue;
+			}
+
+			if (pendingSpace) {
+				if (j == length || normalized.charAt(j) != ' ') {
+					return false;
+				}
+				j++;
+				pendingSpace = false;
+			}
+			if (j == length || normalized.charAt(j) != c) {
+				return false;
+			}
+			j++;
+			started = true;
+		}
+
+		return j == length;
+	}
+
+	private char fold(char c) {
+		if (c == TextUtils.CUSTOM_ACCENT_MARKER_CHAR) {
+			c = TextUtils.UNICODE_ACCENT_MARKER_CHAR;
+		}
+
+		return ignoreCase ? Character.toLowerCase(c) : c;
+	}
+
+	/**
+	 * Same as {@link Character#isWhitespace(char)} (which is true only for
+	 * control characters, the space and separators from U+1680 up), but
+	 * without a table lookup for most characters.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' '
+				|| ((c < ' ' || c >= '\u1680') && Character.isWhitespace(c));
+	}
+
+	private static boolean hasCombiningMarks(CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+
+			if (c == TextUtils.CUSTOM_ACCENT_MARKER_CHAR) {
+				return true;
+			}
+
+			// No marks among Latin and basic Cyrillic letters.
+			if (c < '\u0300' || (c >= '\u0400' && c < '\u0483')) {
+				continue;
+			}
+
+			switch (Character.getType(c)) {
+			case Character.NON_SPACING_MARK:
+			case Character.COMBINING_SPACING_MARK:
+			case Character.ENCLOSING_MARK:
+				return true;
+			default:
+				break;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,48 @@
+package pkleczek.profiwan.utils;
+
+/**
+ * The <code>Metrics</code> interface receives measurements of the
+ * application: counters, latencies and gauges, identified by names. It is the
+ * point where a monitoring system is plugged in (see {@link SimpleMetrics}
+ * for an in-memory implementation); {@link #NONE} discards everything.
+ * <p>
+ * Implementations are called on hot paths from many threads, so they should
+ * be thread-safe and must not block.
+ *
+ * @author Pawel
+ *
+ */
+public interface Metrics {
+
+	/**
+	 * Metrics which discard all measurements.
+	 */
+	Metrics NONE = new Metrics() {
+		public void count(String name, long delta) {
+		}
+
+		public void time(String name, long nanos) {
+		}
+
+		public void gauge(String name, long value) {
+		}
+	};
+
+	/**
+	 * Adds to the counter.
+	 */
+	void count(String name, long delta);
+
+	/**
+	 * Records the duration of an operation.
+	 *
+	 * @param nanos
+	 *            duration in nanoseconds
+	 */
+	void time(String name, long nanos);
+
+	/**
+	 * Sets the current value of the gauge.
+	 */
+	void gauge(String name, long value);
+}
@@ -0,0 +1,23 @@
+package pkleczek.profiwan.utils;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import pkleczek.profiwan.model.PhraseEntry;
+
+/**
+ * The <code>PhraseCursor</code> interface represents a lazily read sequence of
+ * phrases (with their revisions). A cursor holds database resources until it
+ * is exhausted or closed.
+ * 
+ * @author Pawel
+ * 
+ */
+public interface PhraseCursor extends Iterator<PhraseEntry>, Closeable {
+
+	/**
+	 * Releases resources held by the cursor. Closing an already closed cursor
+	 * has no effect.
+	 */
+	void close();
+}
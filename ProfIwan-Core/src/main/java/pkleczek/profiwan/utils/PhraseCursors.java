@@ -0,0 +1,68 @@
+package pkleczek.profiwan.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import pkleczek.profiwan.model.PhraseEntry;
+
+/**
+ * Static utility methods pertaining to {@link PhraseCursor} instances.
+ * 
+ * @author Pawel
+ * 
+ */
+public final class PhraseCursors {
+
+	private PhraseCursors() {
+	}
+
+	/**
+	 * Returns a cursor with no phrases.
+	 */
+	public static PhraseCursor empty() {
+		return of(Collections.<PhraseEntry> emptyList());
+	}
+
+	/**
+	 * Returns a cursor over phrases which are already in memory.
+	 */
+	public static PhraseCursor of(Iterable<PhraseEntry> phrases) {
+		final Iterator<PhraseEntry> it = phrases.iterator();
+
+		return new PhraseCursor() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public PhraseEntry next() {
+				return it.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Reads all remaining phrases and closes the cursor.
+	 */
+	public static List<PhraseEntry> toList(PhraseCursor cursor) {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+
+		try {
+			while (cursor.hasNext()) {
+				phrases.add(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return phrases;
+	}
+}
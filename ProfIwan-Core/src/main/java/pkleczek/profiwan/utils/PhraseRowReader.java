@@ -0,0 +1,230 @@
+package pkleczek.profiwan.utils;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DueForecast;
+import pkleczek.profiwan.model.PackedRevisionList;
+import pkleczek.profiwan.model.PhraseEntry;
+
+/**
+ * The <code>PhraseRowReader</code> class groups rows of a phrase-revision join
+ * (see {@link #getSelectQuery(String)}) into phrases with their revisions
+ * while streaming over the result set.
+ * 
+ * @author Pawel
+ * 
+ */
+public class PhraseRowReader {
+
+	/**
+	 * Maximum number of IDs listed in a single query (to keep the query's
+	 * length reasonable).
+	 */
+	private static final int MAX_IDS_PER_QUERY = 1000;
+
+	/**
+	 * Counts phrases in revision by the next revision date (read from the
+	 * index only).
+	 */
+	static final String COUNT_DUE_PHRASES_QUERY = "SELECT "
+			+ DatabaseHelper.KEY_PHRASE_NEXT_DUE + ",count(*) FROM "
+			+ DatabaseHelper.TABLE_PHRASE + " WHERE "
+			+ DatabaseHelper.KEY_PHRASE_IN_REVISION + "=1 AND "
+			+ DatabaseHelper.KEY_PHRASE_NEXT_DUE + "<:"
+			+ DatabaseHelper.KEY_PHRASE_NEXT_DUE + " GROUP BY "
+			+ DatabaseHelper.KEY_PHRASE_NEXT_DUE + ";";
+
+	/**
+	 * Selects phrases in revision due until the given time (see
+	 * {@link #getSelectQuery(String)}).
+	 */
+	static final String SELECT_DUE_PHRASES_QUERY = getSelectQuery(
+			DatabaseHelper.TABLE_PHRASE + "."
+			+ DatabaseHelper.KEY_PHRASE_IN_REVISION + "=1 AND "
+			+ DatabaseHelper.TABLE_PHRASE + "."
+			+ DatabaseHelper.KEY_PHRASE_NEXT_DUE + "<=:"
+			+ DatabaseHelper.KEY_PHRASE_NEXT_DUE);
+
+	private final ResultSet rs;
+
+	/**
+	 * <code>true</code> if the result set is positioned on a row which has not
+	 * been read yet.
+	 */
+	private boolean hasRow = false;
+
+	private boolean started = false;
+
+	public PhraseRowReader(ResultSet rs) {
+		this.rs = rs;
+	}
+
+	/**
+	 * Returns a query selecting phrases (satisfying the given condition) with
+	 * their revisions in a single ordered join.
+	 * 
+	 * @param phraseCondition
+	 *            SQL condition on the phrase table, or <code>null</code> for
+	 *            all phrases
+	 * @return the query
+	 */
+	public static String getSelectQuery(String phraseCondition) {
+		String p = DatabaseHelper.TABLE_PHRASE;
+		String r = DatabaseHelper.TABLE_REVISION;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT ").append(p).append(".*,");
+		sb.append(r).append('.').append(DatabaseHelper.KEY_ID)
+				.append(" AS ").append(DatabaseHelper.KEY_JOIN_REVISION_ID)
+				.append(',');
+		sb.append(r).append('.').append(DatabaseHelper.KEY_CREATED_AT)
+				.append(" AS ")
+				.append(DatabaseHelper.KEY_JOIN_REVISION_CREATED_AT)
+				.append(',');
+		sb.append(r).append('.').append(DatabaseHelper.KEY_REVISION_MISTAKES)
+				.append(" AS ")
+				.append(DatabaseHelper.KEY_JOIN_REVISION_MISTAKES).append(',');
+		sb.append(r).append('.').append(DatabaseHelper.KEY_REVISION_TYPOS)
+				.append(" AS ")
+				.append(DatabaseHelper.KEY_JOIN_REVISION_TYPOS);
+		sb.append(" FROM ").append(p).append(" LEFT JOIN ").append(r);
+		sb.append(" ON ").append(r).append('.')
+				.append(DatabaseHelper.KEY_REVISION_PHRASE_ID).append('=')
+				.append(p).append('.').append(DatabaseHelper.KEY_ID);
+
+		if (phraseCondition != null) {
+			sb.append(" WHERE ").append(phraseCondition);
+		}
+
+		sb.append(" ORDER BY ").append(p).append('.')
+				.append(DatabaseHelper.KEY_ID).append(',').append(r)
+				.append('.').append(DatabaseHelper.KEY_CREATED_AT).append(',')
+				.append(r).append('.').append(DatabaseHelper.KEY_ID)
+				.append(';');
+
+		return sb.toString();
+	}
+
+	/**
+	 * Returns queries selecting phrases with the given IDs (see
+	 * {@link #getSelectQuery(String)}). Executed in turn, they return the
+	 * phrases ordered by ID.
+	 * 
+	 * @param ids
+	 *            phrases' IDs
+	 * @return the queries (none if there are no IDs)
+	 */
+	public static List<String> getSelectQueries(Collection<Long> ids) {
+		List<String> queries = new ArrayList<String>();
+		Iterator<Long> it = new TreeSet<Long>(ids).iterator();
+
+		while (it.hasNext()) {
+			StringBuilder condition = new StringBuilder();
+			condition.append(DatabaseHelper.TABLE_PHRASE).append('.')
+					.append(DatabaseHelper.KEY_ID).append(" IN (");
+
+			for (int i = 0; i < MAX_IDS_PER_QUERY && it.hasNext(); i++) {
+				if (i > 0) {
+					condition.append(',');
+				}
+				condition.append(it.next().longValue());
+			}
+			condition.append(')');
+
+			queries.add(getSelectQuery(condition.toString()));
+		}
+
+		return queries;
+	}
+
+	/**
+	 * Computes the forecast of due phrases with
+	 * {@link #COUNT_DUE_PHRASES_QUERY}.
+	 */
+	static DueForecast readDueForecast(Connection conn, LocalDate start,
+			int days) throws SQLException {
+		DueForecast forecast = new DueForecast(start, days);
+		NamedParameterStatement stmt = new NamedParameterStatement(conn,
+				COUNT_DUE_PHRASES_QUERY);
+
+		try {
+			stmt.setInt(DatabaseHelper.KEY_PHRASE_NEXT_DUE, DBUtils
+					.getIntFromDateTime(start.plusDays(days)
+							.toDateTimeAtStartOfDay()));
+
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				forecast.add(DBUtils.getDateTimeFromInt(rs.getInt(1)),
+						rs.getInt(2));
+			}
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+
+		return forecast;
+	}
+
+	/**
+	 * Reads the next phrase together with all its revisions.
+	 * 
+	 * @return the phrase or <code>null</code> if there are no more rows
+	 * @throws SQLException
+	 *             if a database access error occurs
+	 */
+	public PhraseEntry read() throws SQLException {
+		if (!started) {
+			hasRow = rs.next();
+			started = true;
+		}
+
+		if (!hasRow) {
+			return null;
+		}
+
+		PhraseEntry entry = readPhrase();
+
+		PackedRevisionList revisions = new PackedRevisionList();
+		entry.setRevisions(revisions);
+
+		do {
+			long revisionId = rs.getLong(DatabaseHelper.KEY_JOIN_REVISION_ID);
+			if (!rs.wasNull()) {
+				revisions.add(revisionId,
+						rs.getInt(DatabaseHelper.KEY_JOIN_REVISION_CREATED_AT),
+						rs.getInt(DatabaseHelper.KEY_JOIN_REVISION_MISTAKES),
+						rs.getInt(DatabaseHelper.KEY_JOIN_REVISION_TYPOS));
+			}
+
+			hasRow = rs.next();
+		} while (hasRow && rs.getLong(DatabaseHelper.KEY_ID) == entry.getId());
+
+		revisions.trimToSize();
+
+		return entry;
+	}
+
+	private PhraseEntry readPhrase() throws SQLException {
+		PhraseEntry entry = new PhraseEntry();
+		entry.setId(rs.getLong(DatabaseHelper.KEY_ID));
+		entry.setLangA(rs.getString(DatabaseHelper.KEY_PHRASE_LANG1));
+		entry.setLangB(rs.getString(DatabaseHelper.KEY_PHRASE_LANG2));
+		entry.setLangAText(rs.getString(DatabaseHelper.KEY_PHRASE_LANG1_TEXT));
+		entry.setLangBText(rs.getString(DatabaseHelper.KEY_PHRASE_LANG2_TEXT));
+		entry.setInRevisions(rs.getBoolean(DatabaseHelper.KEY_PHRASE_IN_REVISION));
+		entry.setCreatedAt(DBUtils.getDateTimeFromInt(rs
+				.getInt(DatabaseHelper.KEY_CREATED_AT)));
+		entry.setLabel(rs.getString(DatabaseHelper.KEY_PHRASE_LABEL));
+
+		return entry;
+	}
+}
@@ -0,0 +1,301 @@
+package pkleczek.profiwan.utils;
+
+import static pkleczek.profiwan.utils.DatabaseHelper.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+/**
+ * The <code>PhraseRowWriter</code> class holds the statements (and the
+ * binding of their parameters) which store phrases and revisions, shared by
+ * JDBC implementations of {@link DatabaseHelper}.
+ * 
+ * @author Pawel
+ * 
+ */
+final class PhraseRowWriter {
+
+	/**
+	 * Number of rows sent to the database at once by bulk inserts.
+	 */
+	static final int BATCH_SIZE = 1000;
+
+	static final String INSERT_PHRASE_QUERY = "INSERT INTO " + TABLE_PHRASE
+			+ " (" + KEY_ID + "," + KEY_PHRASE_LANG1 + "," + KEY_PHRASE_LANG2
+			+ "," + KEY_PHRASE_LANG1_TEXT + "," + KEY_PHRASE_LANG2_TEXT + ","
+			+ KEY_PHRASE_LABEL + "," + KEY_PHRASE_IN_REVISION + ","
+			+ KEY_CREATED_AT + "," + KEY_PHRASE_NEXT_DUE + ") VALUES (NULL, :"
+			+ KEY_PHRASE_LANG1 + ",:" + KEY_PHRASE_LANG2 + ",:"
+			+ KEY_PHRASE_LANG1_TEXT + ",:" + KEY_PHRASE_LANG2_TEXT + ",:"
+			+ KEY_PHRASE_LABEL + ",:" + KEY_PHRASE_IN_REVISION + ",:"
+			+ KEY_CREATED_AT + ",:" + KEY_PHRASE_NEXT_DUE + ");";
+
+	static final String UPDATE_PHRASE_QUERY = "UPDATE " + TABLE_PHRASE
+			+ " SET " + KEY_PHRASE_LANG1_TEXT + "=:" + KEY_PHRASE_LANG1_TEXT
+			+ "," + KEY_PHRASE_LANG2_TEXT + "=:" + KEY_PHRASE_LANG2_TEXT + ","
+			+ KEY_PHRASE_IN_REVISION + "=:" + KEY_PHRASE_IN_REVISION + ","
+			+ KEY_PHRASE_LABEL + "=:" + KEY_PHRASE_LABEL + ","
+			+ KEY_PHRASE_LANG1 + "=:" + KEY_PHRASE_LANG1 + ","
+			+ KEY_PHRASE_LANG2 + "=:" + KEY_PHRASE_LANG2 + ","
+			+ KEY_CREATED_AT + "=:" + KEY_CREATED_AT + ","
+			+ KEY_PHRASE_NEXT_DUE + "=:" + KEY_PHRASE_NEXT_DUE + " WHERE "
+			+ KEY_ID + "=:" + KEY_ID + ";";
+
+	static final String UPDATE_NEXT_DUE_QUERY = "UPDATE " + TABLE_PHRASE
+			+ " SET " + KEY_PHRASE_NEXT_DUE + "=:" + KEY_PHRASE_NEXT_DUE
+			+ " WHERE " + KEY_ID + "=:" + KEY_ID + ";";
+
+	static final String DELETE_PHRASE_QUERY = "DELETE FROM " + TABLE_PHRASE
+			+ " WHERE " + KEY_ID + "=:" + KEY_ID + ";";
+
+	static final String INSERT_REVISION_QUERY = "INSERT INTO "
+			+ TABLE_REVISION + " (" + KEY_ID + "," + KEY_CREATED_AT + ","
+			+ KEY_REVISION_MISTAKES + "," + KEY_REVISION_TYPOS + ","
+			+ KEY_REVISION_PHRASE_ID + ") " + "VALUES (NULL, :"
+			+ KEY_CREATED_AT + ",:" + KEY_REVISION_MISTAKES + ",:"
+			+ KEY_REVISION_TYPOS + ",:" + KEY_REVISION_PHRASE_ID + ") ;";
+
+	static final String UPDATE_REVISION_QUERY = "UPDATE " + TABLE_REVISION
+			+ " SET " + KEY_REVISION_MISTAKES + "=:" + KEY_REVISION_MISTAKES
+			+ "," + KEY_REVISION_TYPOS + "=:" + KEY_REVISION_TYPOS
+			+ " WHERE " + KEY_ID + "=:" + KEY_ID + ";";
+
+	private PhraseRowWriter() {
+	}
+
+	/**
+	 * Binds parameters of {@link #INSERT_PHRASE_QUERY} or
+	 * {@link #UPDATE_PHRASE_QUERY} (except for the ID).
+	 */
+	static void bindPhrase(NamedParameterStatement stmt, PhraseEntry phrase)
+			throws SQLException {
+		int ir = phrase.isInRevisions() ? 1 : 0;
+
+		stmt.setString(KEY_PHRASE_LANG1_TEXT, phrase.getLangAText());
+		stmt.setString(KEY_PHRASE_LANG2_TEXT, phrase.getLangBText());
+		stmt.setInt(KEY_PHRASE_IN_REVISION, ir);
+		stmt.setInt(KEY_CREATED_AT,
+				(int) (phrase.getCreatedAt().getMillis() / 1000));
+		stmt.setString(KEY_PHRASE_LABEL, phrase.getLabel());
+		stmt.setString(KEY_PHRASE_LANG1, phrase.getLangA());
+		stmt.setString(KEY_PHRASE_LANG2, phrase.getLangB());
+		stmt.setInt(KEY_PHRASE_NEXT_DUE, getNextDue(phrase));
+	}
+
+	/**
+	 * @return value of <code>next_due</code> of the phrase
+	 */
+	static int getNextDue(PhraseEntry phrase) {
+		return DBUtils.getIntFromDateTime(phrase.getNextRevisionDate());
+	}
+
+	/**
+	 * Rewrites <code>next_due</code> of just inserted phrases whose next
+	 * revision date has changed with the assigned ID (the anti-stacking jitter
+	 * depends on it, and the phrases are bound before they get their IDs).
+	 * Should be called inside the transaction of the insert.
+	 * 
+	 * @param boundNextDue
+	 *            values bound on insert
+	 * @return number of updated phrases
+	 */
+	static int updateNextDue(Connection conn, List<PhraseEntry> phrases,
+			int[] boundNextDue) throws SQLException {
+		NamedParameterStatement stmt = null;
+		int updated = 0;
+
+		try {
+			for (int i = 0; i < phrases.size(); i++) {
+				PhraseEntry phrase = phrases.get(i);
+				int nextDue = getNextDue(phrase);
+
+				if (nextDue != boundNextDue[i]) {
+					if (stmt == null) {
+						stmt = new NamedParameterStatement(conn,
+								UPDATE_NEXT_DUE_QUERY);
+					}
+					stmt.setInt(KEY_PHRASE_NEXT_DUE, nextDue);
+					stmt.setLong(KEY_ID, phrase.getId());
+					stmt.addBatch();
+					updated++;
+				}
+			}
+
+			if (stmt != null) {
+				stmt.executeBatch();
+			}
+		} finally {
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+
+		return updated;
+	}
+
+	/**
+	 * Binds parameters of {@link #INSERT_REVISION_QUERY}.
+	 */
+	static void bindRevision(NamedParameterStatement stmt,
+			RevisionEntry revision, long phrase_id) throws SQLException {
+		stmt.setInt(KEY_CREATED_AT,
+				(int) (revision.getCreatedAt().getMillis() / 1000));
+		stmt.setInt(KEY_REVISION_MISTAKES, revision.getMistakes());
+		stmt.setInt(KEY_REVISION_TYPOS, revision.getTypos());
+		stmt.setInt(KEY_REVISION_PHRASE_ID, (int) phrase_id);
+	}
+
+	/**
+	 * Inserts phrases in batches using a statement prepared (with generated
+	 * keys) for {@link #INSERT_PHRASE_QUERY}, and assigns their IDs. Has to be
+	 * called inside a transaction.
+	 * <p>
+	 * The statement should not be used for single inserts afterwards: the
+	 * driver does not reset a statement after executing its batch.
+	 * 
+	 * @return number of inserted phrases
+	 */
+	static int insertPhrases(NamedParameterStatement stmt,
+			Iterable<PhraseEntry> phrases) throws SQLException {
+		List<PhraseEntry> batch = new ArrayList<PhraseEntry>(BATCH_SIZE);
+		int created = 0;
+
+		for (PhraseEntry phrase : phrases) {
+			bindPhrase(stmt, phrase);
+			stmt.addBatch();
+			batch.add(phrase);
+
+			if (batch.size() == BATCH_SIZE) {
+				created += executePhraseBatch(stmt, batch);
+			}
+		}
+		created += executePhraseBatch(stmt, batch);
+
+		return created;
+	}
+
+	/**
+	 * Inserts all revisions of the phrases in batches using a statement
+	 * prepared (with generated keys) for {@link #INSERT_REVISION_QUERY}, and
+	 * assigns their IDs. Has to be called inside a transaction.
+	 * 
+	 * @return number of inserted revisions
+	 * @see #insertPhrases(NamedParameterStatement, Iterable)
+	 */
+	static int insertRevisions(NamedParameterStatement stmt,
+			Iterable<PhraseEntry> phrases) throws SQLException {
+		List<RevisionEntry> batch = new ArrayList<RevisionEntry>(BATCH_SIZE);
+		int created = 0;
+
+		for (PhraseEntry phrase : phrases) {
+			for (RevisionEntry revision : phrase.getRevisions()) {
+				bindRevision(stmt, revision, phrase.getId());
+				stmt.addBatch();
+				batch.add(revision);
+
+				if (batch.size() == BATCH_SIZE) {
+					created += executeRevisionBatch(stmt, batch);
+				}
+			}
+		}
+		created += executeRevisionBatch(stmt, batch);
+
+		return created;
+	}
+
+	/**
+	 * @return the last key generated by the statement
+	 */
+	static long getGeneratedKey(NamedParameterStatement stmt)
+			throws SQLException {
+		ResultSet generatedKeys = null;
+		try {
+			generatedKeys = stmt.getGeneratedKeys();
+			if (generatedKeys.next()) {
+				return generatedKeys.getLong(1);
+			} else {
+				throw new SQLException("no generated key obtained."); //$NON-NLS-1$
+			}
+		} finally {
+			if (generatedKeys != null)
+				try {
+					generatedKeys.close();
+				} catch (SQLException logOrIgnore) {
+				}
+		}
+	}
+
+	/**
+	 * Closes the statement (may be <code>null</code>), logging an error and
+	 * reporting it to the metrics as {@link InstrumentedDatabaseHelper#ERRORS}.
+	 */
+	static void closeQuietly(NamedParameterStatement stmt, Metrics metrics) {
+		if (stmt != null) {
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+				metrics.count(InstrumentedDatabaseHelper.ERRORS, 1L);
+			}
+		}
+	}
+
+	private static int executePhraseBatch(NamedParameterStatement stmt,
+			List<PhraseEntry> batch) throws SQLException {
+		if (batch.isEmpty()) {
+			return 0;
+		}
+
+		stmt.executeBatch();
+
+		int[] boundNextDue = new int[batch.size()];
+		long id = getFirstInsertedId(stmt, batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			// Bound with the previous ID.
+			boundNextDue[i] = getNextDue(batch.get(i));
+			batch.get(i).setId(id++);
+		}
+		updateNextDue(stmt.getStatement().getConnection(), batch,
+				boundNextDue);
+
+		int executed = batch.size();
+		batch.clear();
+
+		return executed;
+	}
+
+	private static int executeRevisionBatch(NamedParameterStatement stmt,
+			List<RevisionEntry> batch) throws SQLException {
+		if (batch.isEmpty()) {
+			return 0;
+		}
+
+		stmt.executeBatch();
+
+		long id = getFirstInsertedId(stmt, batch.size());
+		for (RevisionEntry revision : batch) {
+			revision.setId(id++);
+		}
+
+		int executed = batch.size();
+		batch.clear();
+
+		return executed;
+	}
+
+	/**
+	 * The driver reports only the last generated key of a batch. Inside a
+	 * transaction nobody else can insert, and <code>AUTOINCREMENT</code> keys
+	 * are assigned consecutively, so the batch got the keys ending at it.
+	 */
+	private static long getFirstInsertedId(NamedParameterStatement stmt,
+			int batchSize) throws SQLException {
+		return getGeneratedKey(stmt) - batchSize + 1;
+	}
+}
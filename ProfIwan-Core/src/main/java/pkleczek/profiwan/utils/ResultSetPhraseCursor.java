@@ -0,0 +1,97 @@
+package pkleczek.profiwan.utils;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.NoSuchElementException;
+
+import pkleczek.profiwan.model.PhraseEntry;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Cursor over a phrase-revision join (see
+ * {@link PhraseRowReader#getSelectQuery(String)}) which pulls rows from the
+ * result set on demand. An error of reading closes the cursor and is thrown
+ * (wrapped in a {@link RuntimeException}).
+ * 
+ * @author Pawel
+ * 
+ */
+public class ResultSetPhraseCursor implements PhraseCursor {
+
+	/**
+	 * Statement to close together with the result set (may be
+	 * <code>null</code>).
+	 */
+	private final Statement statement;
+
+	private final ResultSet rs;
+
+	private final PhraseRowReader reader;
+
+	private PhraseEntry next = null;
+
+	private boolean closed = false;
+
+	public ResultSetPhraseCursor(Statement statement, ResultSet rs) {
+		this.statement = statement;
+		this.rs = rs;
+		this.reader = new PhraseRowReader(rs);
+	}
+
+	public boolean hasNext() {
+		if (next == null && !closed) {
+			try {
+				next = reader.read();
+			} catch (SQLException e) {
+				close();
+				throw Throwables.propagate(e);
+			}
+
+			if (next == null) {
+				close();
+			}
+		}
+
+		return next != null;
+	}
+
+	public PhraseEntry next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		PhraseEntry entry = next;
+		next = null;
+
+		return entry;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		next = null;
+
+		try {
+			rs.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,793 @@
+package pkleczek.profiwan.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.PackedRevisionList;
+import pkleczek.profiwan.model.RevisionEntry;
+
+/**
+ * The <code>RevisionLog</code> class stores revisions in a memory-mapped,
+ * append-only file of fixed-width records.
+ * <p>
+ * A record consists of an immutable part (revision's ID, phrase's ID and
+ * creation time in epoch seconds) guarded by a CRC32 checksum, and a mutable
+ * 8-byte word (mistakes, typos and flags) which is updated in place with a
+ * single aligned write. Revision IDs grow in the order of records, so a
+ * revision is found by binary search; records of each phrase are indexed in
+ * memory.
+ * <p>
+ * Deleted revisions are only flagged, and dropped when the log is compacted:
+ * the live records are written into a side file, which is then copied over
+ * the log (the log's file is not replaced, as a file which may still be
+ * mapped cannot be renamed over on every system). On open a complete copy
+ * left by an interrupted compaction is applied, then the log is scanned and
+ * cut at the first record which is not complete (a torn append).
+ * <p>
+ * Writes reach the file (through the page cache) immediately, thus survive a
+ * crash of the process; {@link #commit()} and {@link #force()} also make them
+ * durable against a power loss. Changes made since {@link #begin()} can be
+ * undone with {@link #rollback()}, and they belong to the log only once
+ * committed: the header holds the number of committed records, and records
+ * appended after them are dropped on open, while updates of committed
+ * records are kept in memory till the commit. Thus a crash rolls back the
+ * transaction in progress (as it does SQLite's).
+ * <p>
+ * Totals of live revisions of each day are kept in memory and follow every
+ * change, so {@link #getDailyStats(LocalDate, LocalDate)} does not scan the
+ * log.
+ *
+ * @author Pawel
+ *
+ */
+public class RevisionLog implements Closeable {
+
+	public static final String COMPACTION_SUFFIX = ".compact"; //$NON-NLS-1$
+
+	private static final int MAGIC = 0x50574C32;
+
+	/**
+	 * Magic, record size, the next ID and the number of committed records
+	 * (longs), padded to a record boundary.
+	 */
+	static final int HEADER_SIZE = 32;
+
+	static final int RECORD_SIZE = 32;
+
+	private static final int NEXT_ID_OFFSET = 8;
+
+	static final int COMMITTED_OFFSET = 16;
+
+	// Offsets of the record's fields.
+	private static final int ID = 0;
+	private static final int PHRASE_ID = 8;
+	private static final int CREATED_AT = 16;
+	private static final int CHECKSUM = 20;
+	private static final int STATE = 24;
+
+	private static final int FLAG_DELETED = 1;
+
+	private static final int MIN_CAPACITY = 1024;
+
+	/**
+	 * Maximum number of records (a mapping is limited to 2 GB).
+	 */
+	private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE)
+			/ RECORD_SIZE;
+
+	/**
+	 * Size of the buffer a compacted copy is applied through.
+	 */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Minimum number of deleted records worth compacting.
+	 */
+	private static final int MIN_COMPACTED = 256;
+
+	private final File file;
+
+	private RandomAccessFile raf;
+
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Number of records the mapping has room for.
+	 */
+	private int capacity;
+
+	private int count = 0;
+
+	private int deletedCount = 0;
+
+	private long nextId = 1L;
+
+	/**
+	 * Indexes of records of each phrase (deleted ones too, till compaction).
+	 */
+	private final Map<Long, Records> phraseRecords = new HashMap<Long, Records>();
+
+	/**
+	 * Revisions, mistakes, typos and revisions without mistakes of each
+	 * (local) epoch day.
+	 */
+	private final TreeMap<Integer, int[]> dailyTotals = new TreeMap<Integer, int[]>();
+
+	/**
+	 * Number of records when the transaction began, -1 if there is none.
+	 */
+	private int transactionStart = -1;
+
+	/**
+	 * New states of committed records changed in the transaction (written at
+	 * the commit).
+	 */
+	private final Map<Integer, Long> pendingStates = new LinkedHashMap<Integer, Long>();
+
+	/**
+	 * Opens the log (creating the file if needed) and recovers it.
+	 *
+	 * @param file
+	 *            file of the log
+	 * @throws IOException
+	 *             if the file cannot be opened or is not a log
+	 */
+	public RevisionLog(File file) throws IOException {
+		this.file = file;
+		open();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			applyCompaction();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		boolean created = raf.length() < HEADER_SIZE;
+
+		long records = Math.max(0L, (raf.length() - HEADER_SIZE) / RECORD_SIZE);
+		if (records > MAX_CAPACITY) {
+			raf.close();
+			throw new IOException("log too large: " + file); //$NON-NLS-1$
+		}
+		map(Math.max(MIN_CAPACITY, (int) records));
+
+		if (created) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, RECORD_SIZE);
+			buffer.putLong(NEXT_ID_OFFSET, nextId);
+			buffer.putLong(COMMITTED_OFFSET, 0L);
+		} else if (buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != RECORD_SIZE) {
+			raf.close();
+			throw new IOException("not a revision log: " + file); //$NON-NLS-1$
+		}
+
+		recover();
+	}
+
+	private void map(int capacity) throws IOException {
+		// The file grows along with the mapping (the tail is zeroed).
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+				HEADER_SIZE + (long) capacity * RECORD_SIZE);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Finds the end of the log (dropping uncommitted records) and indexes its
+	 * records.
+	 */
+	private void recover() {
+		long lastId = 0L;
+		long committed = buffer.getLong(COMMITTED_OFFSET);
+
+		phraseRecords.clear();
+		dailyTotals.clear();
+		count = 0;
+		deletedCount = 0;
+		while (count < capacity) {
+			int position = position(count);
+			long id = buffer.getLong(position + ID);
+
+			if (id == 0L) {
+				break;
+			}
+			if (count >= committed || id <= lastId
+					|| buffer.getInt(position + CHECKSUM) != checksum(position)) {
+				// Uncommitted or torn append: later records (written out of
+				// order) are lost as well, as they must not reappear.
+				for (int i = position; i < buffer.capacity(); i += 8) {
+					buffer.putLong(i, 0L);
+				}
+				break;
+			}
+
+			lastId = id;
+			index(count);
+			addToTotals(count, buffer.getLong(position + STATE), 1);
+			if (isDeleted(count)) {
+				deletedCount++;
+			}
+			count++;
+		}
+
+		nextId = Math.max(buffer.getLong(NEXT_ID_OFFSET), lastId + 1);
+		buffer.putLong(COMMITTED_OFFSET, count);
+	}
+
+	private static int position(int record) {
+		return HEADER_SIZE + record * RECORD_SIZE;
+	}
+
+	private int checksum(int position) {
+		CRC32 crc = new CRC32();
+		for (int i = position; i < position + CHECKSUM; i++) {
+			crc.update(buffer.get(i));
+		}
+
+		return (int) crc.getValue();
+	}
+
+	private void index(int record) {
+		long phraseId = buffer.getLong(position(record) + PHRASE_ID);
+
+		Records records = phraseRecords.get(phraseId);
+		if (records == null) {
+			records = new Records();
+			phraseRecords.put(phraseId, records);
+		}
+		records.add(record);
+	}
+
+	private static long state(int mistakes, int typos, int flags) {
+		return ((long) mistakes << 32)
+				| ((long) Math.min(Math.max(typos, 0), 0xFFFF) << 16)
+				| (flags & 0xFFFF);
+	}
+
+	/**
+	 * Adds the record (in the given state) to the totals of its day, or
+	 * subtracts it if <code>sign</code> is negative. Deleted records do not
+	 * count.
+	 */
+	private void addToTotals(int record, long state, int sign) {
+		if ((state & FLAG_DELETED) != 0) {
+			return;
+		}
+
+		int day = DBUtils.getEpochDayFromInt(buffer.getInt(position(record)
+				+ CREATED_AT));
+		int mistakes = (int) (state >> 32);
+
+		int[] totals = dailyTotals.get(day);
+		if (totals == null) {
+			totals = new int[4];
+			dailyTotals.put(day, totals);
+		}
+		totals[0] += sign;
+		totals[1] += sign * Math.abs(mistakes);
+		totals[2] += sign * ((int) (state >>> 16) & 0xFFFF);
+		totals[3] += mistakes == 0 ? sign : 0;
+
+		if (totals[0] == 0) {
+			dailyTotals.remove(day);
+		}
+	}
+
+	/**
+	 * @return state of the record, including changes of the transaction
+	 */
+	private long getState(int record) {
+		Long pending = pendingStates.get(record);
+
+		return pending != null ? pending : buffer.getLong(position(record)
+				+ STATE);
+	}
+
+	private boolean isDeleted(int record) {
+		return (getState(record) & FLAG_DELETED) != 0;
+	}
+
+	/**
+	 * Changes the record's state. In a transaction committed records are
+	 * changed only in memory.
+	 */
+	private void setState(int record, long state) {
+		long previous = getState(record);
+
+		if ((previous & FLAG_DELETED) != (state & FLAG_DELETED)) {
+			deletedCount += (state & FLAG_DELETED) != 0 ? 1 : -1;
+		}
+
+		if (transactionStart >= 0 && record < transactionStart) {
+			pendingStates.put(record, state);
+		} else {
+			buffer.putLong(position(record) + STATE, state);
+		}
+
+		addToTotals(record, previous, -1);
+		addToTotals(record, state, 1);
+	}
+
+	/**
+	 * @return index of the (live) record of the revision, or -1
+	 */
+	private int find(long id) {
+		int low = 0;
+		int high = count - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleId = buffer.getLong(position(middle) + ID);
+
+			if (middleId < id) {
+				low = middle + 1;
+			} else if (middleId > id) {
+				high = middle - 1;
+			} else {
+				return isDeleted(middle) ? -1 : middle;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Appends a revision of the phrase.
+	 *
+	 * @return ID of the revision
+	 * @throws IOException
+	 *             if the log cannot grow
+	 */
+	public synchronized long append(RevisionEntry revision, long phraseId)
+			throws IOException {
+		checkOpen();
+
+		if (count == capacity) {
+			if (capacity == MAX_CAPACITY) {
+				throw new IOException("log too large: " + file); //$NON-NLS-1$
+			}
+			map((int) Math.min((long) capacity * 2, MAX_CAPACITY));
+		}
+
+		long id = nextId++;
+		int position = position(count);
+
+		buffer.putLong(position + STATE,
+				state(revision.getMistakes(), revision.getTypos(), 0));
+		buffer.putLong(position + PHRASE_ID, phraseId);
+		buffer.putInt(position + CREATED_AT,
+				DBUtils.getIntFromDateTime(revision.getCreatedAt()));
+		buffer.putLong(position + ID, id);
+		buffer.putInt(position + CHECKSUM, checksum(position));
+		buffer.putLong(NEXT_ID_OFFSET, nextId);
+
+		index(count);
+		addToTotals(count, buffer.getLong(position + STATE), 1);
+		count++;
+
+		if (transactionStart < 0) {
+			buffer.putLong(COMMITTED_OFFSET, count);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Updates numbers of mistakes and typos of the revision in place.
+	 *
+	 * @return <code>false</code> if there is no such revision
+	 */
+	public synchronized boolean update(long id, int mistakes, int typos) {
+		checkOpen();
+
+		int record = find(id);
+		if (record < 0) {
+			return false;
+		}
+
+		setState(record, state(mistakes, typos, 0));
+		return true;
+	}
+
+	/**
+	 * Deletes all revisions of the phrase.
+	 *
+	 * @return number of deleted revisions
+	 */
+	public synchronized int deletePhrase(long phraseId) {
+		checkOpen();
+
+		Records records = phraseRecords.get(phraseId);
+		if (records == null) {
+			return 0;
+		}
+
+		int deleted = 0;
+		for (int i = 0; i < records.size; i++) {
+			int record = records.indexes[i];
+
+			if (!isDeleted(record)) {
+				setState(record, getState(record) | FLAG_DELETED);
+				deleted++;
+			}
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * @return revisions of the phrase, in the order they were appended
+	 */
+	public synchronized PackedRevisionList getRevisions(long phraseId) {
+		checkOpen();
+
+		Records records = phraseRecords.get(phraseId);
+		PackedRevisionList revisions = new PackedRevisionList(
+				records != null ? records.size : 0);
+
+		if (records != null) {
+			for (int i = 0; i < records.size; i++) {
+				int position = position(records.indexes[i]);
+				long state = getState(records.indexes[i]);
+
+				if ((state & FLAG_DELETED) == 0) {
+					revisions.add(buffer.getLong(position + ID),
+							buffer.getInt(position + CREATED_AT),
+							(int) (state >> 32), (int) (state >>> 16) & 0xFFFF);
+				}
+			}
+		}
+
+		return revisions;
+	}
+
+	/**
+	 * Returns totals of the live revisions of each day of the range which has
+	 * any.
+	 *
+	 * @param from
+	 *            first day
+	 * @param to
+	 *            last day (inclusive)
+	 * @return totals in order of days
+	 */
+	public synchronized List<DailyStats> getDailyStats(LocalDate from,
+			LocalDate to) {
+		checkOpen();
+
+		List<DailyStats> stats = new ArrayList<DailyStats>();
+		int fromDay = DBUtils.getEpochDay(from);
+		int toDay = DBUtils.getEpochDay(to);
+		if (fromDay > toDay) {
+			return stats;
+		}
+
+		for (Map.Entry<Integer, int[]> e : dailyTotals.subMap(fromDay, true,
+				toDay, true).entrySet()) {
+			int[] totals = e.getValue();
+			stats.add(new DailyStats(DBUtils.getLocalDateFromEpochDay(e
+					.getKey()), totals[0], totals[1], totals[2], totals[3]));
+		}
+
+		return stats;
+	}
+
+	/**
+	 * @return number of records (including deleted ones)
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized int getDeletedCount() {
+		return deletedCount;
+	}
+
+	/**
+	 * @return <code>true</code> if at least half of the records are deleted
+	 */
+	public synchronized boolean isCompactionNeeded() {
+		return deletedCount >= MIN_COMPACTED && deletedCount * 2 >= count;
+	}
+
+	/**
+	 * Begins a transaction (transactions are not nested).
+	 */
+	public synchronized void begin() {
+		checkOpen();
+		if (transactionStart >= 0) {
+			throw new IllegalStateException("transaction in progress"); //$NON-NLS-1$
+		}
+
+		transactionStart = count;
+	}
+
+	/**
+	 * Ends the transaction, making its changes durable.
+	 */
+	public synchronized void commit() throws IOException {
+		checkTransaction();
+
+		for (Map.Entry<Integer, Long> e : pendingStates.entrySet()) {
+			buffer.putLong(position(e.getKey()) + STATE, e.getValue());
+		}
+		pendingStates.clear();
+		buffer.putLong(COMMITTED_OFFSET, count);
+
+		transactionStart = -1;
+		force();
+	}
+
+	/**
+	 * Ends the transaction, undoing its changes.
+	 */
+	public synchronized void rollback() {
+		checkTransaction();
+
+		for (Iterator<Map.Entry<Integer, Long>> it = pendingStates.entrySet()
+				.iterator(); it.hasNext();) {
+			Map.Entry<Integer, Long> e = it.next();
+			long state = buffer.getLong(position(e.getKey()) + STATE);
+
+			if ((e.getValue() & FLAG_DELETED) != (state & FLAG_DELETED)) {
+				deletedCount += (state & FLAG_DELETED) != 0 ? 1 : -1;
+			}
+			addToTotals(e.getKey(), e.getValue(), -1);
+			addToTotals(e.getKey(), state, 1);
+			it.remove();
+		}
+
+		for (int record = count - 1; record >= transactionStart; record--) {
+			int position = position(record);
+
+			if (isDeleted(record)) {
+				deletedCount--;
+			}
+			addToTotals(record, buffer.getLong(position + STATE), -1);
+
+			for (int i = 0; i < RECORD_SIZE; i += 8) {
+				buffer.putLong(position + i, 0L);
+			}
+		}
+		count = transactionStart;
+		transactionStart = -1;
+
+		for (Iterator<Records> it = phraseRecords.values().iterator(); it
+				.hasNext();) {
+			Records records = it.next();
+			while (records.size > 0
+					&& records.indexes[records.size - 1] >= count) {
+				records.size--;
+			}
+			if (records.size == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes changes through to the storage device.
+	 */
+	public synchronized void force() {
+		checkOpen();
+		buffer.force();
+	}
+
+	/**
+	 * Rewrites the log without deleted records. Revision IDs are kept.
+	 *
+	 * @return number of dropped records
+	 * @throws IOException
+	 *             if the log cannot be rewritten (it is left as it was, unless
+	 *             the compacted copy is complete: then the log is closed, and
+	 *             the copy is applied when it is opened again)
+	 */
+	public synchronized int compact() throws IOException {
+		checkOpen();
+		if (transactionStart >= 0) {
+			throw new IllegalStateException("transaction in progress"); //$NON-NLS-1$
+		}
+
+		writeCompacted(new File(file.getPath() + COMPACTION_SUFFIX));
+
+		int dropped = deletedCount;
+		buffer.force();
+		raf.close();
+		raf = null;
+		buffer = null;
+
+		try {
+			// Applies the compacted copy.
+			open();
+		} catch (IOException e) {
+			raf = null;
+			throw e;
+		}
+
+		return dropped;
+	}
+
+	/**
+	 * Writes the live records into the file. The header goes last, so the
+	 * copy is complete once it has the magic.
+	 */
+	private void writeCompacted(File compacted) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(compacted, "rw"); //$NON-NLS-1$
+		try {
+			out.setLength(0L);
+			FileChannel channel = out.getChannel();
+
+			int written = 0;
+			int record = 0;
+			while (record < count) {
+				if (isDeleted(record)) {
+					record++;
+					continue;
+				}
+
+				// Written in runs of live records.
+				int first = record;
+				while (record < count && !isDeleted(record)) {
+					record++;
+				}
+
+				ByteBuffer run = buffer.duplicate();
+				run.limit(position(record));
+				run.position(position(first));
+				writeFully(channel, run, position(written));
+				written += record - first;
+			}
+			channel.force(false);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			for (int i = 0; i < HEADER_SIZE; i++) {
+				header.put(i, buffer.get(i));
+			}
+			header.putLong(COMMITTED_OFFSET, written);
+			writeFully(channel, header, 0L);
+			channel.force(false);
+		} catch (IOException e) {
+			out.close();
+			compacted.delete();
+			throw e;
+		}
+		out.close();
+	}
+
+	/**
+	 * Copies a complete compacted copy of the log (see {@link #compact()})
+	 * over the log's file (before it is mapped), and deletes the copy.
+	 */
+	private void applyCompaction() throws IOException {
+		File compacted = new File(file.getPath() + COMPACTION_SUFFIX);
+		if (!compacted.exists()) {
+			return;
+		}
+
+		RandomAccessFile in = new RandomAccessFile(compacted, "rw"); //$NON-NLS-1$
+		try {
+			long length = -1L;
+			if (in.length() >= HEADER_SIZE && in.readInt() == MAGIC
+					&& in.readInt() == RECORD_SIZE) {
+				in.seek(COMMITTED_OFFSET);
+				length = HEADER_SIZE + in.readLong() * RECORD_SIZE;
+			}
+
+			if (length >= HEADER_SIZE && length <= in.length()) {
+				FileChannel source = in.getChannel();
+				FileChannel target = raf.getChannel();
+				ByteBuffer copied = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+
+				for (long position = 0L; position < length; position += copied
+						.limit()) {
+					copied.clear();
+					copied.limit((int) Math.min(COPY_BUFFER_SIZE, length
+							- position));
+					while (copied.hasRemaining()) {
+						if (source.read(copied, position + copied.position()) < 0) {
+							throw new IOException("truncated " + compacted); //$NON-NLS-1$
+						}
+					}
+					copied.flip();
+					writeFully(target, copied, position);
+				}
+				target.force(false);
+			}
+
+			// Not to be applied again (if it cannot be deleted).
+			in.seek(0L);
+			in.writeInt(0);
+		} finally {
+			in.close();
+		}
+
+		// Harmless if left behind.
+		compacted.delete();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer source,
+			long position) throws IOException {
+		while (source.hasRemaining()) {
+			position += channel.write(source, position);
+		}
+	}
+
+	private void checkOpen() {
+		if (raf == null) {
+			throw new IllegalStateException("log closed"); //$NON-NLS-1$
+		}
+	}
+
+	private void checkTransaction() {
+		if (transactionStart < 0) {
+			throw new IllegalStateException("no transaction in progress"); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Forces and closes the log. A transaction in progress is rolled back.
+	 */
+	public synchronized void close() {
+		if (raf == null) {
+			return;
+		}
+
+		if (transactionStart >= 0) {
+			rollback();
+		}
+
+		try {
+			buffer.force();
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		raf = null;
+		buffer = null;
+		phraseRecords.clear();
+		dailyTotals.clear();
+	}
+
+	/**
+	 * Growing list of record indexes.
+	 */
+	private static final class Records {
+
+		int[] indexes = new int[4];
+
+		int size = 0;
+
+		void add(int record) {
+			if (size == indexes.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(indexes, 0, grown, 0, size);
+				indexes = grown;
+			}
+			indexes[size++] = record;
+		}
+	}
+}
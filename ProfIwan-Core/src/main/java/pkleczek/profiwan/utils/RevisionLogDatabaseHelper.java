@@ -0,0 +1,305 @@
+package pkleczek.profiwan.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+/**
+ * A database helper which keeps phrases in the backing helper (e.g.
+ * {@link SQLiteDatabaseHelper}) and revisions in a {@link RevisionLog}.
+ * Revisions read from the backing helper are replaced by those from the log.
+ * <p>
+ * Writes to the log are serialized and belong to the transactions of this
+ * helper: they are undone along with a rolled back transaction and made
+ * durable when it is committed. Writes outside transactions are not forced to
+ * the storage device (they survive a crash of the process, but not
+ * necessarily a power loss, as in SQLite's <code>NORMAL</code> synchronous
+ * mode). Revisions are visible to all threads as soon as they are written.
+ * <p>
+ * The log is compacted when at least half of its records belong to deleted
+ * phrases, after a deletion outside a transaction or at the end of one.
+ *
+ * @author Pawel
+ *
+ */
+public class RevisionLogDatabaseHelper extends ForwardingDatabaseHelper
+		implements Closeable {
+
+	private final DatabaseHelper delegate;
+
+	private final RevisionLog log;
+
+	/**
+	 * Held by a thread from the beginning till the end of its (outermost)
+	 * transaction, and by single writes.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private boolean transactionSuccessful = false;
+
+	private boolean transactionFailed = false;
+
+	/**
+	 * @param delegate
+	 *            backing helper storing phrases
+	 * @param log
+	 *            log storing revisions (closed along with this helper)
+	 */
+	public RevisionLogDatabaseHelper(DatabaseHelper delegate, RevisionLog log) {
+		this.delegate = delegate;
+		this.log = log;
+	}
+
+	@Override
+	protected DatabaseHelper delegate() {
+		return delegate;
+	}
+
+	public RevisionLog getLog() {
+		return log;
+	}
+
+	@Override
+	public void beginTransaction() {
+		writeLock.lock();
+		super.beginTransaction();
+
+		if (writeLock.getHoldCount() == 1) {
+			log.begin();
+			transactionFailed = false;
+		}
+		transactionSuccessful = false;
+	}
+
+	@Override
+	public void setTransactionSuccessful() {
+		checkTransaction();
+		transactionSuccessful = true;
+		super.setTransactionSuccessful();
+	}
+
+	@Override
+	public void endTransaction() {
+		checkTransaction();
+
+		try {
+			transactionFailed |= !transactionSuccessful;
+			transactionSuccessful = false;
+
+			super.endTransaction();
+		} catch (RuntimeException e) {
+			// The database's changes are not committed.
+			transactionFailed = true;
+			throw e;
+		} finally {
+			try {
+				if (writeLock.getHoldCount() == 1) {
+					if (transactionFailed) {
+						log.rollback();
+					} else {
+						commitLog();
+					}
+				}
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	private void commitLog() {
+		try {
+			log.commit();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		compactIfNeeded();
+	}
+
+	private void checkTransaction() {
+		if (!writeLock.isHeldByCurrentThread()) {
+			throw new IllegalStateException("no transaction in progress"); //$NON-NLS-1$
+		}
+	}
+
+	@Override
+	public void deletePhrase(long phrase_id) {
+		writeLock.lock();
+		try {
+			super.deletePhrase(phrase_id);
+			log.deletePhrase(phrase_id);
+
+			if (writeLock.getHoldCount() == 1) {
+				compactIfNeeded();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public long createRevision(RevisionEntry revision, long phrase_id) {
+		writeLock.lock();
+		try {
+			revision.setId(log.append(revision, phrase_id));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			writeLock.unlock();
+		}
+
+		return revision.getId();
+	}
+
+	@Override
+	public int createRevisions(Iterable<PhraseEntry> phrases) {
+		int created = 0;
+
+		beginTransaction();
+		try {
+			for (PhraseEntry phrase : phrases) {
+				for (RevisionEntry revision : phrase.getRevisions()) {
+					revision.setId(log.append(revision, phrase.getId()));
+					created++;
+				}
+			}
+
+			setTransactionSuccessful();
+		} catch (IOException e) {
+			e.printStackTrace();
+			created = 0;
+		} finally {
+			endTransaction();
+		}
+
+		return created;
+	}
+
+	@Override
+	public int updateRevision(RevisionEntry revision) {
+		writeLock.lock();
+		try {
+			return log.update(revision.getId(), revision.getMistakes(),
+					revision.getTypos()) ? 1 : 0;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Compacts the log now.
+	 *
+	 * @return number of dropped records
+	 * @throws IOException
+	 *             if the log cannot be rewritten
+	 * @throws IllegalStateException
+	 *             if called inside a transaction
+	 */
+	public int compact() throws IOException {
+		writeLock.lock();
+		try {
+			if (writeLock.getHoldCount() > 1) {
+				throw new IllegalStateException("transaction in progress"); //$NON-NLS-1$
+			}
+
+			return log.compact();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void compactIfNeeded() {
+		if (log.isCompactionNeeded()) {
+			try {
+				log.compact();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private List<PhraseEntry> withRevisions(List<PhraseEntry> phrases) {
+		for (PhraseEntry phrase : phrases) {
+			phrase.setRevisions(log.getRevisions(phrase.getId()));
+		}
+
+		return phrases;
+	}
+
+	@Override
+	public List<PhraseEntry> getDictionary() {
+		return withRevisions(super.getDictionary());
+	}
+
+	@Override
+	public List<PhraseEntry> getPhrases(Collection<Long> ids) {
+		return withRevisions(super.getPhrases(ids));
+	}
+
+	@Override
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		return withRevisions(super.getDuePhrases(dueDate));
+	}
+
+	@Override
+	public PhraseCursor openDictionary() {
+		return withRevisions(super.openDictionary());
+	}
+
+	@Override
+	public PhraseCursor openDuePhrases(DateTime dueDate) {
+		return withRevisions(super.openDuePhrases(dueDate));
+	}
+
+	/**
+	 * Returns totals kept by the log (the delegate holds no revisions).
+	 */
+	@Override
+	public List<DailyStats> getDailyStats(LocalDate from, LocalDate to) {
+		return log.getDailyStats(from, to);
+	}
+
+	private PhraseCursor withRevisions(final PhraseCursor cursor) {
+		return new PhraseCursor() {
+			public boolean hasNext() {
+				return cursor.hasNext();
+			}
+
+			public PhraseEntry next() {
+				PhraseEntry phrase = cursor.next();
+				phrase.setRevisions(log.getRevisions(phrase.getId()));
+
+				return phrase;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				cursor.close();
+			}
+		};
+	}
+
+	/**
+	 * Closes the log (the backing helper is left open).
+	 */
+	public void close() {
+		writeLock.lock();
+		try {
+			log.close();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
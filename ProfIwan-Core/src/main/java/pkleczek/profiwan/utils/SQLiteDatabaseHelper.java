@@ -0,0 +1,710 @@
+package pkleczek.profiwan.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.sqlite.SQLiteConfig;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.DueForecast;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+import com.google.common.base.Throwables;
+
+/**
+ * The <code>SQLiteDatabaseHelper</code> class is the JDBC implementation of
+ * {@link DatabaseHelper}.
+ * <p>
+ * The database is used in WAL mode: all writes go through a single writer
+ * connection, which is locked for the duration of a transaction, while reads
+ * borrow reader connections from a pool (for the duration of a read, or till
+ * the cursor is closed or exhausted). Thus readers never block the writer
+ * (nor the other way round). Only a few idle readers are kept, so threads
+ * which come and go do not leave connections behind. A thread inside a
+ * transaction reads through the writer connection, so it sees its own
+ * uncommitted changes; cursors opened inside a transaction have to be closed
+ * before it ends.
+ * <p>
+ * Statements are parsed and prepared once per connection. Cursors get their
+ * own statements, as several of them may be open at once.
+ *
+ * @author Pawel
+ *
+ */
+public class SQLiteDatabaseHelper implements DatabaseHelper, Closeable {
+
+	/**
+	 * Page cache size of each connection (in pages).
+	 */
+	private static final int CACHE_SIZE = 8192;
+
+	private final String url;
+
+	private final Metrics metrics;
+
+	private final CachedConnection writer;
+
+	/**
+	 * Guards the writer connection. Held by a thread from the beginning till
+	 * the end of its (outermost) transaction, so the hold count is the
+	 * transaction's nesting depth.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private boolean transactionSuccessful = false;
+
+	private boolean transactionFailed = false;
+
+	/**
+	 * Maximum number of idle reader connections kept open.
+	 */
+	private static final int MAX_IDLE_READERS = 4;
+
+	/**
+	 * Reader connections not lent at the moment (guards
+	 * <code>closed</code>).
+	 */
+	private final Deque<CachedConnection> idleReaders = new ArrayDeque<CachedConnection>();
+
+	private boolean closed = false;
+
+	/**
+	 * Opens the database (creating or upgrading its schema if needed, see
+	 * {@link SchemaMigrator}).
+	 *
+	 * @param url
+	 *            JDBC URL of the database, e.g.
+	 *            <code>jdbc:sqlite:profiwan.db</code>
+	 * @throws SQLException
+	 *             if the database cannot be opened
+	 */
+	public SQLiteDatabaseHelper(String url) throws SQLException {
+		this(url, Metrics.NONE);
+	}
+
+	/**
+	 * Opens the database, reporting SQL errors (which are logged and
+	 * swallowed by the methods of {@link DatabaseHelper}) to the metrics as
+	 * {@link InstrumentedDatabaseHelper#ERRORS}.
+	 *
+	 * @see #SQLiteDatabaseHelper(String)
+	 */
+	public SQLiteDatabaseHelper(String url, Metrics metrics)
+			throws SQLException {
+		this.url = url;
+		this.metrics = metrics;
+
+		try {
+			Class.forName("org.sqlite.JDBC"); //$NON-NLS-1$
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("SQLite driver not found", e); //$NON-NLS-1$
+		}
+
+		writer = new CachedConnection(createConfig().createConnection(url));
+		enableWriteAheadLog(writer.connection);
+		new SchemaMigrator().migrate(writer.connection);
+	}
+
+	private static SQLiteConfig createConfig() {
+		SQLiteConfig conf = new SQLiteConfig();
+		conf.enforceForeignKeys(true);
+		// In WAL mode NORMAL is still safe against corruption; a power loss
+		// may only roll back the last transactions.
+		conf.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+		conf.setCacheSize(CACHE_SIZE);
+		conf.setTempStore(SQLiteConfig.TempStore.MEMORY);
+
+		return conf;
+	}
+
+	/**
+	 * Switches the database to WAL mode (persistent, so reader connections
+	 * opened later use it too). The driver's configuration has no constant
+	 * for it.
+	 */
+	private static void enableWriteAheadLog(Connection conn)
+			throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			ResultSet rs = stmt.executeQuery("PRAGMA journal_mode=WAL;"); //$NON-NLS-1$
+			String mode = rs.next() ? rs.getString(1) : null;
+			rs.close();
+
+			if (!"wal".equalsIgnoreCase(mode)) { //$NON-NLS-1$
+				throw new SQLException("cannot enable WAL mode: " + mode); //$NON-NLS-1$
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public void beginTransaction() {
+		writeLock.lock();
+
+		if (writeLock.getHoldCount() == 1) {
+			try {
+				writer.connection.setAutoCommit(false);
+			} catch (SQLException e) {
+				reportError(e);
+			}
+			transactionFailed = false;
+		}
+
+		transactionSuccessful = false;
+	}
+
+	public void setTransactionSuccessful() {
+		checkTransaction();
+		transactionSuccessful = true;
+	}
+
+	/**
+	 * Ends the current transaction.
+	 * 
+	 * @throws RuntimeException
+	 *             if the changes cannot be committed (they are rolled back)
+	 */
+	public void endTransaction() {
+		checkTransaction();
+
+		try {
+			transactionFailed |= !transactionSuccessful;
+			transactionSuccessful = false;
+
+			if (writeLock.getHoldCount() == 1) {
+				Connection conn = writer.connection;
+				try {
+					if (transactionFailed) {
+						conn.rollback();
+					} else {
+						conn.commit();
+					}
+				} catch (SQLException e) {
+					reportError(e);
+
+					if (!transactionFailed) {
+						// Still open (e.g. the database is busy).
+						rollbackQuietly(conn);
+						throw Throwables.propagate(e);
+					}
+				} finally {
+					try {
+						conn.setAutoCommit(true);
+					} catch (SQLException e) {
+						reportError(e);
+					}
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void rollbackQuietly(Connection conn) {
+		try {
+			conn.rollback();
+		} catch (SQLException e) {
+			reportError(e);
+		}
+	}
+
+	/**
+	 * Ends a transaction begun by a write of this helper.
+	 * 
+	 * @return <code>false</code> if the changes were not committed
+	 */
+	private boolean endOwnTransaction() {
+		try {
+			endTransaction();
+			return true;
+		} catch (RuntimeException e) {
+			// Reported already.
+			return false;
+		}
+	}
+
+	private void reportError(SQLException e) {
+		e.printStackTrace();
+		metrics.count(InstrumentedDatabaseHelper.ERRORS, 1L);
+	}
+
+	private void checkTransaction() {
+		if (!writeLock.isHeldByCurrentThread()) {
+			throw new IllegalStateException("no transaction in progress"); //$NON-NLS-1$
+		}
+	}
+
+	public long createPhrase(PhraseEntry phrase) {
+		long id = phrase.getId();
+
+		beginTransaction();
+		try {
+			NamedParameterStatement stmt = writer.prepare(
+					PhraseRowWriter.INSERT_PHRASE_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
+
+			int[] boundNextDue = { PhraseRowWriter.getNextDue(phrase) };
+			PhraseRowWriter.bindPhrase(stmt, phrase);
+			stmt.executeUpdate();
+
+			phrase.setId(PhraseRowWriter.getGeneratedKey(stmt));
+			PhraseRowWriter.updateNextDue(writer.connection,
+					Collections.singletonList(phrase), boundNextDue);
+
+			setTransactionSuccessful();
+		} catch (SQLException e) {
+			reportError(e);
+		} finally {
+			if (!endOwnTransaction()) {
+				// The generated ID has been rolled back.
+				phrase.setId(id);
+			}
+		}
+
+		return phrase.getId();
+	}
+
+	public int updatePhrase(PhraseEntry phrase) {
+		int rv = 0;
+
+		writeLock.lock();
+		try {
+			NamedParameterStatement stmt = writer.prepare(
+					PhraseRowWriter.UPDATE_PHRASE_QUERY,
+					Statement.NO_GENERATED_KEYS);
+
+			PhraseRowWriter.bindPhrase(stmt, phrase);
+			stmt.setLong(KEY_ID, phrase.getId());
+			rv = stmt.executeUpdate();
+		} catch (SQLException e) {
+			reportError(e);
+		} finally {
+			writeLock.unlock();
+		}
+
+		return rv;
+	}
+
+	public void deletePhrase(long phrase_id) {
+		writeLock.lock();
+		try {
+			NamedParameterStatement stmt = writer.prepare(
+					PhraseRowWriter.DELETE_PHRASE_QUERY,
+					Statement.NO_GENERATED_KEYS);
+
+			stmt.setLong(KEY_ID, phrase_id);
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			reportError(e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public long createRevision(RevisionEntry revision, long phrase_id) {
+		writeLock.lock();
+		try {
+			NamedParameterStatement stmt = writer.prepare(
+					PhraseRowWriter.INSERT_REVISION_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
+
+			PhraseRowWriter.bindRevision(stmt, revision, phrase_id);
+			stmt.executeUpdate();
+
+			revision.setId(PhraseRowWriter.getGeneratedKey(stmt));
+		} catch (SQLException e) {
+			reportError(e);
+		} finally {
+			writeLock.unlock();
+		}
+
+		return revision.getId();
+	}
+
+	public int updateRevision(RevisionEntry revision) {
+		int rv = 0;
+
+		writeLock.lock();
+		try {
+			NamedParameterStatement stmt = writer.prepare(
+					PhraseRowWriter.UPDATE_REVISION_QUERY,
+					Statement.NO_GENERATED_KEYS);
+
+			stmt.setInt(KEY_REVISION_MISTAKES, revision.getMistakes());
+			stmt.setInt(KEY_REVISION_TYPOS, revision.getTypos());
+			stmt.setLong(KEY_ID, revision.getId());
+			rv = stmt.executeUpdate();
+		} catch (SQLException e) {
+			reportError(e);
+		} finally {
+			writeLock.unlock();
+		}
+
+		return rv;
+	}
+
+	public int createPhrases(Iterable<PhraseEntry> phrases) {
+		NamedParameterStatement stmt = null;
+		int created = 0;
+
+		beginTransaction();
+		try {
+			// Not cached: the driver does not reset a statement after
+			// executing its batch.
+			stmt = new NamedParameterStatement(writer.connection,
+					PhraseRowWriter.INSERT_PHRASE_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
+			created = PhraseRowWriter.insertPhrases(stmt, phrases);
+
+			setTransactionSuccessful();
+		} catch (SQLException e) {
+			reportError(e);
+			created = 0;
+		} finally {
+			PhraseRowWriter.closeQuietly(stmt, metrics);
+			if (!endOwnTransaction()) {
+				created = 0;
+			}
+		}
+
+		return created;
+	}
+
+	public int createRevisions(Iterable<PhraseEntry> phrases) {
+		NamedParameterStatement stmt = null;
+		int created = 0;
+
+		beginTransaction();
+		try {
+			stmt = new NamedParameterStatement(writer.connection,
+					PhraseRowWriter.INSERT_REVISION_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
+			created = PhraseRowWriter.insertRevisions(stmt, phrases);
+
+			setTransactionSuccessful();
+		} catch (SQLException e) {
+			reportError(e);
+			created = 0;
+		} finally {
+			PhraseRowWriter.closeQuietly(stmt, metrics);
+			if (!endOwnTransaction()) {
+				created = 0;
+			}
+		}
+
+		return created;
+	}
+
+	public List<PhraseEntry> getDictionary() {
+		return PhraseCursors.toList(openDictionary());
+	}
+
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		return PhraseCursors.toList(openDuePhrases(dueDate));
+	}
+
+	public List<PhraseEntry> getPhrases(Collection<Long> ids) {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>(ids.size());
+
+		for (String query : PhraseRowReader.getSelectQueries(ids)) {
+			phrases.addAll(PhraseCursors.toList(openQuery(query)));
+		}
+
+		return phrases;
+	}
+
+	public PhraseCursor openDictionary() {
+		return openQuery(PhraseRowReader.getSelectQuery(null));
+	}
+
+	private PhraseCursor openQuery(String query) {
+		CachedConnection reader = null;
+		Statement stmt = null;
+
+		try {
+			reader = acquireReader();
+			stmt = reader.connection.createStatement();
+			ResultSet rs = stmt.executeQuery(query);
+
+			return releasingOnClose(new ResultSetPhraseCursor(stmt, rs),
+					reader);
+		} catch (SQLException e) {
+			reportError(e);
+
+			try {
+				if (stmt != null) {
+					stmt.close();
+				}
+			} catch (SQLException e1) {
+				reportError(e1);
+			}
+			releaseReader(reader);
+		}
+
+		return PhraseCursors.empty();
+	}
+
+	public PhraseCursor openDuePhrases(DateTime dueDate) {
+		CachedConnection reader = null;
+		NamedParameterStatement stmt = null;
+
+		try {
+			reader = acquireReader();
+			stmt = new NamedParameterStatement(reader.connection,
+					PhraseRowReader.SELECT_DUE_PHRASES_QUERY);
+			stmt.setInt(KEY_PHRASE_NEXT_DUE,
+					DBUtils.getIntFromDateTime(dueDate));
+
+			return releasingOnClose(
+					new ResultSetPhraseCursor(stmt.getStatement(), stmt
+							.executeQuery()), reader);
+		} catch (SQLException e) {
+			reportError(e);
+			PhraseRowWriter.closeQuietly(stmt, metrics);
+			releaseReader(reader);
+		}
+
+		return PhraseCursors.empty();
+	}
+
+	/**
+	 * Returns the cursor which gives back the reader connection once it is
+	 * closed or exhausted.
+	 */
+	private PhraseCursor releasingOnClose(final PhraseCursor cursor,
+			final CachedConnection reader) {
+		return new PhraseCursor() {
+			private boolean released = false;
+
+			public boolean hasNext() {
+				boolean hasNext = cursor.hasNext();
+				if (!hasNext) {
+					close();
+				}
+
+				return hasNext;
+			}
+
+			public PhraseEntry next() {
+				return cursor.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				cursor.close();
+
+				if (!released) {
+					released = true;
+					releaseReader(reader);
+				}
+			}
+		};
+	}
+
+	public List<DailyStats> getDailyStats(LocalDate from, LocalDate to) {
+		CachedConnection reader = null;
+		PreparedStatement stmt = null;
+
+		try {
+			reader = acquireReader();
+			stmt = reader.connection.prepareStatement(
+					DailyStatsTable.SELECT_QUERY);
+			stmt.setInt(1, DBUtils.getEpochDay(from));
+			stmt.setInt(2, DBUtils.getEpochDay(to));
+
+			return DailyStatsTable.read(stmt.executeQuery());
+		} catch (SQLException e) {
+			reportError(e);
+		} finally {
+			try {
+				if (stmt != null) {
+					stmt.close();
+				}
+			} catch (SQLException e) {
+				reportError(e);
+			}
+			releaseReader(reader);
+		}
+
+		return new ArrayList<DailyStats>();
+	}
+
+	public DueForecast getDueForecast(LocalDate start, int days) {
+		CachedConnection reader = null;
+
+		try {
+			reader = acquireReader();
+			return PhraseRowReader.readDueForecast(reader.connection, start,
+					days);
+		} catch (SQLException e) {
+			reportError(e);
+		} finally {
+			releaseReader(reader);
+		}
+
+		return new DueForecast(start, days);
+	}
+
+	/**
+	 * Backs up the database (see {@link DatabaseBackup}) through a reader
+	 * connection, so writers are not blocked meanwhile.
+	 *
+	 * @return summary of the backup
+	 * @throws IllegalStateException
+	 *             if called inside a transaction (as the backup would include
+	 *             its uncommitted changes)
+	 */
+	public DatabaseBackup.Result backup(DatabaseBackup backup)
+			throws SQLException, IOException {
+		if (writeLock.isHeldByCurrentThread()) {
+			throw new IllegalStateException("backup inside a transaction"); //$NON-NLS-1$
+		}
+
+		CachedConnection reader = acquireReader();
+		try {
+			return backup.backup(reader.connection);
+		} finally {
+			releaseReader(reader);
+		}
+	}
+
+	/**
+	 * Returns the writer connection if the current thread is inside a
+	 * transaction, and a reader connection (borrowed from the pool or opened)
+	 * otherwise. It is to be given back with
+	 * {@link #releaseReader(CachedConnection)}.
+	 */
+	private CachedConnection acquireReader() throws SQLException {
+		if (writeLock.isHeldByCurrentThread()) {
+			return writer;
+		}
+
+		synchronized (idleReaders) {
+			CachedConnection reader = idleReaders.pollFirst();
+			if (reader != null) {
+				return reader;
+			}
+		}
+
+		return new CachedConnection(createConfig().createConnection(url));
+	}
+
+	/**
+	 * Gives back the connection returned by {@link #acquireReader()} (may be
+	 * <code>null</code>). Readers beyond the idle limit are closed.
+	 */
+	private void releaseReader(CachedConnection reader) {
+		if (reader == null || reader == writer) {
+			return;
+		}
+
+		synchronized (idleReaders) {
+			if (!closed && idleReaders.size() < MAX_IDLE_READERS) {
+				// The most recently used one is lent first.
+				idleReaders.addFirst(reader);
+				return;
+			}
+		}
+
+		reader.close();
+	}
+
+	/**
+	 * @return number of idle reader connections
+	 */
+	int getIdleReadersNumber() {
+		synchronized (idleReaders) {
+			return idleReaders.size();
+		}
+	}
+
+	/**
+	 * Closes all connections. Cursors should be closed beforehand (readers
+	 * lent to open cursors are closed along with them).
+	 */
+	public void close() {
+		writeLock.lock();
+		try {
+			writer.close();
+		} finally {
+			writeLock.unlock();
+		}
+
+		synchronized (idleReaders) {
+			closed = true;
+			for (CachedConnection reader : idleReaders) {
+				reader.close();
+			}
+			idleReaders.clear();
+		}
+	}
+
+	/**
+	 * A connection with its prepared statements.
+	 */
+	private class CachedConnection {
+
+		final Connection connection;
+
+		private final Map<String, NamedParameterStatement> statements = new HashMap<String, NamedParameterStatement>();
+
+		CachedConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * Returns the statement prepared for the query, preparing it on first
+		 * use.
+		 *
+		 * @param autoGeneratedKeys
+		 *            as in
+		 *            {@link Connection#prepareStatement(String, int)}
+		 */
+		NamedParameterStatement prepare(String query, int autoGeneratedKeys)
+				throws SQLException {
+			NamedParameterStatement stmt = statements.get(query);
+
+			if (stmt == null) {
+				stmt = new NamedParameterStatement(connection, query,
+						autoGeneratedKeys);
+				statements.put(query, stmt);
+			}
+
+			return stmt;
+		}
+
+		void close() {
+			for (NamedParameterStatement stmt : statements.values()) {
+				PhraseRowWriter.closeQuietly(stmt, metrics);
+			}
+			statements.clear();
+
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				reportError(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package pkleczek.profiwan.utils;
+
+import static pkleczek.profiwan.utils.DatabaseHelper.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import pkleczek.profiwan.model.PhraseEntry;
+
+/**
+ * The <code>SchemaMigrator</code> class brings the schema of a database up to
+ * date, in place.
+ * <p>
+ * The version of a database's schema is kept in SQLite's
+ * <code>user_version</code> (0 for a new database, as well as for databases
+ * created before the versioning). Each pending migration is run in its own
+ * transaction together with the update of the version, so an interrupted
+ * upgrade resumes from the last completed migration. Migrations have to cope
+ * with databases of version 0 which already have (a part of) the schema.
+ *
+ * @author Pawel
+ *
+ */
+public class SchemaMigrator {
+
+	/**
+	 * A single step of the schema's evolution.
+	 */
+	public abstract static class Migration {
+
+		private final int version;
+
+		/**
+		 * @param version
+		 *            version of the schema after the migration
+		 */
+		protected Migration(int version) {
+			this.version = version;
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * Changes the schema (inside a transaction).
+		 *
+		 * @param conn
+		 *            connection to the database
+		 * @throws SQLException
+		 *             if the migration fails (it is rolled back)
+		 */
+		protected abstract void migrate(Connection conn) throws SQLException;
+	}
+
+	/**
+	 * Creates the tables (if needed) and adds the columns introduced after
+	 * the first release to tables which lack them.
+	 */
+	static final Migration BASELINE = new Migration(1) {
+		@Override
+		protected void migrate(Connection conn) throws SQLException {
+			Statement stmt = conn.createStatement();
+			boolean nextDueAdded = false;
+
+			try {
+				if (!hasTable(conn, TABLE_PHRASE)) {
+					stmt.executeUpdate(CREATE_TABLE_PHRASE);
+				} else if (!hasColumn(conn, TABLE_PHRASE, KEY_PHRASE_NEXT_DUE)) {
+					stmt.executeUpdate("ALTER TABLE " + TABLE_PHRASE //$NON-NLS-1$
+							+ " ADD COLUMN " + KEY_PHRASE_NEXT_DUE //$NON-NLS-1$
+							+ " INTEGER NOT NULL DEFAULT 0;"); //$NON-NLS-1$
+					nextDueAdded = true;
+				}
+
+				if (!hasTable(conn, TABLE_REVISION)) {
+					stmt.executeUpdate(CREATE_TABLE_REVISION);
+				} else if (!hasColumn(conn, TABLE_REVISION, KEY_REVISION_TYPOS)) {
+					stmt.executeUpdate("ALTER TABLE " + TABLE_REVISION //$NON-NLS-1$
+							+ " ADD COLUMN " + KEY_REVISION_TYPOS //$NON-NLS-1$
+							+ " INTEGER NOT NULL DEFAULT 0;"); //$NON-NLS-1$
+				}
+
+				if (nextDueAdded) {
+					// Until computed, all phrases would look due.
+					backfillNextDue(conn);
+				}
+			} finally {
+				stmt.close();
+			}
+		}
+	};
+
+	/**
+	 * Adds the indexes of the hot queries: the selection of phrases due for
+	 * revision (by <code>in_revision</code> and <code>next_due</code>) and the
+	 * lookup of a phrase's revisions in the phrase-revision join, covered by
+	 * the index so that revision rows are not read at all.
+	 */
+	static final Migration COVERING_INDEXES = new Migration(2) {
+		@Override
+		protected void migrate(Connection conn) throws SQLException {
+			Statement stmt = conn.createStatement();
+
+			try {
+				stmt.executeUpdate(CREATE_INDEX_PHRASE_NEXT_DUE);
+				stmt.executeUpdate(CREATE_INDEX_REVISION_PHRASE);
+			} finally {
+				stmt.close();
+			}
+		}
+	};
+
+	/**
+	 * Adds the table of daily totals of revisions, the triggers which keep
+	 * it up to date, and computes the totals of stored revisions.
+	 */
+	static final Migration DAILY_STATS = new Migration(3) {
+		@Override
+		protected void migrate(Connection conn) throws SQLException {
+			Statement stmt = conn.createStatement();
+
+			try {
+				// Derived data: a leftover table is computed anew.
+				stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE_DAILY_STATS //$NON-NLS-1$
+						+ ";"); //$NON-NLS-1$
+				stmt.executeUpdate(CREATE_TABLE_DAILY_STATS);
+				stmt.executeUpdate(DailyStatsTable.FILL_QUERY);
+
+				stmt.executeUpdate(DailyStatsTable.CREATE_TRIGGER_INSERT);
+				stmt.executeUpdate(DailyStatsTable.CREATE_TRIGGER_UPDATE);
+				stmt.executeUpdate(DailyStatsTable.CREATE_TRIGGER_DELETE);
+			} finally {
+				stmt.close();
+			}
+		}
+	};
+
+	private final List<Migration> migrations;
+
+	/**
+	 * Creates a migrator of the current schema.
+	 */
+	public SchemaMigrator() {
+		this(Arrays.asList(BASELINE, COVERING_INDEXES, DAILY_STATS));
+	}
+
+	/**
+	 * @param migrations
+	 *            migrations to versions 1, 2, 3 and so on (in this order)
+	 */
+	public SchemaMigrator(List<Migration> migrations) {
+		for (int i = 0; i < migrations.size(); i++) {
+			if (migrations.get(i).getVersion() != i + 1) {
+				throw new IllegalArgumentException(
+						"migration to version " + (i + 1) + " expected"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+
+		this.migrations = Collections
+				.unmodifiableList(new ArrayList<Migration>(migrations));
+	}
+
+	/**
+	 * @return version of the schema after all migrations
+	 */
+	public int getLatestVersion() {
+		return migrations.size();
+	}
+
+	/**
+	 * Runs the migrations pending for the database. The connection has to be
+	 * in auto-commit mode.
+	 *
+	 * @param conn
+	 *            connection to the database
+	 * @return number of migrations run
+	 * @throws SQLException
+	 *             if a migration fails, or the database has been created by a
+	 *             newer version of the schema
+	 */
+	public int migrate(Connection conn) throws SQLException {
+		int version = getVersion(conn);
+
+		if (version > getLatestVersion()) {
+			throw new SQLException("unknown schema version " + version); //$NON-NLS-1$
+		}
+
+		for (int i = version; i < migrations.size(); i++) {
+			Migration migration = migrations.get(i);
+
+			conn.setAutoCommit(false);
+			boolean successful = false;
+
+			try {
+				migration.migrate(conn);
+				setVersion(conn, migration.getVersion());
+
+				conn.commit();
+				successful = true;
+			} finally {
+				try {
+					if (!successful) {
+						conn.rollback();
+					}
+				} finally {
+					conn.setAutoCommit(true);
+				}
+			}
+		}
+
+		return migrations.size() - version;
+	}
+
+	/**
+	 * @return version of the database's schema (0 if not versioned)
+	 */
+	public static int getVersion(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			ResultSet rs = stmt.executeQuery("PRAGMA user_version;"); //$NON-NLS-1$
+			int version = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+
+			return version;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	static void setVersion(Connection conn, int version) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			// Pragmas do not take parameters.
+			stmt.executeUpdate("PRAGMA user_version=" + version + ";"); //$NON-NLS-1$ //$NON-NLS-2$
+		} finally {
+			stmt.close();
+		}
+	}
+
+	static boolean hasTable(Connection conn, String table) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement("SELECT name" //$NON-NLS-1$
+				+ " FROM sqlite_master WHERE type='table' AND name=?;"); //$NON-NLS-1$
+
+		try {
+			stmt.setString(1, table);
+			ResultSet rs = stmt.executeQuery();
+			boolean exists = rs.next();
+			rs.close();
+
+			return exists;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	static boolean hasColumn(Connection conn, String table, String column)
+			throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table //$NON-NLS-1$
+					+ ");"); //$NON-NLS-1$
+			boolean exists = false;
+			while (!exists && rs.next()) {
+				exists = column.equalsIgnoreCase(rs.getString("name")); //$NON-NLS-1$
+			}
+			rs.close();
+
+			return exists;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Computes the next revision dates of phrases in revisions.
+	 */
+	private static void backfillNextDue(Connection conn) throws SQLException {
+		Statement select = conn.createStatement();
+		PreparedStatement update = conn.prepareStatement("UPDATE " //$NON-NLS-1$
+				+ TABLE_PHRASE + " SET " + KEY_PHRASE_NEXT_DUE + "=? WHERE " //$NON-NLS-1$ //$NON-NLS-2$
+				+ KEY_ID + "=?;"); //$NON-NLS-1$
+
+		try {
+			ResultSet rs = select.executeQuery(PhraseRowReader
+					.getSelectQuery(TABLE_PHRASE + "." + KEY_PHRASE_IN_REVISION //$NON-NLS-1$
+							+ "=1")); //$NON-NLS-1$
+			PhraseRowReader reader = new PhraseRowReader(rs);
+
+			try {
+				PhraseEntry pe;
+				while ((pe = reader.read()) != null) {
+					update.setInt(1,
+							DBUtils.getIntFromDateTime(pe.getNextRevisionDate()));
+					update.setLong(2, pe.getId());
+					update.addBatch();
+				}
+			} finally {
+				rs.close();
+			}
+
+			update.executeBatch();
+		} finally {
+			update.close();
+			select.close();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package pkleczek.profiwan.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The <code>SimpleMetrics</code> class keeps measurements in memory: counters,
+ * gauges and latency histograms with power-of-two buckets (so percentiles
+ * are exact to a factor of 2). Recording is lock-free.
+ *
+ * @author Pawel
+ *
+ */
+public class SimpleMetrics implements Metrics {
+
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+
+	private final long startNanos = System.nanoTime();
+
+	public void count(String name, long delta) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			counter = putIfAbsent(counters, name, new AtomicLong());
+		}
+
+		counter.addAndGet(delta);
+	}
+
+	public void time(String name, long nanos) {
+		Histogram histogram = timers.get(name);
+		if (histogram == null) {
+			histogram = putIfAbsent(timers, name, new Histogram());
+		}
+
+		histogram.record(nanos);
+	}
+
+	public void gauge(String name, long value) {
+		AtomicLong gauge = gauges.get(name);
+		if (gauge == null) {
+			gauge = putIfAbsent(gauges, name, new AtomicLong());
+		}
+
+		gauge.set(value);
+	}
+
+	private static <T> T putIfAbsent(ConcurrentMap<String, T> map, String name,
+			T value) {
+		T previous = map.putIfAbsent(name, value);
+
+		return previous != null ? previous : value;
+	}
+
+	/**
+	 * @return value of the counter (0 if it has not been counted)
+	 */
+	public long getCount(String name) {
+		AtomicLong counter = counters.get(name);
+
+		return counter != null ? counter.get() : 0L;
+	}
+
+	/**
+	 * @return counts per second since the metrics were created
+	 */
+	public double getRate(String name) {
+		long nanos = Math.max(System.nanoTime() - startNanos, 1L);
+
+		return getCount(name) * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	/**
+	 * @return last value of the gauge (0 if it has not been set)
+	 */
+	public long getGauge(String name) {
+		AtomicLong gauge = gauges.get(name);
+
+		return gauge != null ? gauge.get() : 0L;
+	}
+
+	/**
+	 * @return histogram of the timer (empty if nothing has been recorded)
+	 */
+	public Histogram getTimer(String name) {
+		Histogram histogram = timers.get(name);
+
+		return histogram != null ? histogram : new Histogram();
+	}
+
+	/**
+	 * @return all measurements, one per line, ordered by names
+	 */
+	@Override
+	public String toString() {
+		Map<String, String> lines = new TreeMap<String, String>();
+
+		for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+			lines.put(e.getKey(), String.valueOf(e.getValue().get()));
+		}
+		for (Map.Entry<String, AtomicLong> e : gauges.entrySet()) {
+			lines.put(e.getKey(), String.valueOf(e.getValue().get()));
+		}
+		for (Map.Entry<String, Histogram> e : timers.entrySet()) {
+			lines.put(e.getKey(), e.getValue().toString());
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : lines.entrySet()) {
+			sb.append(e.getKey()).append(' ').append(e.getValue())
+					.append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Latency histogram. Bucket <code>i</code> counts durations below
+	 * 2<sup>i</sup> ns (and not below 2<sup>i-1</sup> ns).
+	 */
+	public static final class Histogram {
+
+		private static final int BUCKETS = 64;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			nanos = Math.max(nanos, 0L);
+
+			buckets.incrementAndGet(Math.min(BUCKETS - 1,
+					64 - Long.numberOfLeadingZeros(nanos)));
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getMeanNanos() {
+			long n = count.get();
+
+			return n > 0 ? totalNanos.get() / n : 0L;
+		}
+
+		/**
+		 * Returns the upper bound of the durations of the given fraction of
+		 * operations (at most twice the exact percentile).
+		 *
+		 * @param quantile
+		 *            fraction of operations, from (0, 1]
+		 */
+		public long getPercentileNanos(double quantile) {
+			long n = count.get();
+			if (n == 0) {
+				return 0L;
+			}
+
+			long rank = (long) Math.ceil(quantile * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(i == 0 ? 0L : (1L << i) - 1, getMaxNanos());
+				}
+			}
+
+			return getMaxNanos();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%dns p50<=%dns p99<=%dns max=%dns", //$NON-NLS-1$
+					getCount(), getMeanNanos(), getPercentileNanos(0.5),
+					getPercentileNanos(0.99), getMaxNanos());
+		}
+	}
+}
@@ -3,10 +3,14 @@ package pkleczek.profiwan.utils;
 public final class TextUtils {
 	public static final CharSequence CUSTOM_ACCENT_MARKER = "\\"; //$NON-NLS-1$
 
+	static final char CUSTOM_ACCENT_MARKER_CHAR = '\\';
+
+	static final char UNICODE_ACCENT_MARKER_CHAR = '\u0301';
+
 	private TextUtils() {}
 	
 	public static String getAccentedString(String str) {
-		final CharSequence UNICODE_ACCENT_MARKER = "\u0301"; //$NON-NLS-1$
-		return str.replace(CUSTOM_ACCENT_MARKER, UNICODE_ACCENT_MARKER);
+		// Returns the string itself if there are no markers.
+		return str.replace(CUSTOM_ACCENT_MARKER_CHAR, UNICODE_ACCENT_MARKER_CHAR);
 	}
 }
@@ -0,0 +1,614 @@
+package pkleczek.profiwan.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.DueForecast;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+/**
+ * The <code>WriteBehindDatabaseHelper</code> class buffers writes made during
+ * revisions (revisions' inserts and updates, phrases' updates) and flushes
+ * them to the backing helper in a single transaction:
+ * <ul>
+ * <li>after a given number of answers (revision updates),</li>
+ * <li>a given time after the first buffered write,</li>
+ * <li>on {@link #flush()} (e.g. at the end of a session),</li>
+ * <li>before any read and before deleting a phrase.</li>
+ * </ul>
+ * Buffered entries are kept by reference, so repeated updates of the same
+ * entry are coalesced and its state at the time of the flush is written. IDs
+ * of buffered revisions are assigned during the flush.
+ * <p>
+ * If the transaction fails, the changes are written one by one, so a change
+ * which cannot be written does not hold back the others. Such a change stays
+ * buffered till the next flush, and is dropped after
+ * {@link #MAX_WRITE_ATTEMPTS} failed writes; {@link #flush()} reports both.
+ * <p>
+ * Transactions begun through this helper are not buffered: pending changes
+ * are flushed at their beginning, and writes made inside them go straight to
+ * the backing helper (so they are committed or rolled back together). The
+ * helper is locked by the thread till the end of its transaction, so the
+ * lock of the helper is always taken before the one of the backing helper.
+ * 
+ * @author Pawel
+ * 
+ */
+public class WriteBehindDatabaseHelper extends ForwardingDatabaseHelper
+		implements Flushable, Closeable {
+
+	/**
+	 * Number of failed writes of a change after which it is dropped.
+	 */
+	public static final int MAX_WRITE_ATTEMPTS = 3;
+
+	private final DatabaseHelper delegate;
+
+	/**
+	 * Number of answers after which buffered writes are flushed (0 - no
+	 * limit).
+	 */
+	private final int maxBufferedAnswers;
+
+	/**
+	 * Time (in milliseconds) after which buffered writes are flushed (0 - no
+	 * limit).
+	 */
+	private final long maxDelayMillis;
+
+	/**
+	 * Guards the buffers. Held by a thread from the beginning till the end of
+	 * its transaction.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Nesting depth of the transaction of the thread holding the lock.
+	 */
+	private int transactionDepth = 0;
+
+	/**
+	 * Revisions to insert mapped on their phrases' IDs (in order of
+	 * creation).
+	 */
+	private final Map<RevisionEntry, Long> pendingInserts = new LinkedHashMap<RevisionEntry, Long>();
+
+	private final Set<RevisionEntry> pendingUpdates = new LinkedHashSet<RevisionEntry>();
+
+	private final Set<PhraseEntry> pendingPhraseUpdates = new LinkedHashSet<PhraseEntry>();
+
+	/**
+	 * Numbers of failed writes of buffered entries.
+	 */
+	private final Map<Object, Integer> failedWrites = new IdentityHashMap<Object, Integer>();
+
+	private int bufferedAnswers = 0;
+
+	private Timer timer = null;
+
+	private TimerTask scheduledFlush = null;
+
+	public WriteBehindDatabaseHelper(DatabaseHelper delegate,
+			int maxBufferedAnswers, long maxDelayMillis) {
+		this.delegate = delegate;
+		this.maxBufferedAnswers = maxBufferedAnswers;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	@Override
+	protected DatabaseHelper delegate() {
+		return delegate;
+	}
+
+	@Override
+	public void beginTransaction() {
+		lock.lock();
+
+		boolean begun = false;
+		try {
+			if (transactionDepth == 0) {
+				flushQuietly();
+			}
+
+			super.beginTransaction();
+			transactionDepth++;
+			begun = true;
+		} finally {
+			if (!begun) {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void setTransactionSuccessful() {
+		checkTransaction();
+		super.setTransactionSuccessful();
+	}
+
+	@Override
+	public void endTransaction() {
+		checkTransaction();
+
+		try {
+			super.endTransaction();
+		} finally {
+			transactionDepth--;
+			lock.unlock();
+		}
+	}
+
+	private void checkTransaction() {
+		if (!lock.isHeldByCurrentThread() || transactionDepth == 0) {
+			throw new IllegalStateException("no transaction in progress"); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the current thread is inside a transaction
+	 *         (to be called with the lock held)
+	 */
+	private boolean inTransaction() {
+		return transactionDepth > 0;
+	}
+
+	@Override
+	public long createPhrase(PhraseEntry phrase) {
+		lock.lock();
+		try {
+			return super.createPhrase(phrase);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int updatePhrase(PhraseEntry phrase) {
+		lock.lock();
+		try {
+			if (inTransaction()) {
+				return super.updatePhrase(phrase);
+			}
+
+			pendingPhraseUpdates.add(phrase);
+			scheduleFlush();
+
+			return 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deletePhrase(long phrase_id) {
+		lock.lock();
+		try {
+			flushQuietly();
+			super.deletePhrase(phrase_id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int createPhrases(Iterable<PhraseEntry> phrases) {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.createPhrases(phrases);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int createRevisions(Iterable<PhraseEntry> phrases) {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.createRevisions(phrases);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long createRevision(RevisionEntry revision, long phrase_id) {
+		lock.lock();
+		try {
+			if (inTransaction()) {
+				return super.createRevision(revision, phrase_id);
+			}
+
+			pendingInserts.put(revision, phrase_id);
+			scheduleFlush();
+
+			return revision.getId();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int updateRevision(RevisionEntry revision) {
+		lock.lock();
+		try {
+			if (inTransaction()) {
+				return super.updateRevision(revision);
+			}
+
+			if (!pendingInserts.containsKey(revision)) {
+				pendingUpdates.add(revision);
+			}
+
+			bufferedAnswers++;
+			if (maxBufferedAnswers > 0 && bufferedAnswers >= maxBufferedAnswers) {
+				flushQuietly();
+			} else {
+				scheduleFlush();
+			}
+
+			return 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getDictionary() {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.getDictionary();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getPhrases(Collection<Long> ids) {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.getPhrases(ids);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.getDuePhrases(dueDate);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public PhraseCursor openDictionary() {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.openDictionary();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public PhraseCursor openDuePhrases(DateTime dueDate) {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.openDuePhrases(dueDate);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<DailyStats> getDailyStats(LocalDate from, LocalDate to) {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.getDailyStats(from, to);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public DueForecast getDueForecast(LocalDate start, int days) {
+		lock.lock();
+		try {
+			flushQuietly();
+			return super.getDueForecast(start, days);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all buffered changes in a single transaction. Changes are
+	 * durable once the method returns normally. If the transaction fails, the
+	 * changes are written one by one; those which still fail stay buffered
+	 * till the next flush (or are dropped after {@link #MAX_WRITE_ATTEMPTS}
+	 * attempts).
+	 * 
+	 * @throws IOException
+	 *             if any change has not been written
+	 * @throws IllegalStateException
+	 *             if called inside a transaction
+	 */
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			if (inTransaction()) {
+				throw new IllegalStateException("flush inside a transaction"); //$NON-NLS-1$
+			}
+
+			if (scheduledFlush != null) {
+				scheduledFlush.cancel();
+				scheduledFlush = null;
+			}
+
+			bufferedAnswers = 0;
+
+			if (isEmpty()) {
+				return;
+			}
+
+			if (writeInTransaction()) {
+				clear();
+				return;
+			}
+
+			int dropped = writeSeparately();
+			int buffered = pendingInserts.size() + pendingUpdates.size()
+					+ pendingPhraseUpdates.size();
+
+			if (buffered > 0) {
+				// Retried later.
+				scheduleFlush();
+			}
+
+			if (dropped > 0 || buffered > 0) {
+				throw new IOException("buffered changes not written: " //$NON-NLS-1$
+						+ dropped + " dropped, " + buffered + " retried later"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes buffered changes (if not inside a transaction), logging a
+	 * failure. Used before operations which cannot report it.
+	 */
+	private void flushQuietly() {
+		if (inTransaction()) {
+			return;
+		}
+
+		try {
+			flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private boolean isEmpty() {
+		return pendingInserts.isEmpty() && pendingUpdates.isEmpty()
+				&& pendingPhraseUpdates.isEmpty();
+	}
+
+	private void clear() {
+		pendingInserts.clear();
+		pendingUpdates.clear();
+		pendingPhraseUpdates.clear();
+		failedWrites.clear();
+	}
+
+	/**
+	 * @return <code>false</code> if the transaction has been rolled back
+	 */
+	private boolean writeInTransaction() {
+		boolean written = false;
+
+		delegate.beginTransaction();
+		try {
+			written = writeAll();
+
+			if (written) {
+				delegate.setTransactionSuccessful();
+			}
+		} finally {
+			delegate.endTransaction();
+		}
+
+		return written;
+	}
+
+	private boolean writeAll() {
+		for (Map.Entry<RevisionEntry, Long> e : pendingInserts.entrySet()) {
+			if (!insert(e.getKey(), e.getValue())) {
+				return false;
+			}
+		}
+
+		for (RevisionEntry re : pendingUpdates) {
+			if (!update(re)) {
+				return false;
+			}
+		}
+
+		for (PhraseEntry pe : pendingPhraseUpdates) {
+			if (!update(pe)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes the changes one by one, removing the written ones and the ones
+	 * which failed too many times.
+	 * 
+	 * @return number of dropped changes
+	 */
+	private int writeSeparately() {
+		int dropped = 0;
+
+		Iterator<Map.Entry<RevisionEntry, Long>> inserts = pendingInserts
+				.entrySet().iterator();
+		while (inserts.hasNext()) {
+			Map.Entry<RevisionEntry, Long> e = inserts.next();
+			if (insert(e.getKey(), e.getValue()) || isDropped(e.getKey())) {
+				dropped += forget(e.getKey());
+				inserts.remove();
+			}
+		}
+
+		Iterator<RevisionEntry> updates = pendingUpdates.iterator();
+		while (updates.hasNext()) {
+			RevisionEntry re = updates.next();
+			if (update(re) || isDropped(re)) {
+				dropped += forget(re);
+				updates.remove();
+			}
+		}
+
+		Iterator<PhraseEntry> phraseUpdates = pendingPhraseUpdates.iterator();
+		while (phraseUpdates.hasNext()) {
+			PhraseEntry pe = phraseUpdates.next();
+			if (update(pe) || isDropped(pe)) {
+				dropped += forget(pe);
+				phraseUpdates.remove();
+			}
+		}
+
+		return dropped;
+	}
+
+	/**
+	 * Counts a failed write of the entry.
+	 * 
+	 * @return <code>true</code> if the entry is to be dropped
+	 */
+	private boolean isDropped(Object entry) {
+		Integer failed = failedWrites.get(entry);
+		int attempts = (failed == null ? 0 : failed.intValue()) + 1;
+		failedWrites.put(entry, attempts);
+
+		return attempts >= MAX_WRITE_ATTEMPTS;
+	}
+
+	/**
+	 * @return 1 if the entry has been dropped (reached the limit of failed
+	 *         writes), 0 otherwise
+	 */
+	private int forget(Object entry) {
+		Integer failed = failedWrites.remove(entry);
+
+		return failed != null && failed.intValue() >= MAX_WRITE_ATTEMPTS ? 1
+				: 0;
+	}
+
+	private boolean insert(RevisionEntry re, long phrase_id) {
+		// Assigned by a rolled back write.
+		re.setId(0);
+
+		try {
+			return delegate.createRevision(re, phrase_id) > 0;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private boolean update(RevisionEntry re) {
+		try {
+			return delegate.updateRevision(re) > 0;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private boolean update(PhraseEntry pe) {
+		try {
+			return delegate.updatePhrase(pe) > 0;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Flushes buffered changes and stops the flushing timer (changes which
+	 * have not been written are lost).
+	 * 
+	 * @throws IOException
+	 *             if any change has not been written
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			flush();
+		} finally {
+			scheduledFlush = null;
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			lock.unlock();
+		}
+	}
+
+	private void scheduleFlush() {
+		if (maxDelayMillis <= 0 || scheduledFlush != null) {
+			return;
+		}
+
+		if (timer == null) {
+			timer = new Timer(WriteBehindDatabaseHelper.class.getSimpleName(),
+					true);
+		}
+
+		scheduledFlush = new TimerTask() {
+			@Override
+			public void run() {
+				// An exception would kill the timer's thread.
+				try {
+					flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		timer.schedule(scheduledFlush, maxDelayMillis);
+	}
+}
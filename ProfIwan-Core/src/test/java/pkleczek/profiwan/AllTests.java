@@ -8,7 +8,23 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({ pkleczek.profiwan.utils.DBUtilsTest.class,
 		pkleczek.profiwan.model.PhraseEntryTest.class,
 		pkleczek.profiwan.model.RevisionEntryTest.class,
-		pkleczek.profiwan.model.RevisionsSessionTest.class})
+		pkleczek.profiwan.model.RevisionsSessionTest.class,
+		pkleczek.profiwan.model.PackedRevisionListTest.class,
+		pkleczek.profiwan.model.RevisionSchedulerTest.class,
+		pkleczek.profiwan.utils.WriteBehindDatabaseHelperTest.class,
+		pkleczek.profiwan.utils.SQLiteDatabaseHelperTest.class,
+		pkleczek.profiwan.model.RevisionsSessionManagerTest.class,
+		pkleczek.profiwan.utils.CachingDatabaseHelperTest.class,
+		pkleczek.profiwan.utils.AnswerMatcherTest.class,
+		pkleczek.profiwan.utils.BoundedEditDistanceTest.class,
+		pkleczek.profiwan.utils.DatabaseBackupTest.class,
+		pkleczek.profiwan.utils.SchemaMigratorTest.class,
+		pkleczek.profiwan.utils.RevisionLogTest.class,
+		pkleczek.profiwan.utils.RevisionLogDatabaseHelperTest.class,
+		pkleczek.profiwan.utils.DictionaryFileTest.class,
+		pkleczek.profiwan.model.DueForecastTest.class,
+		pkleczek.profiwan.utils.SimpleMetricsTest.class,
+		pkleczek.profiwan.utils.InstrumentedDatabaseHelperTest.class})
 public class AllTests {
 
 }
@@ -0,0 +1,143 @@
+package pkleczek.profiwan.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.utils.DatabaseHelper;
+import pkleczek.profiwan.utils.DatabaseHelperImplMock;
+
+public class DueForecastTest {
+
+	DatabaseHelper dbHelper = DatabaseHelperImplMock.getInstance();
+	LocalDate today;
+
+	@Before
+	public void recreateDB() throws SQLException {
+		((DatabaseHelperImplMock) dbHelper).recreateTables();
+		today = LocalDate.now();
+	}
+
+	private PhraseEntry createPhrase(long id, int daysAgo, int correctRevisions) {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setId(id);
+		pe.setLangA("pl");
+		pe.setLangB("ru");
+		pe.setLangAText("a" + id);
+		pe.setLangBText("b" + id);
+		pe.setLabel("");
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+
+		for (int i = 0; i < correctRevisions; i++) {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now().minusDays(daysAgo));
+			re.setMistakes(0);
+			pe.addRevision(re);
+		}
+
+		return pe;
+	}
+
+	private List<PhraseEntry> createPhrases(int n, long seed) {
+		Random random = new Random(seed);
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+
+		for (int i = 1; i <= n; i++) {
+			PhraseEntry pe = createPhrase(i, random.nextInt(40),
+					random.nextInt(12));
+			pe.setInRevisions(random.nextInt(10) != 0);
+			phrases.add(pe);
+		}
+
+		return phrases;
+	}
+
+	@Test
+	public void testBuckets() {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		// Never revised and long overdue.
+		phrases.add(createPhrase(1, 0, 0));
+		phrases.add(createPhrase(2, 100, 1));
+		PhraseEntry skipped = createPhrase(3, 100, 1);
+		skipped.setInRevisions(false);
+		phrases.add(skipped);
+		// Revised today.
+		PhraseEntry revised = createPhrase(4, 0, 1);
+		phrases.add(revised);
+
+		DueForecast forecast = DueForecast.compute(phrases, today, 3);
+		assertEquals(2, forecast.getDue(0));
+		assertEquals(2, forecast.getDue(today));
+		assertEquals(0, forecast.getDue(today.minusDays(1)));
+
+		DueForecast longer = DueForecast.compute(phrases, today,
+				PhraseEntry.MAX_REVISION_INTERVAL + 1);
+		assertEquals(3, longer.getTotal());
+		LocalDate due = revised.getNextRevisionDate().toLocalDate();
+		assertEquals(1, longer.getDue(due));
+		assertFalse(due.isBefore(today
+				.plusDays(PhraseEntry.MIN_REVISION_INTERVAL)));
+	}
+
+	@Test
+	public void testNoDays() {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		// Overdue.
+		phrases.add(createPhrase(1, 100, 1));
+
+		DueForecast forecast = DueForecast.compute(phrases, today, 0);
+		assertEquals(0, forecast.getDays());
+		assertEquals(0, forecast.getTotal());
+		assertFalse(forecast.add(today.minusDays(1).toDateTimeAtStartOfDay(),
+				1));
+		assertEquals(0, forecast.getDue(today));
+	}
+
+	/**
+	 * The forecast agrees with evaluating the phrases day by day.
+	 */
+	@Test
+	public void testMatchesDailyEvaluation() {
+		List<PhraseEntry> phrases = createPhrases(500, 11L);
+		DueForecast forecast = DueForecast.compute(phrases, today, 30);
+
+		int previous = 0;
+		for (int day = 0; day < 30; day++) {
+			DateTime dueDate = today.plusDays(day).toDateTimeAtStartOfDay();
+
+			int pending = 0;
+			for (PhraseEntry pe : phrases) {
+				if (pe.isReviseNow(dueDate)) {
+					pending++;
+				}
+			}
+
+			assertEquals(pending - previous, forecast.getDue(day));
+			previous = pending;
+		}
+	}
+
+	@Test
+	public void testSchedulerAndDatabase() {
+		List<PhraseEntry> phrases = createPhrases(500, 17L);
+		int[] expected = DueForecast.compute(phrases, today, 30).toArray();
+
+		assertArrayEquals(expected, new RevisionScheduler(phrases)
+				.getDueForecast(today, 30).toArray());
+
+		dbHelper.createPhrases(phrases);
+		assertArrayEquals(expected, dbHelper.getDueForecast(today, 30)
+				.toArray());
+	}
+}
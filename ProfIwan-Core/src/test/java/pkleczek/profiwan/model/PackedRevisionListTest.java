@@ -0,0 +1,101 @@
+package pkleczek.profiwan.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+public class PackedRevisionListTest {
+
+	private RevisionEntry createRevision(long id, int mistakes) {
+		RevisionEntry re = new RevisionEntry();
+		re.setId(id);
+		re.setCreatedAt(new DateTime(id * 1000L));
+		re.setMistakes(mistakes);
+		return re;
+	}
+
+	@Test
+	public void testAddGet() {
+		PackedRevisionList list = new PackedRevisionList(1);
+
+		for (int i = 1; i <= 10; i++) {
+			list.add(createRevision(i, i % 3));
+		}
+		list.add(11, 11, -1);
+
+		assertEquals(11, list.size());
+		for (int i = 0; i < list.size(); i++) {
+			RevisionEntry re = list.get(i);
+			assertEquals(i + 1, re.getId());
+			assertEquals((i + 1) * 1000L, re.getCreatedAt().getMillis());
+			assertEquals(i + 1, list.getCreatedAtSeconds(i));
+		}
+		assertEquals(-1, list.getMistakes(10));
+	}
+
+	@Test
+	public void testInsertRemove() {
+		PackedRevisionList list = new PackedRevisionList();
+		list.add(createRevision(1, 0));
+		list.add(createRevision(3, 0));
+		list.add(1, createRevision(2, 0));
+
+		assertEquals(2, list.get(1).getId());
+		assertEquals(3, list.get(2).getId());
+
+		RevisionEntry removed = list.remove(0);
+		assertEquals(1, removed.getId());
+		assertEquals(2, list.size());
+		assertEquals(2, list.getId(0));
+	}
+
+	@Test
+	public void testViewWritesThrough() {
+		PackedRevisionList list = new PackedRevisionList();
+		list.add(createRevision(1, 0));
+
+		RevisionEntry view = list.get(0);
+		view.nextMistake();
+		view.nextMistake();
+		assertEquals(-2, list.getMistakes(0));
+
+		view.enteredCorrectly();
+		assertEquals(2, list.get(0).getMistakes());
+
+		view.setId(5);
+		assertEquals(5, list.getId(0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testGetOutOfRange() {
+		PackedRevisionList list = new PackedRevisionList();
+		list.add(createRevision(1, 0));
+		list.getMistakes(1);
+	}
+
+	@Test
+	public void testRevisionFrequencyEqual() {
+		PhraseEntry packed = new PhraseEntry();
+		packed.setRevisions(new PackedRevisionList());
+
+		PhraseEntry plain = new PhraseEntry();
+		List<RevisionEntry> revisions = new ArrayList<RevisionEntry>();
+		plain.setRevisions(revisions);
+
+		int[] mistakes = { 0, 0, 0, 0, 0, 1, 0, 0, 0, 2, 0 };
+		for (int i = 0; i < mistakes.length; i++) {
+			packed.addRevision(createRevision(i, mistakes[i]));
+			plain.addRevision(createRevision(i, mistakes[i]));
+
+			assertEquals(plain.getRevisionFrequency(),
+					packed.getRevisionFrequency());
+		}
+
+		assertTrue(packed.getRevisions() instanceof PackedRevisionList);
+	}
+}
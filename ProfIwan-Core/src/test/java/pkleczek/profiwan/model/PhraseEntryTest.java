@@ -8,15 +8,18 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
 
+import pkleczek.profiwan.utils.Clock;
 import pkleczek.profiwan.utils.DBUtils;
 import pkleczek.profiwan.utils.DatabaseHelper;
 import pkleczek.profiwan.utils.DatabaseHelperImplMock;
+import pkleczek.profiwan.utils.PhraseCursor;
 
 public class PhraseEntryTest {
 
@@ -139,6 +142,262 @@ public class PhraseEntryTest {
 				+ PhraseEntry.FREQUENCY_DECAY, pe.getRevisionFrequency());
 	}
 	
+	@Test
+	public void testGetRevisionsFrequencyIncremental() {
+		PhraseEntry pe = new PhraseEntry();
+		RevisionEntry re = null;
+
+		for (int i = 0; i < PhraseEntry.MIN_CORRECT_STREAK + 1; i++) {
+			re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now().minusDays(PhraseEntry.MIN_CORRECT_STREAK));
+			re.setMistakes(0);
+			pe.addRevision(re);
+
+			pe.getRevisionFrequency();
+		}
+
+		assertEquals(PhraseEntry.MIN_REVISION_INTERVAL
+				+ PhraseEntry.FREQUENCY_DECAY, pe.getRevisionFrequency());
+
+		// Mistakes of the last revision change during a session.
+		re.setMistakes(-1);
+		assertEquals(PhraseEntry.MIN_REVISION_INTERVAL,
+				pe.getRevisionFrequency());
+
+		re.setMistakes(0);
+		assertEquals(PhraseEntry.MIN_REVISION_INTERVAL
+				+ PhraseEntry.FREQUENCY_DECAY, pe.getRevisionFrequency());
+	}
+
+	@Test
+	public void testRecomputeSchedule() {
+		PhraseEntry pe = new PhraseEntry();
+		RevisionEntry first = null;
+
+		for (int i = 0; i < PhraseEntry.MIN_CORRECT_STREAK + 1; i++) {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now().minusDays(PhraseEntry.MIN_CORRECT_STREAK));
+			re.setMistakes(0);
+			pe.addRevision(re);
+
+			if (first == null) {
+				first = re;
+			}
+		}
+
+		assertEquals(PhraseEntry.MIN_REVISION_INTERVAL
+				+ PhraseEntry.FREQUENCY_DECAY, pe.getRevisionFrequency());
+
+		first.setMistakes(1);
+		pe.recomputeSchedule();
+
+		assertEquals(PhraseEntry.MIN_REVISION_INTERVAL,
+				pe.getRevisionFrequency());
+	}
+
+	@Test
+	public void testGetNextRevisionDateNoRevisions() {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+
+		assertFalse(pe.getNextRevisionDate().isAfter(todayMidnight));
+	}
+
+	@Test
+	public void testGetNextRevisionDateToContinue() {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		re.setMistakes(-1);
+		pe.addRevision(re);
+
+		assertEquals(todayMidnight, pe.getNextRevisionDate());
+	}
+
+	@Test
+	public void testGetNextRevisionDateAbandoned() {
+		int today = DBUtils.getEpochDayFromMillis(todayMidnight.getMillis());
+
+		PhraseEntry pe = new PhraseEntry();
+		pe.setId(1);
+		pe.setInRevisions(true);
+
+		for (int i = 0; i < PhraseEntry.MIN_CORRECT_STREAK + 5; i++) {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now().minusDays(3));
+			re.setMistakes(0);
+			pe.addRevision(re);
+		}
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now().minusDays(1));
+		re.setMistakes(-1);
+		pe.addRevision(re);
+
+		assertTrue(pe.getNextRevisionDay() > today);
+		for (int day = 0; day <= PhraseEntry.MAX_REVISION_INTERVAL; day++) {
+			assertEquals(pe.getNextRevisionDay() <= today + day,
+					pe.isReviseNow(today + day, today));
+		}
+	}
+
+	@Test
+	public void testGetNextRevisionDateMatchesReviseNow() {
+		for (long id = 1; id <= 50; id++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setId(id);
+			pe.setInRevisions(true);
+
+			for (int i = 0; i < PhraseEntry.MIN_CORRECT_STREAK + 5; i++) {
+				RevisionEntry re = new RevisionEntry();
+				re.setCreatedAt(DateTime.now().minusDays(1));
+				re.setMistakes(0);
+				pe.addRevision(re);
+			}
+
+			DateTime next = pe.getNextRevisionDate();
+			assertTrue(next.isAfter(todayMidnight));
+			assertTrue(pe.isReviseNow(next));
+			assertFalse(pe.isReviseNow(next.minusDays(1)));
+		}
+	}
+
+	@Test
+	public void testIsReviseNowEpochDay() {
+		int today = DBUtils.getEpochDayFromMillis(todayMidnight.getMillis());
+
+		for (long id = 1; id <= 50; id++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setId(id);
+			pe.setInRevisions(true);
+			if (id % 2 == 0) {
+				pe.setRevisions(new PackedRevisionList());
+			}
+
+			for (int i = 0; i < id % 9; i++) {
+				RevisionEntry re = new RevisionEntry();
+				re.setCreatedAt(DateTime.now().minusDays((int) (id % 5)));
+				re.setMistakes(i % 3 == 2 ? 1 : 0);
+				pe.addRevision(re);
+			}
+			if (id % 7 == 0) {
+				pe.getRevisions().get(pe.getRevisions().size() - 1)
+						.setMistakes(-1);
+			}
+
+			assertEquals(
+					DBUtils.getEpochDayFromMillis(pe.getNextRevisionDate()
+							.getMillis()), pe.getNextRevisionDay());
+
+			for (int day = 0; day <= PhraseEntry.MAX_REVISION_INTERVAL; day++) {
+				assertEquals(pe.isReviseNow(todayMidnight.plusDays(day)),
+						pe.isReviseNow(today + day, today));
+			}
+		}
+	}
+
+	@Test
+	public void testIsReviseNowClock() {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(new DateTime(2013, 11, 1, 12, 0));
+		re.setMistakes(-1);
+		pe.addRevision(re);
+
+		DateTime dueDate = new DateTime(2013, 10, 1, 0, 0);
+		try {
+			Clock.setDefault(Clock.fixed(new DateTime(2013, 11, 1, 18, 0)
+					.getMillis()));
+			assertTrue(pe.isReviseNow(dueDate));
+
+			Clock.setDefault(Clock.fixed(new DateTime(2013, 11, 2, 8, 0)
+					.getMillis()));
+			assertFalse(pe.isReviseNow(dueDate));
+		} finally {
+			Clock.setDefault(null);
+		}
+	}
+
+	@Test
+	public void testJitterDeterministic() {
+		long seed = PhraseEntry.JITTER_SEED;
+		long millis = DateTime.now().getMillis();
+
+		try {
+			boolean differs = false;
+
+			for (long id = 1; id <= 100; id++) {
+				double jitter = PhraseEntry.getStackingJitter(id, millis);
+				assertEquals(jitter, PhraseEntry.getStackingJitter(id, millis),
+						0.0);
+				assertTrue(jitter >= 0.0 && jitter < 1.0);
+
+				PhraseEntry.JITTER_SEED = seed + 1;
+				differs |= jitter != PhraseEntry.getStackingJitter(id, millis);
+				PhraseEntry.JITTER_SEED = seed;
+			}
+
+			assertTrue(differs);
+		} finally {
+			PhraseEntry.JITTER_SEED = seed;
+		}
+	}
+
+	@Test
+	public void testGetDuePhrases() throws SQLException {
+		PhraseEntry due = new PhraseEntry();
+		due.setCreatedAt(DateTime.now());
+		due.setInRevisions(true);
+		dbHelper.createPhrase(due);
+
+		PhraseEntry notInRevision = new PhraseEntry();
+		notInRevision.setCreatedAt(DateTime.now());
+		dbHelper.createPhrase(notInRevision);
+
+		PhraseEntry revised = new PhraseEntry();
+		revised.setCreatedAt(DateTime.now());
+		revised.setInRevisions(true);
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		re.setMistakes(1);
+		revised.addRevision(re);
+		dbHelper.createPhrase(revised);
+		dbHelper.createRevision(re, revised.getId());
+
+		List<PhraseEntry> phrases = dbHelper.getDuePhrases(todayMidnight);
+		assertEquals(1, phrases.size());
+		assertEquals(due.getId(), phrases.get(0).getId());
+
+		phrases = dbHelper.getDuePhrases(revised.getNextRevisionDate());
+		assertEquals(2, phrases.size());
+	}
+
+	@Test
+	public void testCreatePhrases() throws SQLException {
+		// More than a single batch.
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		for (int i = 0; i < 2500; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setLangAText("pl" + i);
+			pe.setCreatedAt(DateTime.now());
+			phrases.add(pe);
+		}
+
+		assertEquals(phrases.size(), dbHelper.createPhrases(phrases));
+
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		assertEquals(phrases.size(), dictionary.size());
+
+		for (int i = 0; i < dictionary.size(); i++) {
+			assertEquals(phrases.get(i).getId(), dictionary.get(i).getId());
+			assertEquals(phrases.get(i).getLangAText(), dictionary.get(i)
+					.getLangAText());
+		}
+	}
+
 	@Test
 	public void testInsertIntoDB() throws SQLException {
 		PhraseEntry pe = new PhraseEntry();
@@ -227,5 +486,29 @@ public class PhraseEntryTest {
 		for (PhraseEntry ipe : dictionary) {
 			assertThat(ipe.getId(), is(not(pe.getId())));
 		}
-	}	
+	}
+
+	@Test
+	public void testOpenDictionary() throws SQLException {
+		for (int i = 0; i < 3; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setCreatedAt(DateTime.now());
+			dbHelper.createPhrase(pe);
+		}
+
+		PhraseCursor cursor = dbHelper.openDictionary();
+		int count = 0;
+		while (cursor.hasNext()) {
+			cursor.next();
+			count++;
+		}
+		assertEquals(3, count);
+		assertFalse(cursor.hasNext());
+
+		// Closing before exhaustion.
+		cursor = dbHelper.openDictionary();
+		assertTrue(cursor.hasNext());
+		cursor.close();
+		assertFalse(cursor.hasNext());
+	}
 }
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.joda.time.DateTime;
@@ -129,4 +130,77 @@ public class RevisionEntryTest {
 		assertTrue(found);
 	}
 
+	@Test
+	public void testGetDictionaryGroupsRevisions() throws SQLException {
+		PhraseEntry[] phrases = new PhraseEntry[3];
+
+		for (int i = 0; i < phrases.length; i++) {
+			phrases[i] = new PhraseEntry();
+			phrases[i].setCreatedAt(DateTime.now());
+			dbHelper.createPhrase(phrases[i]);
+		}
+
+		// Revisions inserted out of order (the second phrase has none).
+		for (int i = 3; i > 0; i--) {
+			for (int p = 0; p < phrases.length; p += 2) {
+				RevisionEntry re = new RevisionEntry();
+				re.setCreatedAt(new DateTime(i * 1000L));
+				re.setMistakes(i);
+				dbHelper.createRevision(re, phrases[p].getId());
+			}
+		}
+
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		assertEquals(phrases.length, dictionary.size());
+
+		for (PhraseEntry ipe : dictionary) {
+			List<RevisionEntry> revs = ipe.getRevisions();
+
+			if (ipe.getId() == phrases[1].getId()) {
+				assertTrue(revs.isEmpty());
+				continue;
+			}
+
+			assertEquals(3, revs.size());
+			for (int i = 0; i < revs.size(); i++) {
+				assertEquals(i + 1, revs.get(i).getMistakes());
+				assertTrue(revs.get(i).getId() != 0);
+			}
+		}
+	}
+
+	@Test
+	public void testCreateRevisions() throws SQLException {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		for (int i = 0; i < 3; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setCreatedAt(DateTime.now());
+
+			for (int r = 0; r < i * 700; r++) {
+				RevisionEntry re = new RevisionEntry();
+				re.setCreatedAt(new DateTime((r + 1) * 1000L));
+				re.setMistakes(r % 3);
+				pe.addRevision(re);
+			}
+
+			phrases.add(pe);
+		}
+
+		dbHelper.createPhrases(phrases);
+		assertEquals(2100, dbHelper.createRevisions(phrases));
+
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		for (int i = 0; i < phrases.size(); i++) {
+			List<RevisionEntry> expected = phrases.get(i).getRevisions();
+			List<RevisionEntry> revs = dictionary.get(i).getRevisions();
+
+			assertEquals(expected.size(), revs.size());
+			for (int r = 0; r < revs.size(); r++) {
+				assertEquals(expected.get(r).getId(), revs.get(r).getId());
+				assertEquals(expected.get(r).getMistakes(), revs.get(r)
+						.getMistakes());
+			}
+		}
+	}
+
 }
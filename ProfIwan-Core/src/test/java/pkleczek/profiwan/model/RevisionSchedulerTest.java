@@ -0,0 +1,182 @@
+package pkleczek.profiwan.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.utils.DatabaseHelper;
+import pkleczek.profiwan.utils.DatabaseHelperImplMock;
+
+public class RevisionSchedulerTest {
+
+	DatabaseHelper dbHelper = DatabaseHelperImplMock.getInstance();
+	DateTime todayMidnight;
+
+	@Before
+	public void recreateDB() throws SQLException {
+		((DatabaseHelperImplMock) dbHelper).recreateTables();
+		todayMidnight = DateTime.now().withTimeAtStartOfDay();
+	}
+
+	private PhraseEntry createPhrase(long id, int daysAgo, int correctRevisions) {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setId(id);
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+
+		for (int i = 0; i < correctRevisions; i++) {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now().minusDays(daysAgo));
+			re.setMistakes(0);
+			pe.addRevision(re);
+		}
+
+		return pe;
+	}
+
+	private List<PhraseEntry> createPhrases(int n, long seed) {
+		Random random = new Random(seed);
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+
+		for (int i = 1; i <= n; i++) {
+			phrases.add(createPhrase(i, random.nextInt(40),
+					random.nextInt(12)));
+		}
+
+		return phrases;
+	}
+
+	@Test
+	public void testEmpty() {
+		RevisionScheduler scheduler = new RevisionScheduler();
+
+		assertTrue(scheduler.isEmpty());
+		assertNull(scheduler.peek());
+		assertNull(scheduler.getNextRevisionDate());
+		assertTrue(scheduler.getDuePhrases(todayMidnight).isEmpty());
+		assertTrue(scheduler.getNextDue(5).isEmpty());
+	}
+
+	@Test
+	public void testSkipsPhrasesNotInRevision() {
+		PhraseEntry pe = createPhrase(1, 0, 0);
+		pe.setInRevisions(false);
+
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		phrases.add(pe);
+
+		RevisionScheduler scheduler = new RevisionScheduler(phrases);
+		assertEquals(0, scheduler.size());
+	}
+
+	@Test
+	public void testGetDuePhrases() {
+		List<PhraseEntry> phrases = createPhrases(500, 1L);
+		RevisionScheduler scheduler = new RevisionScheduler(phrases);
+
+		for (int days = 0; days < 30; days += 3) {
+			DateTime dueDate = todayMidnight.plusDays(days);
+
+			int expected = 0;
+			for (PhraseEntry pe : phrases) {
+				if (!pe.getNextRevisionDate().isAfter(dueDate)) {
+					expected++;
+				}
+			}
+
+			List<PhraseEntry> due = scheduler.getDuePhrases(dueDate);
+			assertEquals(expected, due.size());
+			assertEquals(expected, scheduler.countDue(dueDate));
+
+			for (PhraseEntry pe : due) {
+				assertFalse(pe.getNextRevisionDate().isAfter(dueDate));
+			}
+		}
+	}
+
+	@Test
+	public void testGetNextDueOrdered() {
+		List<PhraseEntry> phrases = createPhrases(300, 2L);
+		RevisionScheduler scheduler = new RevisionScheduler(phrases);
+
+		List<PhraseEntry> next = scheduler.getNextDue(50);
+		assertEquals(50, next.size());
+		assertSame(scheduler.peek(), next.get(0));
+
+		for (int i = 1; i < next.size(); i++) {
+			assertFalse(next.get(i - 1).getNextRevisionDate()
+					.isAfter(next.get(i).getNextRevisionDate()));
+		}
+
+		assertEquals(300, scheduler.getNextDue(1000).size());
+	}
+
+	@Test
+	public void testUpdateAndRemove() {
+		List<PhraseEntry> phrases = createPhrases(200, 3L);
+		RevisionScheduler scheduler = new RevisionScheduler(phrases);
+
+		Random random = new Random(4L);
+		for (int i = 0; i < 500; i++) {
+			PhraseEntry pe = phrases.get(random.nextInt(phrases.size()));
+
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now().minusDays(random.nextInt(10)));
+			re.setMistakes(random.nextInt(3) - 1);
+			pe.addRevision(re);
+
+			scheduler.update(pe);
+		}
+
+		PhraseEntry removed = phrases.get(7);
+		assertTrue(scheduler.remove(removed.getId()));
+		assertFalse(scheduler.remove(removed.getId()));
+		assertFalse(scheduler.contains(removed.getId()));
+
+		PhraseEntry excluded = phrases.get(8);
+		excluded.setInRevisions(false);
+		scheduler.update(excluded);
+		assertFalse(scheduler.contains(excluded.getId()));
+
+		List<PhraseEntry> next = scheduler.getNextDue(phrases.size());
+		assertEquals(phrases.size() - 2, next.size());
+		for (int i = 1; i < next.size(); i++) {
+			assertFalse(next.get(i - 1).getNextRevisionDate()
+					.isAfter(next.get(i).getNextRevisionDate()));
+		}
+	}
+
+	@Test
+	public void testSessionUpdatesScheduler() throws Exception {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		pe.setLangBText("rus");
+		dbHelper.createPhrase(pe);
+
+		RevisionScheduler scheduler = RevisionScheduler.load(dbHelper);
+		assertEquals(1, scheduler.countDue(todayMidnight));
+
+		RevisionsSession rs = new RevisionsSession(dbHelper, scheduler);
+		assertEquals(1, rs.getPendingRevisionsSize());
+
+		rs.processTypedWord("xxx");
+		assertEquals(1, scheduler.countDue(todayMidnight));
+
+		rs.nextRevision();
+		rs.processTypedWord("rus");
+		assertEquals(0, scheduler.countDue(todayMidnight));
+		assertEquals(1, scheduler.size());
+	}
+}
@@ -0,0 +1,226 @@
+package pkleczek.profiwan.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.RevisionsSessionManager.SessionCallback;
+import pkleczek.profiwan.model.RevisionsSessionManager.SessionFactory;
+import pkleczek.profiwan.utils.SQLiteDatabaseHelper;
+
+public class RevisionsSessionManagerTest {
+
+	static final int SESSIONS = 100;
+	static final int THREADS = 16;
+	static final int OPERATIONS = 4000;
+
+	File file;
+	SQLiteDatabaseHelper dbHelper;
+
+	final AtomicInteger createdSessions = new AtomicInteger();
+	final AtomicInteger resumedSessions = new AtomicInteger();
+
+	RevisionsSessionManager manager;
+
+	@Before
+	public void setUp() throws IOException, SQLException {
+		file = File.createTempFile("profiwan", ".db");
+		dbHelper = new SQLiteDatabaseHelper("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		for (int i = 0; i < 20; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setInRevisions(true);
+			pe.setCreatedAt(DateTime.now());
+			pe.setLangBText("rus" + i);
+			phrases.add(pe);
+		}
+		dbHelper.createPhrases(phrases);
+
+		manager = new RevisionsSessionManager(new SessionFactory() {
+			public RevisionsSession createSession(String sessionId) {
+				createdSessions.incrementAndGet();
+				return new RevisionsSession(dbHelper);
+			}
+
+			public RevisionsSession resumeSession(String sessionId,
+					DataInput snapshot) throws IOException {
+				resumedSessions.incrementAndGet();
+				return RevisionsSession.resume(snapshot, dbHelper);
+			}
+		}, THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		dbHelper.close();
+
+		file.delete();
+		new File(file.getAbsolutePath() + "-wal").delete();
+		new File(file.getAbsolutePath() + "-shm").delete();
+	}
+
+	@Test
+	public void testFinishSession() throws IOException {
+		assertFalse(manager.finishSession("a"));
+
+		assertFalse(manager.processTypedWord("a", ""));
+		assertTrue(manager.contains("a"));
+		assertEquals(1, createdSessions.get());
+
+		assertTrue(manager.finishSession("a"));
+		assertFalse(manager.contains("a"));
+		assertEquals(0, manager.size());
+
+		// A new session is started on demand.
+		manager.processTypedWord("a", "");
+		assertEquals(2, createdSessions.get());
+	}
+
+	@Test
+	public void testNoPhraseToAnswer() {
+		manager.execute("a", new SessionCallback<Void>() {
+			public Void doInSession(RevisionsSession session) {
+				while (session.hasRevisions()) {
+					session.acceptRevision();
+					if (session.hasRevisions()) {
+						session.nextRevision();
+					}
+				}
+				return null;
+			}
+		});
+
+		assertFalse(manager.processTypedWord("a", "rus0"));
+		assertFalse(manager.processTypedWord("a", ""));
+	}
+
+	@Test
+	public void testEvictIdleSessions() throws InterruptedException {
+		manager.processTypedWord("a", "");
+		manager.processTypedWord("b", "");
+
+		final RevisionsSession[] sessions = new RevisionsSession[1];
+		long currentId = manager.execute("a",
+				new SessionCallback<Long>() {
+					public Long doInSession(RevisionsSession session) {
+						sessions[0] = session;
+						return session.getCurrentPhrase().getId();
+					}
+				});
+
+		Thread.sleep(20);
+		manager.processTypedWord("b", "");
+
+		assertEquals(1, manager.evictIdleSessions(10));
+		assertEquals(0, manager.evictIdleSessions(10));
+		assertEquals(2, manager.size());
+
+		RevisionsSession resumed = manager.execute("a",
+				new SessionCallback<RevisionsSession>() {
+					public RevisionsSession doInSession(
+							RevisionsSession session) {
+						return session;
+					}
+				});
+
+		assertEquals(1, resumedSessions.get());
+		assertTrue(resumed != sessions[0]);
+		assertEquals(currentId, resumed.getCurrentPhrase().getId());
+		assertEquals(sessions[0].getRevisionsNumber(),
+				resumed.getRevisionsNumber());
+		assertEquals(sessions[0].getPendingRevisionsSize(),
+				resumed.getPendingRevisionsSize());
+	}
+
+	@Test
+	public void testConcurrentLoad() throws Exception {
+		// Incremented without synchronization: correct only if callbacks for
+		// a session never run concurrently.
+		final int[] operations = new int[SESSIONS];
+		final AtomicInteger totalOperations = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+		try {
+			for (int t = 0; t < THREADS; t++) {
+				final Random random = new Random(t);
+
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() {
+						for (int i = 0; i < OPERATIONS / THREADS; i++) {
+							final int s = random.nextInt(SESSIONS);
+							final boolean correct = random.nextInt(4) == 0;
+
+							manager.execute("user" + s,
+									new SessionCallback<Void>() {
+										public Void doInSession(
+												RevisionsSession session) {
+											if (!session.hasRevisions()) {
+												return null;
+											}
+
+											operations[s]++;
+											totalOperations.incrementAndGet();
+
+											String input = correct ? session
+													.getCurrentPhrase()
+													.getLangBText() : "";
+											session.processTypedWord(input);
+
+											if (session.hasRevisions()) {
+												session.nextRevision();
+											}
+											return null;
+										}
+									});
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		int sum = 0;
+		for (int count : operations) {
+			sum += count;
+		}
+		assertEquals(totalOperations.get(), sum);
+
+		assertEquals(manager.size(), createdSessions.get());
+		assertTrue(manager.size() <= SESSIONS);
+
+		for (int s = 0; s < SESSIONS; s++) {
+			manager.finishSession("user" + s);
+		}
+		assertEquals(0, manager.size());
+	}
+
+}
@@ -1,20 +1,33 @@
 package pkleczek.profiwan.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
 
 import pkleczek.profiwan.utils.DatabaseHelper;
+import pkleczek.profiwan.utils.AnswerMatcher;
 import pkleczek.profiwan.utils.DatabaseHelperImplMock;
+import pkleczek.profiwan.utils.MatchPolicy;
+import pkleczek.profiwan.utils.SimpleMetrics;
 
 public class RevisionsSessionTest {
 
@@ -120,4 +133,195 @@ public class RevisionsSessionTest {
 		RevisionEntry ret = (RevisionEntry) method.invoke(rs, pe);
 		assertSame(ret, re);
 	}
+
+	@Test
+	public void testProcessTypedWord() throws Exception {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		pe.setLangBText("rus");
+		dbHelper.createPhrase(pe);
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(new DateTime(0L));
+		re.setMistakes(0);
+		dbHelper.createRevision(re, pe.getId());
+
+		rs = new RevisionsSession(dbHelper);
+
+		assertFalse(rs.processTypedWord("xxx"));
+		assertFalse(rs.processTypedWord("yyy"));
+		assertTrue(rs.hasRevisions());
+
+		rs.nextRevision();
+		assertTrue(rs.processTypedWord("rus"));
+		assertFalse(rs.hasRevisions());
+
+		PhraseEntry stored = dbHelper.getDictionary().get(0);
+		assertEquals(2, stored.getRevisions().size());
+		assertEquals(2, stored.getRevisions().get(1).getMistakes());
+		assertFalse(stored.isReviseNow(DateTime.now().withTimeAtStartOfDay()));
+	}
+
+	@Test
+	public void testGradeTypedWord() throws Exception {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		pe.setLangBText("молоко");
+		dbHelper.createPhrase(pe);
+
+		rs = new RevisionsSession(dbHelper);
+		AnswerMatcher matcher = new AnswerMatcher(MatchPolicy.EXACT
+				.withMaxTypos(1));
+		rs.setAnswerMatcher(matcher);
+
+		assertEquals(Grade.ALMOST_CORRECT, rs.grade("малоко"));
+		assertEquals(Grade.WRONG, rs.gradeTypedWord("малако"));
+		assertEquals(Grade.ALMOST_CORRECT, rs.gradeTypedWord("малоко"));
+		assertFalse(rs.hasRevisions());
+
+		RevisionEntry stored = dbHelper.getDictionary().get(0).getRevisions()
+				.get(0);
+		assertEquals(1, stored.getMistakes());
+		assertEquals(1, stored.getTypos());
+	}
+
+	@Test
+	public void testNoPhraseToAnswer() throws Exception {
+		rs = new RevisionsSession(dbHelper);
+		assertFalse(rs.hasCurrentRevision());
+
+		try {
+			rs.gradeTypedWord("молоко");
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		pe.setLangBText("молоко");
+		dbHelper.createPhrase(pe);
+
+		rs = new RevisionsSession(dbHelper);
+		assertTrue(rs.hasCurrentRevision());
+		assertTrue(rs.processTypedWord("молоко"));
+		assertFalse(rs.hasCurrentRevision());
+
+		try {
+			rs.gradeTypedWord("молоко");
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, dbHelper.getDictionary().get(0).getRevisions().size());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setInRevisions(true);
+			pe.setCreatedAt(DateTime.now());
+			pe.setLangBText("молоко");
+			dbHelper.createPhrase(pe);
+		}
+
+		SimpleMetrics metrics = new SimpleMetrics();
+		RevisionsSession.setMetrics(metrics);
+		try {
+			rs = new RevisionsSession(dbHelper);
+			assertEquals(1L, metrics.getTimer(RevisionsSession.METRIC_INIT)
+					.getCount());
+			assertEquals(2L, metrics.getGauge(RevisionsSession.METRIC_PENDING));
+
+			rs.gradeTypedWord("малако");
+			rs.gradeTypedWord("молоко");
+			assertEquals(2L, metrics.getCount(RevisionsSession.METRIC_ANSWERS));
+			assertEquals(1L, metrics.getGauge(RevisionsSession.METRIC_PENDING));
+		} finally {
+			RevisionsSession.setMetrics(null);
+		}
+
+		// Not reported any more.
+		rs.nextRevision();
+		rs.gradeTypedWord("молоко");
+		assertEquals(2L, metrics.getCount(RevisionsSession.METRIC_ANSWERS));
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setInRevisions(true);
+			pe.setCreatedAt(DateTime.now());
+			pe.setLangBText("rus" + i);
+			dbHelper.createPhrase(pe);
+		}
+
+		rs = new RevisionsSession(dbHelper);
+
+		long mistakenId = rs.getCurrentPhrase().getId();
+		assertFalse(rs.processTypedWord("xxx"));
+		rs.nextRevision();
+		assertTrue(rs.processTypedWord(rs.getCurrentPhrase().getLangBText()));
+		rs.nextRevision();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		rs.writeSnapshot(new DataOutputStream(bytes));
+
+		RevisionsSession resumed = RevisionsSession.resume(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())), dbHelper);
+
+		assertEquals(rs.getCurrentPhrase().getId(), resumed.getCurrentPhrase()
+				.getId());
+		assertEquals(2, resumed.getPendingRevisionsSize());
+		assertEquals(rs.getWordsNumber(), resumed.getWordsNumber());
+		assertEquals(rs.getCorrectWordsNumber(),
+				resumed.getCorrectWordsNumber());
+		assertEquals(rs.getRevisionsNumber(), resumed.getRevisionsNumber());
+
+		// The in-progress revision is continued, not created again.
+		while (resumed.getCurrentPhrase().getId() != mistakenId) {
+			resumed.nextRevision();
+		}
+		assertTrue(resumed.processTypedWord(resumed.getCurrentPhrase()
+				.getLangBText()));
+
+		for (PhraseEntry stored : dbHelper.getDictionary()) {
+			if (stored.getId() == mistakenId) {
+				assertEquals(1, stored.getRevisions().size());
+				assertEquals(1, stored.getRevisions().get(0).getMistakes());
+			}
+		}
+	}
+
+	@Test
+	public void testGetListOfPendingPhrasesParallel() throws Exception {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+
+		for (int i = 0; i < 50000; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setId(i);
+			pe.setInRevisions(i % 3 == 0);
+			phrases.add(pe);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			List<PhraseEntry> pending = RevisionsSession
+					.getListOfPendingPhrases(phrases, DateTime.now()
+							.withTimeAtStartOfDay(), executor);
+
+			assertEquals((phrases.size() + 2) / 3, pending.size());
+			for (int i = 0; i < pending.size(); i++) {
+				assertEquals(3 * i, pending.get(i).getId());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
 }
@@ -0,0 +1,103 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import pkleczek.profiwan.model.Grade;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.utils.AnswerMatcher.PreparedAnswer;
+
+public class AnswerMatcherTest {
+
+	private static PhraseEntry createPhrase(String langB, String text) {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setLangA("pl"); //$NON-NLS-1$
+		pe.setLangB(langB);
+		pe.setLangBText(text);
+		return pe;
+	}
+
+	@Test
+	public void testExact() {
+		PreparedAnswer answer = new AnswerMatcher().prepare(createPhrase(
+				"rus", "Да")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		assertTrue(answer.matches("Да")); //$NON-NLS-1$
+		assertFalse(answer.matches("да")); //$NON-NLS-1$
+		assertFalse(answer.matches("Да ")); //$NON-NLS-1$
+		assertFalse(answer.matches("Д")); //$NON-NLS-1$
+		assertFalse(answer.matches("")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testAccentMarkers() {
+		PreparedAnswer answer = new AnswerMatcher().prepare(createPhrase(
+				"rus", "молоко\\")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		assertEquals("молоко\u0301", answer.getNormalized()); //$NON-NLS-1$
+		assertTrue(answer.matches("молоко\\")); //$NON-NLS-1$
+		assertTrue(answer.matches("молоко\u0301")); //$NON-NLS-1$
+		assertFalse(answer.matches("молоко")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testComposition() {
+		PreparedAnswer answer = new AnswerMatcher().prepare(createPhrase(
+				"fr", "cafe\\")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		assertEquals("caf\u00e9", answer.getNormalized()); //$NON-NLS-1$
+		assertTrue(answer.matches("caf\u00e9")); //$NON-NLS-1$
+		assertTrue(answer.matches("cafe\u0301")); //$NON-NLS-1$
+		assertTrue(answer.matches("cafe\\")); //$NON-NLS-1$
+		assertFalse(answer.matches("cafe")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testPolicyPerLanguagePair() {
+		AnswerMatcher matcher = new AnswerMatcher();
+		matcher.setPolicy("pl", "rus", new MatchPolicy(true, true, true)); //$NON-NLS-1$ //$NON-NLS-2$
+
+		PreparedAnswer answer = matcher.prepare(createPhrase(
+				"rus", "Большо\\й  дом")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("большой дом", answer.getNormalized()); //$NON-NLS-1$
+		assertTrue(answer.matches("  большой\tДОМ ")); //$NON-NLS-1$
+		assertTrue(answer.matches("большо\\й дом")); //$NON-NLS-1$
+		assertFalse(answer.matches("большойдом")); //$NON-NLS-1$
+		assertFalse(answer.matches("большой дом!")); //$NON-NLS-1$
+
+		// Other pairs use the default policy.
+		answer = matcher.prepare(createPhrase("en", "Big house")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(answer.matches("big house")); //$NON-NLS-1$
+		assertTrue(answer.matches("Big house")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testGrade() {
+		AnswerMatcher matcher = new AnswerMatcher(new MatchPolicy(true, true,
+				false, 1));
+
+		PreparedAnswer answer = matcher.prepare(createPhrase(
+				"rus", "Большо\\й дом")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(Grade.CORRECT, answer.grade("большо\\й  дом")); //$NON-NLS-1$
+		assertEquals(Grade.ALMOST_CORRECT, answer.grade("большой дом")); //$NON-NLS-1$
+		assertEquals(Grade.ALMOST_CORRECT, answer.grade("БОЛЬШО\\Й ДОМ!")); //$NON-NLS-1$
+		assertEquals(Grade.ALMOST_CORRECT, answer.grade("болшо\\й дом")); //$NON-NLS-1$
+		assertEquals(Grade.WRONG, answer.grade("болшой дом")); //$NON-NLS-1$
+		assertEquals(Grade.WRONG, answer.grade("большо\\й дом дом")); //$NON-NLS-1$
+		assertEquals(Grade.WRONG, answer.grade("")); //$NON-NLS-1$
+
+		// Typos are not accepted by default.
+		answer = new AnswerMatcher().prepare(createPhrase("rus", "дом")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(Grade.WRONG, answer.grade("дон")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testAccentedString() {
+		String str = "abc"; //$NON-NLS-1$
+		assertTrue(str == TextUtils.getAccentedString(str));
+		assertEquals("a\u0301", TextUtils.getAccentedString("a\\")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,93 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BoundedEditDistanceTest {
+
+	private static int levenshtein(String a, String b) {
+		int[][] d = new int[a.length() + 1][b.length() + 1];
+
+		for (int i = 0; i <= a.length(); i++) {
+			d[i][0] = i;
+		}
+		for (int j = 0; j <= b.length(); j++) {
+			d[0][j] = j;
+		}
+
+		for (int i = 1; i <= a.length(); i++) {
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				d[i][j] = Math.min(d[i - 1][j - 1] + cost,
+						Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+			}
+		}
+
+		return d[a.length()][b.length()];
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('а' + random.nextInt(4)));
+		}
+		return sb.toString();
+	}
+
+	private static String mutate(Random random, String text, int edits) {
+		StringBuilder sb = new StringBuilder(text);
+		for (int i = 0; i < edits; i++) {
+			int position = random.nextInt(sb.length() + 1);
+
+			switch (random.nextInt(3)) {
+			case 0:
+				sb.insert(position, (char) ('а' + random.nextInt(4)));
+				break;
+			case 1:
+				if (position < sb.length()) {
+					sb.deleteCharAt(position);
+				}
+				break;
+			default:
+				if (position < sb.length()) {
+					sb.setCharAt(position, (char) ('а' + random.nextInt(4)));
+				}
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testDistance() {
+		BoundedEditDistance distance = new BoundedEditDistance("молоко"); //$NON-NLS-1$
+
+		assertEquals(0, distance.distance("молоко", 2)); //$NON-NLS-1$
+		assertEquals(1, distance.distance("малоко", 2)); //$NON-NLS-1$
+		assertEquals(1, distance.distance("молок", 2)); //$NON-NLS-1$
+		assertEquals(2, distance.distance("моолоко!", 2)); //$NON-NLS-1$
+		assertEquals(3, distance.distance("хлеб", 2)); //$NON-NLS-1$
+		assertEquals(1, distance.distance("", 0)); //$NON-NLS-1$
+
+		assertEquals(2, new BoundedEditDistance("").distance("ab", 2)); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testDistanceRandom() {
+		Random random = new Random(0);
+
+		for (int n = 0; n < 5000; n++) {
+			// Long patterns fall back to the banded algorithm.
+			String pattern = randomText(random, random.nextInt(100));
+			String text = mutate(random, pattern, random.nextInt(5));
+			int max = random.nextInt(4);
+
+			int expected = Math.min(levenshtein(pattern, text), max + 1);
+			assertEquals(pattern + " " + text, expected, //$NON-NLS-1$
+					new BoundedEditDistance(pattern).distance(text, max));
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class CachingDatabaseHelperTest {
+
+	DatabaseHelper dbHelper = DatabaseHelperImplMock.getInstance();
+
+	DictionaryCache cache;
+
+	CachingDatabaseHelper helper;
+
+	@Before
+	public void recreateDB() throws SQLException {
+		((DatabaseHelperImplMock) dbHelper).recreateTables();
+
+		cache = new DictionaryCache(1000);
+		helper = new CachingDatabaseHelper(dbHelper, cache, "user"); //$NON-NLS-1$
+	}
+
+	private PhraseEntry createPhrase(String text) {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now().minusDays(3));
+		pe.setLangBText(text);
+		helper.createPhrase(pe);
+
+		return pe;
+	}
+
+	private void assertCachedAsStored() {
+		List<PhraseEntry> cached = helper.getDictionary();
+		List<PhraseEntry> stored = dbHelper.getDictionary();
+
+		assertEquals(stored.size(), cached.size());
+		for (int i = 0; i < stored.size(); i++) {
+			PhraseEntry s = stored.get(i);
+			PhraseEntry c = cached.get(i);
+
+			assertEquals(s.getId(), c.getId());
+			assertEquals(s.getLangBText(), c.getLangBText());
+			assertEquals(s.isInRevisions(), c.isInRevisions());
+			assertEquals(s.getRevisions().size(), c.getRevisions().size());
+			for (int j = 0; j < s.getRevisions().size(); j++) {
+				assertEquals(s.getRevisions().get(j).getId(), c.getRevisions()
+						.get(j).getId());
+				assertEquals(s.getRevisions().get(j).getMistakes(), c
+						.getRevisions().get(j).getMistakes());
+			}
+			assertEquals(s.getNextRevisionDate(), c.getNextRevisionDate());
+		}
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		createPhrase("a"); //$NON-NLS-1$
+
+		helper.getDictionary();
+		assertEquals(1, cache.stats().missCount());
+
+		helper.getDictionary();
+		helper.getDuePhrases(DateTime.now());
+		assertEquals(1, cache.stats().missCount());
+		assertEquals(2, cache.stats().hitCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testWriteThrough() {
+		PhraseEntry pe = createPhrase("a"); //$NON-NLS-1$
+		helper.getDictionary();
+
+		PhraseEntry pe2 = createPhrase("b"); //$NON-NLS-1$
+		assertCachedAsStored();
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now().minusDays(2));
+		helper.createRevision(re, pe.getId());
+		re.nextMistake();
+		helper.updateRevision(re);
+		assertCachedAsStored();
+
+		RevisionEntry re2 = new RevisionEntry();
+		re2.setCreatedAt(DateTime.now().minusDays(1));
+		helper.createRevision(re2, pe.getId());
+		assertCachedAsStored();
+
+		// Updating an earlier revision changes the schedule.
+		re.enteredCorrectly();
+		helper.updateRevision(re);
+		assertCachedAsStored();
+
+		pe.setLangBText("c"); //$NON-NLS-1$
+		pe.setInRevisions(false);
+		helper.updatePhrase(pe);
+		assertCachedAsStored();
+		assertEquals(1, helper.getDuePhrases(DateTime.now()).size());
+
+		helper.deletePhrase(pe2.getId());
+		assertCachedAsStored();
+
+		assertEquals(1, cache.stats().missCount());
+	}
+
+	@Test
+	public void testRollbackInvalidates() {
+		createPhrase("a"); //$NON-NLS-1$
+		helper.getDictionary();
+
+		helper.beginTransaction();
+		try {
+			createPhrase("b"); //$NON-NLS-1$
+		} finally {
+			helper.endTransaction();
+		}
+
+		assertEquals(1, helper.getDictionary().size());
+		assertEquals(2, cache.stats().missCount());
+	}
+
+	@Test
+	public void testBulkInsertInvalidates() {
+		helper.getDictionary();
+
+		PhraseEntry pe = new PhraseEntry();
+		pe.setCreatedAt(DateTime.now());
+		helper.createPhrases(Arrays.asList(pe));
+
+		assertCachedAsStored();
+		assertEquals(2, cache.stats().missCount());
+	}
+
+	@Test
+	public void testWriteDuringLoad() throws Exception {
+		PhraseEntry pe = createPhrase("a"); //$NON-NLS-1$
+
+		final CountDownLatch loaded = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(1);
+		DatabaseHelper slowLoader = new ForwardingDatabaseHelper() {
+			@Override
+			protected DatabaseHelper delegate() {
+				return dbHelper;
+			}
+
+			@Override
+			public List<PhraseEntry> getDictionary() {
+				List<PhraseEntry> phrases = super.getDictionary();
+
+				// The first load returns after the write.
+				if (loaded.getCount() > 0) {
+					loaded.countDown();
+					Uninterruptibles.awaitUninterruptibly(written);
+				}
+
+				return phrases;
+			}
+		};
+		helper = new CachingDatabaseHelper(slowLoader, cache, "user"); //$NON-NLS-1$
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<PhraseEntry>> load = executor
+					.submit(new Callable<List<PhraseEntry>>() {
+						public List<PhraseEntry> call() {
+							return helper.getDictionary();
+						}
+					});
+
+			assertTrue(loaded.await(10, TimeUnit.SECONDS));
+			pe.setLangBText("b"); //$NON-NLS-1$
+			helper.updatePhrase(pe);
+			written.countDown();
+
+			load.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+
+		assertCachedAsStored();
+		assertEquals("b", helper.getDictionary().get(0).getLangBText()); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testCopiesAreIndependent() {
+		PhraseEntry pe = createPhrase("a"); //$NON-NLS-1$
+
+		PhraseEntry copy = helper.getPhrases(Arrays.asList(pe.getId())).get(0);
+		copy.setLangBText("b"); //$NON-NLS-1$
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		copy.addRevision(re);
+
+		PhraseEntry cached = helper.getDictionary().get(0);
+		assertTrue(cached != copy);
+		assertEquals("a", cached.getLangBText()); //$NON-NLS-1$
+		assertEquals(0, cached.getRevisions().size());
+	}
+
+	@Test
+	public void testEviction() {
+		cache = new DictionaryCache(0);
+		helper = new CachingDatabaseHelper(dbHelper, cache, "user"); //$NON-NLS-1$
+		DatabaseHelper other = new CachingDatabaseHelper(dbHelper, cache,
+				"other"); //$NON-NLS-1$
+		createPhrase("a"); //$NON-NLS-1$
+
+		// Too big to be kept at all.
+		assertEquals(1, helper.getDictionary().size());
+		assertEquals(1, other.getDictionary().size());
+		assertEquals(0, cache.size());
+		assertTrue(cache.stats().evictionCount() > 0);
+
+		// Counts of writes are dropped along with the dictionaries.
+		createPhrase("b"); //$NON-NLS-1$
+		assertEquals(0, cache.getGenerationsNumber());
+	}
+
+	@Test
+	public void testInvalidationDropsGenerations() {
+		helper.getDictionary();
+		createPhrase("a"); //$NON-NLS-1$
+		assertEquals(1, cache.getGenerationsNumber());
+
+		cache.invalidate("user"); //$NON-NLS-1$
+		assertEquals(0, cache.getGenerationsNumber());
+
+		createPhrase("b"); //$NON-NLS-1$
+		assertEquals(2, helper.getDictionary().size());
+		assertCachedAsStored();
+	}
+
+	@Test
+	public void testLoadedRevisionUpdated() {
+		PhraseEntry pe = createPhrase("a"); //$NON-NLS-1$
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		dbHelper.createRevision(re, pe.getId());
+
+		helper.getDictionary();
+		long misses = cache.stats().missCount();
+		assertEquals(Long.valueOf(pe.getId()), cache.getIfPresent("user") //$NON-NLS-1$
+				.revisionOwners.get(re.getId()));
+
+		// Continued revision (loaded with the dictionary).
+		re.nextMistake();
+		helper.updateRevision(re);
+
+		assertEquals(-1, helper.getDictionary().get(0).getRevisions().get(0)
+				.getMistakes());
+		assertEquals(misses, cache.stats().missCount());
+		assertCachedAsStored();
+	}
+}
@@ -0,0 +1,164 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.PhraseEntry;
+
+public class DatabaseBackupTest {
+
+	File file;
+	File backupFile;
+	SQLiteDatabaseHelper dbHelper;
+	DatabaseBackup backup;
+
+	@Before
+	public void openDB() throws IOException, SQLException {
+		file = File.createTempFile("profiwan", ".db");
+		backupFile = File.createTempFile("profiwan", ".bak");
+		backupFile.delete();
+
+		dbHelper = new SQLiteDatabaseHelper("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+		backup = new DatabaseBackup(backupFile);
+	}
+
+	@After
+	public void closeDB() {
+		dbHelper.close();
+
+		file.delete();
+		new File(file.getAbsolutePath() + "-wal").delete();
+		new File(file.getAbsolutePath() + "-shm").delete();
+
+		backupFile.delete();
+		new File(backupFile.getAbsolutePath()
+				+ DatabaseBackup.MANIFEST_SUFFIX).delete();
+	}
+
+	private void createPhrases(int number) {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+		for (int i = 0; i < number; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setLangAText("phrase" + i);
+			pe.setInRevisions(true);
+			pe.setCreatedAt(DateTime.now());
+			phrases.add(pe);
+		}
+		dbHelper.createPhrases(phrases);
+	}
+
+	private int countBackedUpPhrases() throws SQLException {
+		SQLiteDatabaseHelper copy = new SQLiteDatabaseHelper("jdbc:sqlite:"
+				+ backupFile.getAbsolutePath());
+		try {
+			return copy.getDictionary().size();
+		} finally {
+			copy.close();
+		}
+	}
+
+	@Test
+	public void testIncrementalBackup() throws Exception {
+		createPhrases(2000);
+
+		DatabaseBackup.Result first = dbHelper.backup(backup);
+		assertTrue(first.getPagesNumber() > 10);
+		assertEquals(first.getPagesNumber(), first.getCopiedPagesNumber());
+		assertTrue(backup.verify());
+
+		createPhrases(1);
+
+		DatabaseBackup.Result second = dbHelper.backup(backup);
+		assertTrue(second.getCopiedPagesNumber() > 0);
+		assertTrue(second.getCopiedPagesNumber() < first.getPagesNumber() / 4);
+		assertTrue(backup.verify());
+		assertFalse(new File(backupFile.getAbsolutePath()
+				+ DatabaseBackup.STAGING_SUFFIX).exists());
+
+		assertEquals(2001, countBackedUpPhrases());
+	}
+
+	@Test
+	public void testVerify() throws Exception {
+		assertFalse(backup.verify());
+
+		createPhrases(100);
+		dbHelper.backup(backup);
+		assertTrue(backup.verify());
+
+		RandomAccessFile raf = new RandomAccessFile(backupFile, "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			int b = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+		assertFalse(backup.verify());
+
+		// The damaged copy is replaced.
+		DatabaseBackup.Result result = dbHelper.backup(backup);
+		assertEquals(result.getPagesNumber(), result.getCopiedPagesNumber());
+		assertTrue(backup.verify());
+	}
+
+	@Test
+	public void testBackupWhileWriting() throws Exception {
+		createPhrases(1000);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Void> writes = executor.submit(new Callable<Void>() {
+				public Void call() {
+					for (int i = 0; i < 50; i++) {
+						createPhrases(20);
+					}
+					return null;
+				}
+			});
+
+			dbHelper.backup(backup);
+			writes.get(60, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+
+		// A consistent snapshot: whole bulk inserts only.
+		int backedUp = countBackedUpPhrases();
+		assertTrue(backedUp >= 1000 && backedUp <= 2000);
+		assertEquals(0, backedUp % 20);
+
+		dbHelper.backup(backup);
+		assertEquals(2000, countBackedUpPhrases());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testBackupInsideTransaction() throws Exception {
+		dbHelper.beginTransaction();
+		try {
+			dbHelper.backup(backup);
+		} finally {
+			dbHelper.endTransaction();
+		}
+	}
+}
@@ -2,16 +2,22 @@ package pkleczek.profiwan.utils;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
 import org.sqlite.SQLiteConfig;
 
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.DueForecast;
 import pkleczek.profiwan.model.PhraseEntry;
 import pkleczek.profiwan.model.RevisionEntry;
 
@@ -25,10 +31,13 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 	private static NamedParameterStatement insertPhraseEntry = null;
 	private static NamedParameterStatement updatePhraseEntry = null;
 	private static NamedParameterStatement deletePhraseEntry = null;
-	private static NamedParameterStatement selectRevisionEntry = null;
 	private static NamedParameterStatement insertRevisionEntry = null;
 	private static NamedParameterStatement updateRevisionEntryId = null;
 
+	private static int transactionDepth = 0;
+	private static boolean transactionSuccessful = false;
+	private static boolean transactionFailed = false;
+
 	public static final String prodDb = "jdbc:sqlite:profiwan.db";
 	public static final String debugDb = "jdbc:sqlite:profiwan_debug.db";
 
@@ -42,65 +51,31 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 			String modeURL = debugDb;
 
 			c = DriverManager.getConnection(modeURL, conf.toProperties());
+
+			// Statements below are prepared against the current schema.
+			createTables(c);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
 
-		String insertPhraseEntryQuery = "INSERT INTO " + TABLE_PHRASE + " ("
-				+ KEY_ID + "," + KEY_PHRASE_LANG1 + "," + KEY_PHRASE_LANG2
-				+ "," + KEY_PHRASE_LANG1_TEXT + "," + KEY_PHRASE_LANG2_TEXT
-				+ "," + KEY_PHRASE_LABEL + "," + KEY_PHRASE_IN_REVISION + ","
-				+ KEY_CREATED_AT + ") VALUES (NULL, :" + KEY_PHRASE_LANG1
-				+ ",:" + KEY_PHRASE_LANG2 + ",:" + KEY_PHRASE_LANG1_TEXT + ",:"
-				+ KEY_PHRASE_LANG2_TEXT + ",:" + KEY_PHRASE_LABEL + ",:"
-				+ KEY_PHRASE_IN_REVISION + ",:" + KEY_CREATED_AT + ");";
-
-		String updatePhraseEntryQuery = "UPDATE " + TABLE_PHRASE + " SET "
-				+ KEY_PHRASE_LANG1_TEXT + "=:" + KEY_PHRASE_LANG1_TEXT + ","
-				+ KEY_PHRASE_LANG2_TEXT + "=:" + KEY_PHRASE_LANG2_TEXT + ","
-				+ KEY_PHRASE_IN_REVISION + "=:" + KEY_PHRASE_IN_REVISION + ","
-				+ KEY_PHRASE_LABEL + "=:" + KEY_PHRASE_LABEL + ","
-				+ KEY_PHRASE_LANG1 + "=:" + KEY_PHRASE_LANG1 + ","
-				+ KEY_PHRASE_LANG2 + "=:" + KEY_PHRASE_LANG2 + " WHERE "
-				+ KEY_ID + "=:" + KEY_ID + ";";
-
-		String deletePhraseEntryQuery = "DELETE FROM " + TABLE_PHRASE
-				+ " WHERE " + KEY_ID + "=:" + KEY_ID + ";";
-
-		String selectRevisionEntryQuery = "SELECT * FROM " + TABLE_REVISION
-				+ " WHERE " + KEY_REVISION_PHRASE_ID + "=:"
-				+ KEY_REVISION_PHRASE_ID + " ORDER BY " + KEY_CREATED_AT + ";";
-
-		String insertRevisionEntryQuery = "INSERT INTO " + TABLE_REVISION
-				+ " (" + KEY_ID + "," + KEY_CREATED_AT + ","
-				+ KEY_REVISION_MISTAKES + "," + KEY_REVISION_PHRASE_ID + ") "
-				+ "VALUES (NULL, :" + KEY_CREATED_AT + ",:"
-				+ KEY_REVISION_MISTAKES + ",:" + KEY_REVISION_PHRASE_ID + ") ;";
-
-		String updateRevisionEntryIdQuery = "UPDATE " + TABLE_REVISION
-				+ " SET " + KEY_REVISION_MISTAKES + "=:"
-				+ KEY_REVISION_MISTAKES + " WHERE " + KEY_ID + "=:" + KEY_ID
-				+ ";";
-
 		try {
 			insertPhraseEntry = new NamedParameterStatement(getConnection(),
-					insertPhraseEntryQuery, Statement.RETURN_GENERATED_KEYS);
+					PhraseRowWriter.INSERT_PHRASE_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
 
 			updatePhraseEntry = new NamedParameterStatement(getConnection(),
-					updatePhraseEntryQuery);
+					PhraseRowWriter.UPDATE_PHRASE_QUERY);
 
 			deletePhraseEntry = new NamedParameterStatement(getConnection(),
-					deletePhraseEntryQuery);
-
-			selectRevisionEntry = new NamedParameterStatement(getConnection(),
-					selectRevisionEntryQuery);
+					PhraseRowWriter.DELETE_PHRASE_QUERY);
 
 			insertRevisionEntry = new NamedParameterStatement(getConnection(),
-					insertRevisionEntryQuery, Statement.RETURN_GENERATED_KEYS);
+					PhraseRowWriter.INSERT_REVISION_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
 
 			updateRevisionEntryId = new NamedParameterStatement(
-					getConnection(), updateRevisionEntryIdQuery);
+					getConnection(), PhraseRowWriter.UPDATE_REVISION_QUERY);
 		} catch (SQLException e) {
 			logger.severe(e.toString());
 			e.printStackTrace();
@@ -125,7 +100,10 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 
 	public void recreateTables() throws SQLException {
 
-		Connection conn = getConnection();
+		createTables(getConnection());
+	}
+
+	private static void createTables(Connection conn) throws SQLException {
 		Statement stmt = conn.createStatement();
 
 		if (!conn.getMetaData().getURL().contains("debug")) {
@@ -133,10 +111,10 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 		} else {
 			try {
 				stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE_PHRASE);
-				stmt.executeUpdate(CREATE_TABLE_PHRASE);
-
 				stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE_REVISION);
-				stmt.executeUpdate(CREATE_TABLE_REVISION);
+				SchemaMigrator.setVersion(conn, 0);
+
+				new SchemaMigrator().migrate(conn);
 			} finally {
 				try {
 					stmt.close();
@@ -147,22 +125,65 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 		}
 	}
 
-	public long createPhrase(PhraseEntry phrase) {
+	public void beginTransaction() {
+		try {
+			if (transactionDepth == 0) {
+				getConnection().setAutoCommit(false);
+				transactionFailed = false;
+			}
+		} catch (SQLException e) {
+			// TODO: debug
+			e.printStackTrace();
+		}
+
+		transactionDepth++;
+		transactionSuccessful = false;
+	}
+
+	public void setTransactionSuccessful() {
+		transactionSuccessful = true;
+	}
+
+	public void endTransaction() {
+		if (transactionDepth == 0) {
+			throw new IllegalStateException("no transaction in progress"); //$NON-NLS-1$
+		}
 
+		transactionFailed |= !transactionSuccessful;
+		transactionSuccessful = false;
+		transactionDepth--;
+
+		if (transactionDepth > 0) {
+			return;
+		}
+
+		Connection conn = getConnection();
 		try {
-			NamedParameterStatement stmt = insertPhraseEntry;
+			if (transactionFailed) {
+				conn.rollback();
+			} else {
+				conn.commit();
+			}
+		} catch (SQLException e) {
+			// TODO: debug
+			e.printStackTrace();
+		} finally {
+			try {
+				conn.setAutoCommit(true);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
-			int ir = phrase.isInRevisions() ? 1 : 0;
+	public long createPhrase(PhraseEntry phrase) {
 
-			stmt.setString(KEY_PHRASE_LANG1_TEXT, phrase.getLangAText());
-			stmt.setString(KEY_PHRASE_LANG2_TEXT, phrase.getLangBText());
-			stmt.setInt(KEY_PHRASE_IN_REVISION, ir);
-			stmt.setInt(KEY_CREATED_AT, (int) (phrase.getCreatedAt()
-					.getMillis() / 1000));
-			stmt.setString(KEY_PHRASE_LABEL, phrase.getLabel());
-			stmt.setString(KEY_PHRASE_LANG1, phrase.getLangA());
-			stmt.setString(KEY_PHRASE_LANG2, phrase.getLangB());
+		beginTransaction();
+		try {
+			NamedParameterStatement stmt = insertPhraseEntry;
 
+			int[] boundNextDue = { PhraseRowWriter.getNextDue(phrase) };
+			PhraseRowWriter.bindPhrase(stmt, phrase);
 			stmt.executeUpdate();
 
 			ResultSet generatedKeys = null;
@@ -181,9 +202,15 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 					} catch (SQLException logOrIgnore) {
 					}
 			}
+
+			PhraseRowWriter.updateNextDue(getConnection(),
+					Collections.singletonList(phrase), boundNextDue);
+			setTransactionSuccessful();
 		} catch (SQLException e) {
 			// TODO: debug
 			e.printStackTrace();
+		} finally {
+			endTransaction();
 		}
 
 		return phrase.getId();
@@ -195,17 +222,10 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 		try {
 			NamedParameterStatement stmt = updatePhraseEntry;
 
-			int ir = phrase.isInRevisions() ? 1 : 0;
-
-			stmt.setString(KEY_PHRASE_LANG1_TEXT, phrase.getLangAText());
-			stmt.setString(KEY_PHRASE_LANG2_TEXT, phrase.getLangBText());
-			stmt.setInt(KEY_PHRASE_IN_REVISION, ir);
-			stmt.setString(KEY_PHRASE_LABEL, phrase.getLabel());
-			stmt.setString(KEY_PHRASE_LANG1, phrase.getLangA());
-			stmt.setString(KEY_PHRASE_LANG2, phrase.getLangB());
+			PhraseRowWriter.bindPhrase(stmt, phrase);
 			stmt.setInt(KEY_ID, (int) phrase.getId());
 
-			stmt.executeUpdate();
+			rv = stmt.executeUpdate();
 		} catch (SQLException e) {
 			// TODO: debug
 			e.printStackTrace();
@@ -230,10 +250,7 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 		try {
 			NamedParameterStatement stmt = insertRevisionEntry;
 
-			stmt.setInt(KEY_CREATED_AT, (int) (revision.getCreatedAt()
-					.getMillis() / 1000));
-			stmt.setInt(KEY_REVISION_MISTAKES, revision.getMistakes());
-			stmt.setInt(KEY_REVISION_PHRASE_ID, (int) phrase_id);
+			PhraseRowWriter.bindRevision(stmt, revision, phrase_id);
 			stmt.executeUpdate();
 
 			ResultSet generatedKeys = null;
@@ -260,6 +277,54 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 		return revision.getId();
 	}
 
+	public int createPhrases(Iterable<PhraseEntry> phrases) {
+		NamedParameterStatement stmt = null;
+		int created = 0;
+
+		beginTransaction();
+		try {
+			stmt = new NamedParameterStatement(getConnection(),
+					PhraseRowWriter.INSERT_PHRASE_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
+			created = PhraseRowWriter.insertPhrases(stmt, phrases);
+
+			setTransactionSuccessful();
+		} catch (SQLException e) {
+			// TODO: debug
+			e.printStackTrace();
+			created = 0;
+		} finally {
+			PhraseRowWriter.closeQuietly(stmt, Metrics.NONE);
+			endTransaction();
+		}
+
+		return created;
+	}
+
+	public int createRevisions(Iterable<PhraseEntry> phrases) {
+		NamedParameterStatement stmt = null;
+		int created = 0;
+
+		beginTransaction();
+		try {
+			stmt = new NamedParameterStatement(getConnection(),
+					PhraseRowWriter.INSERT_REVISION_QUERY,
+					Statement.RETURN_GENERATED_KEYS);
+			created = PhraseRowWriter.insertRevisions(stmt, phrases);
+
+			setTransactionSuccessful();
+		} catch (SQLException e) {
+			// TODO: debug
+			e.printStackTrace();
+			created = 0;
+		} finally {
+			PhraseRowWriter.closeQuietly(stmt, Metrics.NONE);
+			endTransaction();
+		}
+
+		return created;
+	}
+
 	public int updateRevision(RevisionEntry revision) {
 		int rv = 0;
 
@@ -267,8 +332,9 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 			NamedParameterStatement stmt = updateRevisionEntryId;
 
 			stmt.setInt(KEY_REVISION_MISTAKES, revision.getMistakes());
+			stmt.setInt(KEY_REVISION_TYPOS, revision.getTypos());
 			stmt.setInt(KEY_ID, (int) revision.getId());
-			stmt.executeUpdate();
+			rv = stmt.executeUpdate();
 		} catch (SQLException e) {
 			// TODO: debug
 			e.printStackTrace();
@@ -278,75 +344,114 @@ public class DatabaseHelperImplMock implements DatabaseHelper {
 	}
 
 	public List<PhraseEntry> getDictionary() {
-		List<PhraseEntry> dict = new ArrayList<PhraseEntry>();
+		return PhraseCursors.toList(openDictionary());
+	}
 
-		String selectPhraseQuery = "SELECT * FROM Phrase;";
+	public List<PhraseEntry> getDuePhrases(DateTime dueDate) {
+		return PhraseCursors.toList(openDuePhrases(dueDate));
+	}
+
+	public List<PhraseEntry> getPhrases(Collection<Long> ids) {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>(ids.size());
 
+		for (String query : PhraseRowReader.getSelectQueries(ids)) {
+			phrases.addAll(PhraseCursors.toList(openQuery(query)));
+		}
+
+		return phrases;
+	}
+
+	public PhraseCursor openDictionary() {
+		return openQuery(PhraseRowReader.getSelectQuery(null));
+	}
+
+	private PhraseCursor openQuery(String query) {
 		Connection conn = getConnection();
 		Statement stmt = null;
-		ResultSet rs = null;
 
 		try {
-
 			stmt = conn.createStatement();
-			rs = stmt.executeQuery(selectPhraseQuery);
-			while (rs.next()) {
-				int id = rs.getInt(KEY_ID);
-				String lang1 = rs.getString(KEY_PHRASE_LANG1);
-				String lang2 = rs.getString(KEY_PHRASE_LANG2);
-				String lang1Text = rs.getString(KEY_PHRASE_LANG1_TEXT);
-				String lang2Text = rs.getString(KEY_PHRASE_LANG2_TEXT);
-				boolean inRevision = rs.getBoolean(KEY_PHRASE_IN_REVISION);
-				DateTime date = new DateTime(
-						(long) rs.getInt(KEY_CREATED_AT) * 1000L);
-				String label = rs.getString(KEY_PHRASE_LABEL);
-
-				PhraseEntry entry = new PhraseEntry();
-				entry.setId(id);
-				entry.setLangA(lang1);
-				entry.setLangB(lang2);
-				entry.setLangAText(lang1Text);
-				entry.setLangBText(lang2Text);
-				entry.setInRevisions(inRevision);
-				entry.setCreatedAt(date);
-				entry.setLabel(label);
-
-				dict.add(entry);
+			ResultSet rs = stmt.executeQuery(query);
+
+			return new ResultSetPhraseCursor(stmt, rs);
+		} catch (SQLException e) {
+			// TODO: debug
+			e.printStackTrace();
+
+			try {
+				if (stmt != null) {
+					stmt.close();
+				}
+			} catch (SQLException e1) {
+				e1.printStackTrace();
 			}
+		}
+
+		return PhraseCursors.empty();
+	}
+
+	public PhraseCursor openDuePhrases(DateTime dueDate) {
+		NamedParameterStatement stmt = null;
 
-			NamedParameterStatement pstmt = selectRevisionEntry;
-			for (PhraseEntry entry : dict) {
-				pstmt.setInt(KEY_REVISION_PHRASE_ID, (int) entry.getId());
-				rs = pstmt.executeQuery();
+		try {
+			stmt = new NamedParameterStatement(getConnection(),
+					PhraseRowReader.SELECT_DUE_PHRASES_QUERY);
+			stmt.setInt(KEY_PHRASE_NEXT_DUE,
+					DBUtils.getIntFromDateTime(dueDate));
 
-				while (rs.next()) {
-					RevisionEntry re = new RevisionEntry();
-					re.setCreatedAt(new DateTime((long) rs
-							.getInt(KEY_CREATED_AT) * 1000L));
-					re.setMistakes(rs.getInt(KEY_REVISION_MISTAKES));
+			return new ResultSetPhraseCursor(stmt.getStatement(),
+					stmt.executeQuery());
+		} catch (SQLException e) {
+			// TODO: debug
+			e.printStackTrace();
 
-					entry.getRevisions().add(re);
+			try {
+				if (stmt != null) {
+					stmt.close();
 				}
+			} catch (SQLException e1) {
+				e1.printStackTrace();
 			}
+		}
 
+		return PhraseCursors.empty();
+	}
+
+	public List<DailyStats> getDailyStats(LocalDate from, LocalDate to) {
+		PreparedStatement stmt = null;
+
+		try {
+			stmt = getConnection().prepareStatement(
+					DailyStatsTable.SELECT_QUERY);
+			stmt.setInt(1, DBUtils.getEpochDay(from));
+			stmt.setInt(2, DBUtils.getEpochDay(to));
+
+			return DailyStatsTable.read(stmt.executeQuery());
 		} catch (SQLException e) {
 			// TODO: debug
 			e.printStackTrace();
 		} finally {
 			try {
-				rs.close();
+				if (stmt != null) {
+					stmt.close();
+				}
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
+		}
 
-			try {
-				stmt.close();
-			} catch (SQLException e) {
-				e.printStackTrace();
-			}
+		return new ArrayList<DailyStats>();
+	}
+
+	public DueForecast getDueForecast(LocalDate start, int days) {
+		try {
+			return PhraseRowReader.readDueForecast(getConnection(), start, days);
+		} catch (SQLException e) {
+			// TODO: debug
+			e.printStackTrace();
 		}
 
-		return dict;
+		return new DueForecast(start, days);
 	}
 
 }
@@ -0,0 +1,182 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+public class DictionaryFileTest {
+
+	File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("profiwan", ".dict");
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	private static List<PhraseEntry> createPhrases(int number) {
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+
+		for (int i = 0; i < number; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setId(i + 1);
+			pe.setLangA("pl");
+			pe.setLangB("ru");
+			pe.setLangAText("słowo" + i);
+			pe.setLangBText("слово" + i);
+			pe.setLabel(i % 2 == 0 ? "lekcja" : "");
+			pe.setInRevisions(i % 3 != 0);
+			pe.setCreatedAt(new DateTime(2013, 10, 1, 12, 0).plusDays(i));
+
+			for (int j = 0; j < i % 4; j++) {
+				RevisionEntry re = new RevisionEntry();
+				re.setId(100 * i + j);
+				re.setCreatedAt(new DateTime(2013, 11, 1, 12, 0).plusDays(j));
+				re.setMistakes(j - 1);
+				re.setTypos(j);
+				pe.getRevisions().add(re);
+			}
+
+			phrases.add(pe);
+		}
+
+		return phrases;
+	}
+
+	private static void assertPhraseEquals(PhraseEntry expected,
+			PhraseEntry actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getLangA(), actual.getLangA());
+		assertEquals(expected.getLangB(), actual.getLangB());
+		assertEquals(expected.getLangAText(), actual.getLangAText());
+		assertEquals(expected.getLangBText(), actual.getLangBText());
+		assertEquals(expected.getLabel(), actual.getLabel());
+		assertEquals(expected.isInRevisions(), actual.isInRevisions());
+		assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+
+		List<RevisionEntry> revisions = actual.getRevisions();
+		assertEquals(expected.getRevisions().size(), revisions.size());
+		for (int i = 0; i < revisions.size(); i++) {
+			RevisionEntry re = expected.getRevisions().get(i);
+			assertEquals(re.getId(), revisions.get(i).getId());
+			assertEquals(re.getCreatedAt(), revisions.get(i).getCreatedAt());
+			assertEquals(re.getMistakes(), revisions.get(i).getMistakes());
+			assertEquals(re.getTypos(), revisions.get(i).getTypos());
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<PhraseEntry> phrases = createPhrases(100);
+		DictionaryFile.write(phrases, file);
+
+		DictionaryFile dictionary = DictionaryFile.open(file);
+		assertEquals(100, dictionary.size());
+		assertEquals(150, dictionary.getRevisionsNumber());
+
+		List<PhraseEntry> read = dictionary.asList();
+		for (int i = 0; i < phrases.size(); i++) {
+			assertPhraseEquals(phrases.get(i), read.get(i));
+		}
+
+		assertEquals("слово7", dictionary.getLangBText(7));
+		assertEquals(3, dictionary.getRevisionsNumber(7));
+		assertEquals(41, dictionary.indexOf(42L));
+		assertEquals(-1, dictionary.indexOf(1000L));
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		DictionaryFile dictionary = DictionaryFile.wrap(DictionaryFile
+				.toByteBuffer(new ArrayList<PhraseEntry>()));
+
+		assertEquals(0, dictionary.size());
+		assertTrue(dictionary.asList().isEmpty());
+	}
+
+	@Test
+	public void testUnsorted() throws IOException {
+		List<PhraseEntry> phrases = createPhrases(10);
+		phrases.add(phrases.remove(0));
+
+		DictionaryFile dictionary = DictionaryFile.wrap(DictionaryFile
+				.toByteBuffer(phrases));
+		assertEquals(9, dictionary.indexOf(1L));
+		assertEquals(0, dictionary.indexOf(2L));
+	}
+
+	@Test
+	public void testStringsShared() throws IOException {
+		List<PhraseEntry> phrases = createPhrases(1000);
+		for (PhraseEntry pe : phrases) {
+			pe.setLangAText("same");
+		}
+
+		int shared = DictionaryFile.toByteBuffer(phrases).capacity();
+		int distinct = DictionaryFile.toByteBuffer(createPhrases(1000))
+				.capacity();
+		assertTrue(shared < distinct);
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		DictionaryFile.write(createPhrases(10), file);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 8);
+		raf.close();
+
+		try {
+			DictionaryFile.open(file);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		try {
+			DictionaryFile.wrap(buffer);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testImportInto() throws IOException, SQLException {
+		DatabaseHelper dbHelper = DatabaseHelperImplMock.getInstance();
+		((DatabaseHelperImplMock) dbHelper).recreateTables();
+
+		List<PhraseEntry> phrases = createPhrases(20);
+		DictionaryFile.write(phrases, file);
+
+		assertEquals(20, DictionaryFile.open(file).importInto(dbHelper));
+
+		List<PhraseEntry> stored = dbHelper.getDictionary();
+		assertEquals(20, stored.size());
+		assertEquals("słowo5", stored.get(5).getLangAText());
+		assertEquals(1, stored.get(5).getRevisions().size());
+		assertFalse(stored.get(5).getRevisions().get(0).getId() == 500);
+	}
+}
@@ -0,0 +1,106 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+public class InstrumentedDatabaseHelperTest {
+
+	DatabaseHelper dbHelper = DatabaseHelperImplMock.getInstance();
+
+	SimpleMetrics metrics = new SimpleMetrics();
+
+	@Before
+	public void recreateDB() throws SQLException {
+		((DatabaseHelperImplMock) dbHelper).recreateTables();
+	}
+
+	@Test
+	public void testTimesCalls() {
+		InstrumentedDatabaseHelper helper = new InstrumentedDatabaseHelper(
+				dbHelper, metrics);
+
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		helper.createPhrase(pe);
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		helper.createRevision(re, pe.getId());
+		re.nextMistake();
+		helper.updateRevision(re);
+		helper.updateRevision(re);
+
+		assertEquals(1, helper.getDictionary().size());
+		assertEquals(1L, metrics.getTimer(InstrumentedDatabaseHelper.CREATE_PHRASE)
+				.getCount());
+		assertEquals(2L, metrics.getTimer(
+				InstrumentedDatabaseHelper.UPDATE_REVISION).getCount());
+		assertEquals(1L, metrics.getTimer(
+				InstrumentedDatabaseHelper.GET_DICTIONARY).getCount());
+		assertEquals(0L, metrics.getCount(InstrumentedDatabaseHelper.ERRORS));
+	}
+
+	@Test
+	public void testCountsErrors() {
+		DatabaseHelper failing = new ForwardingDatabaseHelper() {
+			@Override
+			protected DatabaseHelper delegate() {
+				return dbHelper;
+			}
+
+			@Override
+			public void deletePhrase(long phrase_id) {
+				throw new IllegalStateException();
+			}
+		};
+		InstrumentedDatabaseHelper helper = new InstrumentedDatabaseHelper(
+				failing, metrics);
+
+		try {
+			helper.deletePhrase(1L);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		assertEquals(1L, metrics.getCount(InstrumentedDatabaseHelper.ERRORS));
+		assertEquals(1L, metrics.getTimer(
+				InstrumentedDatabaseHelper.DELETE_PHRASE).getCount());
+	}
+
+	@Test
+	public void testFlushForwarded() throws IOException {
+		WriteBehindDatabaseHelper writeBehind = new WriteBehindDatabaseHelper(
+				dbHelper, 0, 0);
+		InstrumentedDatabaseHelper helper = new InstrumentedDatabaseHelper(
+				writeBehind, metrics);
+
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		dbHelper.createPhrase(pe);
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		helper.createRevision(re, pe.getId());
+		assertEquals(0, dbHelper.getDictionary().get(0).getRevisions().size());
+
+		helper.flush();
+		assertEquals(1, dbHelper.getDictionary().get(0).getRevisions().size());
+		assertEquals(1L, metrics.getTimer(InstrumentedDatabaseHelper.FLUSH)
+				.getCount());
+
+		helper.close();
+	}
+}
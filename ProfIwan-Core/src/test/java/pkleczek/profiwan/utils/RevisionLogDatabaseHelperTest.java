@@ -0,0 +1,167 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+import pkleczek.profiwan.model.RevisionsSession;
+
+public class RevisionLogDatabaseHelperTest {
+
+	File file;
+	File logFile;
+	SQLiteDatabaseHelper phrases;
+	RevisionLogDatabaseHelper dbHelper;
+
+	@Before
+	public void openDB() throws IOException, SQLException {
+		file = File.createTempFile("profiwan", ".db");
+		logFile = File.createTempFile("profiwan", ".log");
+		logFile.delete();
+
+		phrases = new SQLiteDatabaseHelper("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+		dbHelper = new RevisionLogDatabaseHelper(phrases, new RevisionLog(
+				logFile));
+	}
+
+	@After
+	public void closeDB() {
+		dbHelper.close();
+		phrases.close();
+
+		file.delete();
+		new File(file.getAbsolutePath() + "-wal").delete();
+		new File(file.getAbsolutePath() + "-shm").delete();
+		logFile.delete();
+	}
+
+	private PhraseEntry createPhrase(String text) {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setLangBText(text);
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		dbHelper.createPhrase(pe);
+
+		return pe;
+	}
+
+	@Test
+	public void testRevisionsStoredInLog() throws IOException {
+		PhraseEntry pe = createPhrase("rus");
+
+		RevisionsSession rs = new RevisionsSession(dbHelper);
+		assertFalse(rs.processTypedWord("xxx"));
+		rs.nextRevision();
+		assertTrue(rs.processTypedWord("rus"));
+
+		dbHelper.close();
+		dbHelper = new RevisionLogDatabaseHelper(phrases, new RevisionLog(
+				logFile));
+
+		List<RevisionEntry> revisions = dbHelper.getPhrases(
+				Collections.singleton(pe.getId())).get(0)
+				.getRevisions();
+		assertEquals(1, revisions.size());
+		assertEquals(1, revisions.get(0).getMistakes());
+
+		// Nothing has been written to the revision table.
+		assertEquals(0, phrases.getDictionary().get(0).getRevisions().size());
+		assertEquals(1, PhraseCursors.toList(dbHelper.openDictionary()).get(0)
+				.getRevisions().size());
+	}
+
+	@Test
+	public void testRollback() {
+		PhraseEntry pe = createPhrase("rus");
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		dbHelper.createRevision(re, pe.getId());
+
+		dbHelper.beginTransaction();
+		try {
+			re.setMistakes(5);
+			dbHelper.updateRevision(re);
+			RevisionEntry added = new RevisionEntry();
+			added.setCreatedAt(DateTime.now());
+			dbHelper.createRevision(added, pe.getId());
+			dbHelper.deletePhrase(pe.getId());
+		} finally {
+			dbHelper.endTransaction();
+		}
+
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		assertEquals(1, dictionary.size());
+		assertEquals(1, dictionary.get(0).getRevisions().size());
+		assertEquals(0, dictionary.get(0).getRevisions().get(0).getMistakes());
+	}
+
+	/**
+	 * Revisions of a phrase created in a transaction which has not been
+	 * committed before a crash are not attached to a phrase reusing its ID.
+	 */
+	@Test
+	public void testCrashInTransaction() throws IOException {
+		dbHelper.beginTransaction();
+		try {
+			PhraseEntry pe = createPhrase("rus");
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now());
+			dbHelper.createRevision(re, pe.getId());
+			dbHelper.getLog().force();
+
+			// The log as opened after a crash.
+			RevisionLog recovered = new RevisionLog(logFile);
+			try {
+				assertEquals(0, recovered.size());
+				assertEquals(0, recovered.getRevisions(pe.getId()).size());
+			} finally {
+				recovered.close();
+			}
+		} finally {
+			dbHelper.endTransaction();
+		}
+
+		PhraseEntry reused = createPhrase("rus");
+		assertEquals(0, dbHelper.getPhrases(
+				Collections.singleton(reused.getId())).get(0).getRevisions()
+				.size());
+	}
+
+	@Test
+	public void testCompactionAfterDelete() {
+		List<PhraseEntry> entries = new ArrayList<PhraseEntry>();
+		for (int i = 0; i < 2; i++) {
+			PhraseEntry pe = createPhrase("rus" + i);
+			for (int j = 0; j < 300; j++) {
+				RevisionEntry re = new RevisionEntry();
+				re.setCreatedAt(DateTime.now());
+				pe.getRevisions().add(re);
+			}
+			entries.add(pe);
+		}
+		assertEquals(600, dbHelper.createRevisions(entries));
+
+		dbHelper.deletePhrase(entries.get(0).getId());
+
+		assertEquals(300, dbHelper.getLog().size());
+		assertEquals(0, dbHelper.getLog().getDeletedCount());
+		assertEquals(300, dbHelper.getDictionary().get(0).getRevisions()
+				.size());
+	}
+}
@@ -0,0 +1,312 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.RevisionEntry;
+
+import com.google.common.io.Files;
+
+public class RevisionLogTest {
+
+	File file;
+	RevisionLog log;
+
+	@Before
+	public void openLog() throws IOException {
+		file = File.createTempFile("profiwan", ".log");
+		file.delete();
+
+		log = new RevisionLog(file);
+	}
+
+	@After
+	public void closeLog() {
+		log.close();
+
+		file.delete();
+		new File(file.getPath() + RevisionLog.COMPACTION_SUFFIX).delete();
+	}
+
+	private static RevisionEntry revision(int mistakes) {
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(new DateTime(2013, 11, 1, 12, 0));
+		re.setMistakes(mistakes);
+
+		return re;
+	}
+
+	private void reopen() throws IOException {
+		log.close();
+		log = new RevisionLog(file);
+	}
+
+	@Test
+	public void testAppendAndUpdate() throws IOException {
+		long first = log.append(revision(-1), 1L);
+		long second = log.append(revision(0), 2L);
+		assertTrue(second > first);
+
+		assertTrue(log.update(first, 2, 1));
+		assertFalse(log.update(second + 1, 2, 1));
+
+		reopen();
+
+		List<RevisionEntry> revisions = log.getRevisions(1L);
+		assertEquals(1, revisions.size());
+		assertEquals(first, revisions.get(0).getId());
+		assertEquals(2, revisions.get(0).getMistakes());
+		assertEquals(1, revisions.get(0).getTypos());
+		assertEquals(new DateTime(2013, 11, 1, 12, 0), revisions.get(0)
+				.getCreatedAt());
+
+		// IDs are not reused.
+		assertTrue(log.append(revision(0), 1L) > second);
+	}
+
+	@Test
+	public void testGrowth() throws IOException {
+		for (int i = 0; i < 5000; i++) {
+			log.append(revision(i), i % 7);
+		}
+
+		reopen();
+
+		assertEquals(5000, log.size());
+		List<RevisionEntry> revisions = log.getRevisions(3L);
+		assertEquals(714, revisions.size());
+		assertEquals(3, revisions.get(0).getMistakes());
+		assertEquals(10, revisions.get(1).getMistakes());
+	}
+
+	@Test
+	public void testRecoverTornAppend() throws IOException {
+		log.append(revision(0), 1L);
+		log.append(revision(1), 1L);
+		log.close();
+
+		// Damages the second record's phrase ID.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(RevisionLog.HEADER_SIZE + RevisionLog.RECORD_SIZE + 8);
+		raf.writeLong(2L);
+		raf.close();
+
+		log = new RevisionLog(file);
+
+		assertEquals(1, log.size());
+		assertEquals(1, log.getRevisions(1L).size());
+		assertEquals(0, log.getRevisions(2L).size());
+
+		log.append(revision(2), 1L);
+		reopen();
+		assertEquals(2, log.getRevisions(1L).size());
+	}
+
+	@Test
+	public void testRollback() throws IOException {
+		long kept = log.append(revision(0), 1L);
+
+		log.begin();
+		log.update(kept, 3, 0);
+		log.append(revision(0), 1L);
+		log.deletePhrase(1L);
+		assertEquals(0, log.getRevisions(1L).size());
+		log.rollback();
+
+		List<RevisionEntry> revisions = log.getRevisions(1L);
+		assertEquals(1, revisions.size());
+		assertEquals(0, revisions.get(0).getMistakes());
+		assertEquals(0, log.getDeletedCount());
+
+		log.begin();
+		log.append(revision(0), 1L);
+		log.commit();
+
+		reopen();
+		assertEquals(2, log.getRevisions(1L).size());
+	}
+
+	/**
+	 * A crash in a transaction: the file is opened again as it is (without a
+	 * rollback).
+	 */
+	@Test
+	public void testRecoverUncommittedTransaction() throws IOException {
+		long kept = log.append(revision(0), 1L);
+		long deleted = log.append(revision(0), 3L);
+
+		log.begin();
+		log.update(kept, 3, 0);
+		log.append(revision(0), 1L);
+		log.append(revision(0), 2L);
+		log.deletePhrase(3L);
+		log.force();
+
+		RevisionLog recovered = new RevisionLog(file);
+		try {
+			assertEquals(2, recovered.size());
+			assertEquals(0, recovered.getDeletedCount());
+
+			List<RevisionEntry> revisions = recovered.getRevisions(1L);
+			assertEquals(1, revisions.size());
+			assertEquals(0, revisions.get(0).getMistakes());
+			assertEquals(0, recovered.getRevisions(2L).size());
+			assertEquals(deleted, recovered.getRevisions(3L).get(0).getId());
+		} finally {
+			recovered.close();
+		}
+	}
+
+	@Test
+	public void testCommittedTransactionRecovered() throws IOException {
+		long kept = log.append(revision(0), 1L);
+
+		log.begin();
+		log.update(kept, 3, 0);
+		log.append(revision(0), 2L);
+		assertEquals(3, log.getRevisions(1L).get(0).getMistakes());
+		log.commit();
+
+		RevisionLog recovered = new RevisionLog(file);
+		try {
+			assertEquals(2, recovered.size());
+			assertEquals(3, recovered.getRevisions(1L).get(0).getMistakes());
+			assertEquals(1, recovered.getRevisions(2L).size());
+		} finally {
+			recovered.close();
+		}
+	}
+
+	@Test
+	public void testDailyStats() throws IOException {
+		LocalDate day = new LocalDate(2013, 11, 1);
+
+		long id = log.append(revision(0), 1L);
+		log.append(revision(0), 2L);
+		log.update(id, -3, 2);
+
+		RevisionEntry later = revision(0);
+		later.setCreatedAt(later.getCreatedAt().plusDays(3));
+		log.append(later, 2L);
+
+		List<DailyStats> stats = log.getDailyStats(day, day.plusDays(3));
+		assertEquals(2, stats.size());
+		assertEquals(day, stats.get(0).getDay());
+		assertEquals(2, stats.get(0).getRevisions());
+		assertEquals(3, stats.get(0).getMistakes());
+		assertEquals(2, stats.get(0).getTypos());
+		assertEquals(1, stats.get(0).getLearned());
+
+		log.begin();
+		log.deletePhrase(2L);
+		log.append(revision(1), 3L);
+		assertEquals(1, log.getDailyStats(day, day.plusDays(3)).size());
+		log.rollback();
+
+		stats = log.getDailyStats(day, day.plusDays(3));
+		assertEquals(2, stats.size());
+		assertEquals(2, stats.get(0).getRevisions());
+		assertEquals(3, stats.get(0).getMistakes());
+
+		// Totals are rebuilt on open.
+		log.deletePhrase(1L);
+		reopen();
+		stats = log.getDailyStats(day, day.plusDays(3));
+		assertEquals(2, stats.size());
+		assertEquals(1, stats.get(0).getRevisions());
+		assertEquals(0, stats.get(0).getMistakes());
+		assertEquals(1, stats.get(0).getLearned());
+		assertTrue(log.getDailyStats(day.plusDays(1), day.plusDays(2))
+				.isEmpty());
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		long[] ids = new long[600];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = log.append(revision(i), i % 2);
+		}
+
+		assertEquals(300, log.deletePhrase(0L));
+		assertTrue(log.isCompactionNeeded());
+
+		assertEquals(300, log.compact());
+		assertEquals(300, log.size());
+		assertFalse(log.isCompactionNeeded());
+
+		// Revision IDs stay the same.
+		assertTrue(log.update(ids[1], 7, 0));
+		reopen();
+
+		List<RevisionEntry> revisions = log.getRevisions(1L);
+		assertEquals(300, revisions.size());
+		assertEquals(ids[1], revisions.get(0).getId());
+		assertEquals(7, revisions.get(0).getMistakes());
+		assertEquals(0, log.getRevisions(0L).size());
+		assertTrue(log.append(revision(0), 1L) > ids[ids.length - 1]);
+	}
+
+	@Test
+	public void testInterruptedCompaction() throws IOException {
+		for (int i = 0; i < 600; i++) {
+			log.append(revision(i), i % 2);
+		}
+		log.deletePhrase(0L);
+
+		File compacted = new File(file.getPath()
+				+ RevisionLog.COMPACTION_SUFFIX);
+		File original = new File(file.getPath() + ".orig");
+		try {
+			log.close();
+			Files.copy(file, original);
+			log = new RevisionLog(file);
+			log.compact();
+
+			// As if the copy were not applied yet.
+			log.close();
+			Files.copy(file, compacted);
+			Files.copy(original, file);
+			log = new RevisionLog(file);
+
+			assertEquals(300, log.size());
+			assertEquals(0, log.getRevisions(0L).size());
+			assertEquals(300, log.getRevisions(1L).size());
+			assertFalse(compacted.exists());
+		} finally {
+			original.delete();
+		}
+	}
+
+	@Test
+	public void testIncompleteCompactionIgnored() throws IOException {
+		for (int i = 0; i < 600; i++) {
+			log.append(revision(i), i % 2);
+		}
+		log.deletePhrase(0L);
+
+		// Torn before the header was written.
+		File compacted = new File(file.getPath()
+				+ RevisionLog.COMPACTION_SUFFIX);
+		RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		out.setLength(RevisionLog.HEADER_SIZE + RevisionLog.RECORD_SIZE);
+		out.close();
+		reopen();
+
+		assertEquals(600, log.size());
+		assertEquals(300, log.getRevisions(1L).size());
+		assertFalse(compacted.exists());
+	}
+}
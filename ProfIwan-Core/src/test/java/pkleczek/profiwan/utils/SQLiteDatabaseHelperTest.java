@@ -0,0 +1,435 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.DailyStats;
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+
+public class SQLiteDatabaseHelperTest {
+
+	File file;
+	SQLiteDatabaseHelper dbHelper;
+
+	@Before
+	public void openDB() throws IOException, SQLException {
+		file = File.createTempFile("profiwan", ".db");
+		dbHelper = new SQLiteDatabaseHelper("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+	}
+
+	@After
+	public void closeDB() {
+		dbHelper.close();
+
+		file.delete();
+		new File(file.getAbsolutePath() + "-wal").delete();
+		new File(file.getAbsolutePath() + "-shm").delete();
+	}
+
+	private PhraseEntry createPhrase(String text) {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setLangAText(text);
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		dbHelper.createPhrase(pe);
+
+		return pe;
+	}
+
+	@Test
+	public void testJournalMode() throws SQLException {
+		Connection c = DriverManager.getConnection("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+		try {
+			Statement stmt = c.createStatement();
+			ResultSet rs = stmt.executeQuery("PRAGMA journal_mode;");
+			assertTrue(rs.next());
+			assertEquals("wal", rs.getString(1));
+			stmt.close();
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void testCursorReadError() throws SQLException {
+		Connection c = DriverManager.getConnection("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+		try {
+			Statement stmt = c.createStatement();
+			// Not a phrase-revision join.
+			PhraseCursor cursor = new ResultSetPhraseCursor(stmt,
+					stmt.executeQuery("SELECT 1 AS x;"));
+
+			try {
+				cursor.hasNext();
+				fail();
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof SQLException);
+			}
+			assertFalse(cursor.hasNext());
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void testFailedCommit() throws SQLException {
+		Connection c = DriverManager.getConnection("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+		try {
+			// Inserted phrases violate a foreign key checked at commit.
+			Statement stmt = c.createStatement();
+			stmt.executeUpdate("CREATE TABLE Parent (id INTEGER PRIMARY KEY);");
+			stmt.executeUpdate("CREATE TABLE Child (parent_id INTEGER "
+					+ "REFERENCES Parent(id) DEFERRABLE INITIALLY DEFERRED);");
+			stmt.executeUpdate("CREATE TRIGGER fail_commit AFTER INSERT ON "
+					+ DatabaseHelper.TABLE_PHRASE
+					+ " BEGIN INSERT INTO Child VALUES (1); END;");
+			stmt.close();
+		} finally {
+			c.close();
+		}
+
+		PhraseEntry pe = new PhraseEntry();
+		pe.setCreatedAt(DateTime.now());
+		assertEquals(0L, dbHelper.createPhrase(pe));
+		assertEquals(0L, pe.getId());
+
+		pe = new PhraseEntry();
+		pe.setCreatedAt(DateTime.now());
+		assertEquals(0, dbHelper.createPhrases(Arrays.asList(pe)));
+
+		dbHelper.beginTransaction();
+		try {
+			pe = new PhraseEntry();
+			pe.setCreatedAt(DateTime.now());
+			dbHelper.createPhrase(pe);
+			dbHelper.setTransactionSuccessful();
+		} finally {
+			try {
+				dbHelper.endTransaction();
+				fail();
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof SQLException);
+			}
+		}
+
+		assertTrue(dbHelper.getDictionary().isEmpty());
+
+		// The writer is usable again.
+		dbHelper.beginTransaction();
+		dbHelper.endTransaction();
+	}
+
+	@Test
+	public void testCreateAndUpdate() {
+		PhraseEntry pe = createPhrase("pl");
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		dbHelper.createRevision(re, pe.getId());
+		re.nextMistake();
+		assertEquals(1, dbHelper.updateRevision(re));
+
+		pe.setLangAText("pl2");
+		assertEquals(1, dbHelper.updatePhrase(pe));
+
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		assertEquals(1, dictionary.size());
+		assertEquals("pl2", dictionary.get(0).getLangAText());
+		assertEquals(re.getId(), dictionary.get(0).getRevisions().get(0)
+				.getId());
+		assertEquals(-1, dictionary.get(0).getRevisions().get(0)
+				.getMistakes());
+
+		dbHelper.deletePhrase(pe.getId());
+		assertTrue(dbHelper.getDictionary().isEmpty());
+	}
+
+	@Test
+	public void testRevisionsAtSameTime() {
+		PhraseEntry pe = createPhrase("pl");
+
+		DateTime createdAt = DateTime.now();
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 5; i++) {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(createdAt);
+			ids.add(dbHelper.createRevision(re, pe.getId()));
+		}
+
+		// Ties are broken by ID (the order of insertion).
+		List<RevisionEntry> revisions = dbHelper.getDictionary().get(0)
+				.getRevisions();
+		assertEquals(ids.size(), revisions.size());
+		for (int i = 0; i < ids.size(); i++) {
+			assertEquals(ids.get(i).longValue(), revisions.get(i).getId());
+		}
+	}
+
+	@Test
+	public void testDailyStats() {
+		PhraseEntry first = createPhrase("pl");
+		PhraseEntry second = createPhrase("ru");
+		DateTime day = new DateTime(2013, 11, 1, 12, 0);
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(day);
+		dbHelper.createRevision(re, first.getId());
+		re.setMistakes(-2);
+		re.setTypos(1);
+		dbHelper.updateRevision(re);
+
+		re = new RevisionEntry();
+		re.setCreatedAt(day);
+		dbHelper.createRevision(re, second.getId());
+
+		re = new RevisionEntry();
+		re.setCreatedAt(day.plusDays(2));
+		dbHelper.createRevision(re, second.getId());
+
+		List<DailyStats> stats = dbHelper.getDailyStats(day.toLocalDate(),
+				day.plusDays(2).toLocalDate());
+		assertEquals(2, stats.size());
+		assertEquals(day.toLocalDate(), stats.get(0).getDay());
+		assertEquals(2, stats.get(0).getRevisions());
+		assertEquals(2, stats.get(0).getMistakes());
+		assertEquals(1, stats.get(0).getTypos());
+		assertEquals(1, stats.get(0).getLearned());
+		assertEquals(1, stats.get(1).getRevisions());
+
+		// Revisions are deleted along with the phrase.
+		dbHelper.deletePhrase(second.getId());
+		stats = dbHelper.getDailyStats(day.toLocalDate(), day.plusDays(2)
+				.toLocalDate());
+		assertEquals(1, stats.size());
+		assertEquals(1, stats.get(0).getRevisions());
+		assertEquals(0, stats.get(0).getLearned());
+
+		assertTrue(dbHelper.getDailyStats(day.plusDays(1).toLocalDate(),
+				day.plusDays(5).toLocalDate()).isEmpty());
+	}
+
+	/**
+	 * The stored next revision dates (used to select due phrases) agree with
+	 * the schedule computed for the IDs assigned on insert.
+	 */
+	@Test
+	public void testDuePhrasesAfterImport() {
+		Random random = new Random(5L);
+		List<PhraseEntry> phrases = new ArrayList<PhraseEntry>();
+
+		for (int i = 0; i < 500; i++) {
+			PhraseEntry pe = new PhraseEntry();
+			// As read from another database.
+			pe.setId(1000 + i);
+			pe.setInRevisions(true);
+			pe.setCreatedAt(DateTime.now());
+
+			int[] daysAgo = new int[1 + random.nextInt(8)];
+			for (int j = 0; j < daysAgo.length; j++) {
+				daysAgo[j] = random.nextInt(30);
+			}
+			Arrays.sort(daysAgo);
+			for (int j = daysAgo.length - 1; j >= 0; j--) {
+				RevisionEntry re = new RevisionEntry();
+				re.setCreatedAt(DateTime.now().minusDays(daysAgo[j]));
+				re.setMistakes(random.nextInt(4) == 0 ? 1 : 0);
+				pe.addRevision(re);
+			}
+
+			if (i < 50) {
+				dbHelper.createPhrase(pe);
+				dbHelper.createRevisions(Collections.singletonList(pe));
+			} else {
+				phrases.add(pe);
+			}
+		}
+		dbHelper.createPhrases(phrases);
+		dbHelper.createRevisions(phrases);
+
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		DateTime today = DateTime.now().withTimeAtStartOfDay();
+		for (int day = 0; day <= PhraseEntry.MAX_REVISION_INTERVAL; day++) {
+			DateTime dueDate = today.plusDays(day);
+
+			Set<Long> expected = new HashSet<Long>();
+			for (PhraseEntry pe : dictionary) {
+				if (pe.isReviseNow(dueDate)) {
+					expected.add(pe.getId());
+				}
+			}
+
+			Set<Long> due = new HashSet<Long>();
+			for (PhraseEntry pe : dbHelper.getDuePhrases(dueDate)) {
+				if (pe.isReviseNow(dueDate)) {
+					due.add(pe.getId());
+				}
+			}
+			assertEquals(expected, due);
+		}
+	}
+
+	@Test
+	public void testSQLErrorsCounted() throws SQLException {
+		SimpleMetrics metrics = new SimpleMetrics();
+		SQLiteDatabaseHelper helper = new SQLiteDatabaseHelper("jdbc:sqlite:"
+				+ file.getAbsolutePath(), metrics);
+
+		try {
+			PhraseEntry pe = new PhraseEntry();
+			pe.setInRevisions(true);
+			pe.setCreatedAt(DateTime.now());
+			helper.createPhrase(pe);
+			assertEquals(0L, metrics.getCount(InstrumentedDatabaseHelper.ERRORS));
+
+			// No such phrase.
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now());
+			helper.createRevision(re, pe.getId() + 1);
+			assertEquals(1L, metrics.getCount(InstrumentedDatabaseHelper.ERRORS));
+		} finally {
+			helper.close();
+		}
+	}
+
+	@Test
+	public void testNestedTransactionRollback() {
+		dbHelper.beginTransaction();
+		try {
+			createPhrase("pl");
+
+			dbHelper.beginTransaction();
+			dbHelper.endTransaction();
+
+			dbHelper.setTransactionSuccessful();
+		} finally {
+			dbHelper.endTransaction();
+		}
+
+		assertTrue(dbHelper.getDictionary().isEmpty());
+	}
+
+	@Test
+	public void testReadInsideTransaction() {
+		dbHelper.beginTransaction();
+		try {
+			createPhrase("pl");
+			assertEquals(1, dbHelper.getDictionary().size());
+		} finally {
+			dbHelper.endTransaction();
+		}
+
+		assertTrue(dbHelper.getDictionary().isEmpty());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEndWithoutTransaction() {
+		dbHelper.endTransaction();
+	}
+
+	@Test
+	public void testReadersReleased() throws Exception {
+		createPhrase("a");
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 20; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					dbHelper.getDictionary();
+					dbHelper.getDailyStats(LocalDate.now(), LocalDate.now());
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(dbHelper.getIdleReadersNumber() > 0);
+		assertTrue(dbHelper.getIdleReadersNumber() <= 4);
+
+		int idle = dbHelper.getIdleReadersNumber();
+		PhraseCursor cursor = dbHelper.openDictionary();
+		assertEquals(idle - 1, dbHelper.getIdleReadersNumber());
+
+		// Exhausted without being closed.
+		while (cursor.hasNext()) {
+			cursor.next();
+		}
+		assertEquals(idle, dbHelper.getIdleReadersNumber());
+		cursor.close();
+		assertEquals(idle, dbHelper.getIdleReadersNumber());
+	}
+
+	@Test
+	public void testReaderDoesNotBlockWriter() throws Exception {
+		createPhrase("pl1");
+		createPhrase("pl2");
+
+		// An open read (the cursor holds a read transaction).
+		PhraseCursor cursor = dbHelper.openDictionary();
+		assertTrue(cursor.hasNext());
+		cursor.next();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Long> written = executor.submit(new Callable<Long>() {
+				public Long call() {
+					dbHelper.beginTransaction();
+					try {
+						long id = createPhrase("pl3").getId();
+						dbHelper.setTransactionSuccessful();
+						return id;
+					} finally {
+						dbHelper.endTransaction();
+					}
+				}
+			});
+
+			assertTrue(written.get(10, TimeUnit.SECONDS) > 0);
+		} finally {
+			executor.shutdown();
+		}
+
+		// The reader still sees its snapshot.
+		assertTrue(cursor.hasNext());
+		cursor.next();
+		assertTrue(!cursor.hasNext());
+
+		assertEquals(3, dbHelper.getDictionary().size());
+	}
+
+}
@@ -0,0 +1,248 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pkleczek.profiwan.utils.DatabaseHelper.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.PhraseEntry;
+
+public class SchemaMigratorTest {
+
+	File file;
+	Connection conn;
+
+	@Before
+	public void openDB() throws IOException, SQLException,
+			ClassNotFoundException {
+		Class.forName("org.sqlite.JDBC");
+
+		file = File.createTempFile("profiwan", ".db");
+		conn = DriverManager.getConnection("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+	}
+
+	@After
+	public void closeDB() throws SQLException {
+		conn.close();
+		file.delete();
+	}
+
+	/**
+	 * Creates the tables as the first release did.
+	 */
+	private void createLegacyTables() throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			stmt.executeUpdate("CREATE TABLE Phrase(_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+					+ "lang1 TEXT NOT NULL,lang2 TEXT NOT NULL,lang1_text TEXT NOT NULL,"
+					+ "lang2_text TEXT NOT NULL,label TEXT NOT NULL,"
+					+ "created_at INTEGER NOT NULL,in_revision INTEGER NOT NULL);");
+			stmt.executeUpdate("CREATE TABLE Revision(_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+					+ "created_at INTEGER NOT NULL,mistakes INTEGER NOT NULL,"
+					+ "Phrase_idPhrase INTEGER NOT NULL,"
+					+ "FOREIGN KEY(Phrase_idPhrase) REFERENCES Phrase(_id)"
+					+ " ON DELETE CASCADE ON UPDATE CASCADE);");
+
+			long createdAt = DBUtils.getIntFromDateTime(new DateTime(2013, 10,
+					1, 12, 0));
+			stmt.executeUpdate("INSERT INTO Phrase VALUES (1,'pl','ru','kot','кот','',"
+					+ createdAt + ",1);");
+			stmt.executeUpdate("INSERT INTO Phrase VALUES (2,'pl','ru','pies','собака','',"
+					+ createdAt + ",0);");
+			stmt.executeUpdate("INSERT INTO Revision VALUES (1," + createdAt
+					+ ",0,1);");
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private boolean hasIndex(String index) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			ResultSet rs = stmt
+					.executeQuery("SELECT name FROM sqlite_master WHERE type='index' AND name='"
+							+ index + "';");
+			boolean exists = rs.next();
+			rs.close();
+
+			return exists;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private String explain(String query) throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		try {
+			ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN " + query);
+			StringBuilder plan = new StringBuilder();
+			while (rs.next()) {
+				plan.append(rs.getString("detail")).append('\n');
+			}
+			rs.close();
+
+			return plan.toString();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	@Test
+	public void testMigrateNewDatabase() throws SQLException {
+		SchemaMigrator migrator = new SchemaMigrator();
+
+		assertEquals(0, SchemaMigrator.getVersion(conn));
+		assertEquals(migrator.getLatestVersion(), migrator.migrate(conn));
+		assertEquals(migrator.getLatestVersion(),
+				SchemaMigrator.getVersion(conn));
+
+		assertTrue(SchemaMigrator.hasTable(conn, TABLE_PHRASE));
+		assertTrue(SchemaMigrator.hasTable(conn, TABLE_REVISION));
+		assertTrue(hasIndex(INDEX_PHRASE_NEXT_DUE));
+		assertTrue(hasIndex(INDEX_REVISION_PHRASE));
+
+		// Nothing more to do.
+		assertEquals(0, migrator.migrate(conn));
+		assertTrue(conn.getAutoCommit());
+	}
+
+	@Test
+	public void testMigrateLegacyDatabase() throws SQLException {
+		createLegacyTables();
+
+		new SchemaMigrator().migrate(conn);
+
+		assertTrue(SchemaMigrator.hasColumn(conn, TABLE_PHRASE,
+				KEY_PHRASE_NEXT_DUE));
+		assertTrue(SchemaMigrator.hasColumn(conn, TABLE_REVISION,
+				KEY_REVISION_TYPOS));
+
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery(PhraseRowReader.getSelectQuery(null));
+		PhraseRowReader reader = new PhraseRowReader(rs);
+
+		PhraseEntry pe = reader.read();
+		assertEquals("кот", pe.getLangBText());
+		assertEquals(1, pe.getRevisions().size());
+		assertEquals(0, pe.getRevisions().get(0).getTypos());
+		rs.close();
+
+		// The next revision date has been computed.
+		rs = stmt.executeQuery("SELECT next_due FROM Phrase WHERE _id=1;");
+		assertTrue(rs.next());
+		assertEquals(DBUtils.getIntFromDateTime(pe.getNextRevisionDate()),
+				rs.getInt(1));
+		rs.close();
+		stmt.close();
+	}
+
+	@Test
+	public void testDailyStatsFilled() throws SQLException {
+		createLegacyTables();
+
+		new SchemaMigrator().migrate(conn);
+
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT * FROM " + TABLE_DAILY_STATS
+				+ ";");
+		assertTrue(rs.next());
+		assertEquals(DBUtils.getEpochDay(new LocalDate(2013, 10, 1)),
+				rs.getInt(KEY_DAILY_STATS_DAY));
+		assertEquals(1, rs.getInt(KEY_DAILY_STATS_REVISIONS));
+		assertEquals(1, rs.getInt(KEY_DAILY_STATS_LEARNED));
+		assertFalse(rs.next());
+		rs.close();
+
+		// Kept up to date from now on.
+		stmt.executeUpdate("UPDATE Revision SET mistakes=-2 WHERE _id=1;");
+		rs = stmt.executeQuery("SELECT * FROM " + TABLE_DAILY_STATS + ";");
+		assertTrue(rs.next());
+		assertEquals(2, rs.getInt(KEY_DAILY_STATS_MISTAKES));
+		assertEquals(0, rs.getInt(KEY_DAILY_STATS_LEARNED));
+		rs.close();
+
+		stmt.executeUpdate("DELETE FROM Revision;");
+		rs = stmt.executeQuery("SELECT * FROM " + TABLE_DAILY_STATS + ";");
+		assertFalse(rs.next());
+		rs.close();
+		stmt.close();
+	}
+
+	@Test
+	public void testQueryPlans() throws SQLException {
+		new SchemaMigrator().migrate(conn);
+
+		String plan = explain(PhraseRowReader.SELECT_DUE_PHRASES_QUERY
+				.replace(":" + KEY_PHRASE_NEXT_DUE, "0"));
+		// The revision index has all the columns used (this version of SQLite
+		// does not say whether an index is covering).
+		assertTrue(plan, plan.contains("TABLE " + TABLE_PHRASE
+				+ " WITH INDEX " + INDEX_PHRASE_NEXT_DUE));
+		assertTrue(plan, plan.contains("TABLE " + TABLE_REVISION
+				+ " WITH INDEX " + INDEX_REVISION_PHRASE));
+	}
+
+	@Test
+	public void testFailedMigrationRolledBack() throws SQLException {
+		SchemaMigrator.Migration failing = new SchemaMigrator.Migration(2) {
+			@Override
+			protected void migrate(Connection conn) throws SQLException {
+				Statement stmt = conn.createStatement();
+				try {
+					stmt.executeUpdate("CREATE TABLE Extra(_id INTEGER);");
+					stmt.executeUpdate("INSERT INTO Missing VALUES (1);");
+				} finally {
+					stmt.close();
+				}
+			}
+		};
+		List<SchemaMigrator.Migration> migrations = Arrays.asList(
+				SchemaMigrator.BASELINE, failing);
+
+		try {
+			new SchemaMigrator(migrations).migrate(conn);
+			fail();
+		} catch (SQLException e) {
+			// expected
+		}
+
+		assertEquals(1, SchemaMigrator.getVersion(conn));
+		assertTrue(SchemaMigrator.hasTable(conn, TABLE_PHRASE));
+		assertFalse(SchemaMigrator.hasTable(conn, "Extra"));
+		assertTrue(conn.getAutoCommit());
+	}
+
+	@Test(expected = SQLException.class)
+	public void testNewerVersion() throws SQLException {
+		SchemaMigrator migrator = new SchemaMigrator();
+		SchemaMigrator.setVersion(conn, migrator.getLatestVersion() + 1);
+
+		migrator.migrate(conn);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingMigration() {
+		new SchemaMigrator(Arrays.asList(SchemaMigrator.COVERING_INDEXES));
+	}
+}
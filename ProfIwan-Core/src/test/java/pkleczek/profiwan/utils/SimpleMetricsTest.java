@@ -0,0 +1,79 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import pkleczek.profiwan.utils.SimpleMetrics.Histogram;
+
+public class SimpleMetricsTest {
+
+	@Test
+	public void testCountersAndGauges() {
+		SimpleMetrics metrics = new SimpleMetrics();
+
+		metrics.count("a", 2L);
+		metrics.count("a", 3L);
+		metrics.gauge("g", 7L);
+		metrics.gauge("g", 4L);
+
+		assertEquals(5L, metrics.getCount("a"));
+		assertEquals(0L, metrics.getCount("b"));
+		assertEquals(4L, metrics.getGauge("g"));
+		assertTrue(metrics.getRate("a") > 0.0);
+		assertTrue(metrics.toString().contains("a 5\n"));
+	}
+
+	@Test
+	public void testHistogram() {
+		SimpleMetrics metrics = new SimpleMetrics();
+
+		for (int i = 1; i <= 100; i++) {
+			metrics.time("t", i * 1000L);
+		}
+
+		Histogram histogram = metrics.getTimer("t");
+		assertEquals(100L, histogram.getCount());
+		assertEquals(50500L, histogram.getMeanNanos());
+		assertEquals(100000L, histogram.getMaxNanos());
+
+		// Within a factor of 2 of the exact percentiles.
+		long p50 = histogram.getPercentileNanos(0.5);
+		assertTrue(p50 >= 50000L && p50 < 100000L);
+		assertEquals(100000L, histogram.getPercentileNanos(1.0));
+
+		assertEquals(0L, metrics.getTimer("none").getCount());
+		assertEquals(0L, metrics.getTimer("none").getPercentileNanos(0.5));
+	}
+
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		final SimpleMetrics metrics = new SimpleMetrics();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						metrics.count("c", 1L);
+						metrics.time("t", j);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(40000L, metrics.getCount("c"));
+		assertEquals(40000L, metrics.getTimer("t").getCount());
+		assertEquals(9999L, metrics.getTimer("t").getMaxNanos());
+	}
+}
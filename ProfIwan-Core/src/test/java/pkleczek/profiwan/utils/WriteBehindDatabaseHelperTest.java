@@ -0,0 +1,396 @@
+package pkleczek.profiwan.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import pkleczek.profiwan.model.PhraseEntry;
+import pkleczek.profiwan.model.RevisionEntry;
+import pkleczek.profiwan.model.RevisionsSession;
+
+public class WriteBehindDatabaseHelperTest {
+
+	DatabaseHelper dbHelper = DatabaseHelperImplMock.getInstance();
+
+	@Before
+	public void recreateDB() throws SQLException {
+		((DatabaseHelperImplMock) dbHelper).recreateTables();
+	}
+
+	private PhraseEntry createPhrase() {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+		pe.setLangBText("rus");
+		dbHelper.createPhrase(pe);
+
+		return pe;
+	}
+
+	private static PhraseEntry newPhrase() {
+		PhraseEntry pe = new PhraseEntry();
+		pe.setInRevisions(true);
+		pe.setCreatedAt(DateTime.now());
+
+		return pe;
+	}
+
+	/**
+	 * Fails the given number of revision inserts.
+	 */
+	private static class FailingDatabaseHelper extends
+			ForwardingDatabaseHelper {
+
+		private final DatabaseHelper delegate;
+
+		private final boolean throwing;
+
+		int failures;
+
+		FailingDatabaseHelper(DatabaseHelper delegate, int failures,
+				boolean throwing) {
+			this.delegate = delegate;
+			this.failures = failures;
+			this.throwing = throwing;
+		}
+
+		@Override
+		protected DatabaseHelper delegate() {
+			return delegate;
+		}
+
+		@Override
+		public long createRevision(RevisionEntry revision, long phrase_id) {
+			if (failures > 0) {
+				failures--;
+				if (throwing) {
+					throw new IllegalStateException("failure"); //$NON-NLS-1$
+				}
+				return revision.getId();
+			}
+
+			return super.createRevision(revision, phrase_id);
+		}
+	}
+
+	private int countRevisions() {
+		int count = 0;
+		for (PhraseEntry pe : dbHelper.getDictionary()) {
+			count += pe.getRevisions().size();
+		}
+		return count;
+	}
+
+	@Test
+	public void testFlushCoalescesUpdates() throws IOException {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				dbHelper, 0, 0);
+		PhraseEntry pe = createPhrase();
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		helper.createRevision(re, pe.getId());
+		re.nextMistake();
+		helper.updateRevision(re);
+		re.nextMistake();
+		helper.updateRevision(re);
+
+		assertEquals(0, countRevisions());
+		assertEquals(0, re.getId());
+
+		helper.flush();
+
+		assertTrue(re.getId() != 0);
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		assertEquals(1, dictionary.get(0).getRevisions().size());
+		assertEquals(-2, dictionary.get(0).getRevisions().get(0).getMistakes());
+
+		re.enteredCorrectly();
+		helper.updateRevision(re);
+		helper.flush();
+		assertEquals(2, dbHelper.getDictionary().get(0).getRevisions().get(0)
+				.getMistakes());
+	}
+
+	@Test
+	public void testFlushAfterAnswers() {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				dbHelper, 2, 0);
+		PhraseEntry pe = createPhrase();
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		helper.createRevision(re, pe.getId());
+		helper.updateRevision(re);
+		assertEquals(0, countRevisions());
+
+		helper.updateRevision(re);
+		assertEquals(1, countRevisions());
+	}
+
+	@Test
+	public void testFlushAfterDelay() throws Exception {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				dbHelper, 0, 50);
+		PhraseEntry pe = createPhrase();
+
+		try {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now());
+			helper.createRevision(re, pe.getId());
+
+			for (int i = 0; i < 100 && re.getId() == 0; i++) {
+				Thread.sleep(20);
+			}
+
+			assertTrue(re.getId() != 0);
+		} finally {
+			helper.close();
+		}
+
+		assertEquals(1, countRevisions());
+	}
+
+	@Test
+	public void testFailedFlushKeepsChanges() throws IOException {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				new FailingDatabaseHelper(dbHelper, 2, false), 0, 0);
+		PhraseEntry pe = createPhrase();
+
+		RevisionEntry first = new RevisionEntry();
+		first.setCreatedAt(DateTime.now());
+		helper.createRevision(first, pe.getId());
+		RevisionEntry second = new RevisionEntry();
+		second.setCreatedAt(DateTime.now());
+		helper.createRevision(second, pe.getId());
+
+		// The transaction fails, and so does the first insert on its own.
+		try {
+			helper.flush();
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, countRevisions());
+		assertEquals(0, first.getId());
+
+		helper.flush();
+		assertEquals(2, countRevisions());
+		assertTrue(first.getId() != 0);
+	}
+
+	@Test
+	public void testFailingChangeDropped() throws IOException {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				dbHelper, 0, 0);
+		PhraseEntry pe = createPhrase();
+
+		// Not stored (e.g. deleted meanwhile).
+		RevisionEntry deleted = new RevisionEntry();
+		deleted.setId(1000L);
+		deleted.setCreatedAt(DateTime.now());
+		helper.updateRevision(deleted);
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		helper.createRevision(re, pe.getId());
+
+		for (int i = 0; i < WriteBehindDatabaseHelper.MAX_WRITE_ATTEMPTS; i++) {
+			try {
+				helper.flush();
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+			assertEquals(1, countRevisions());
+		}
+
+		// Dropped.
+		helper.flush();
+
+		re.nextMistake();
+		helper.updateRevision(re);
+		helper.flush();
+		assertEquals(-1, dbHelper.getDictionary().get(0).getRevisions().get(0)
+				.getMistakes());
+	}
+
+	@Test
+	public void testCloseReportsLostChanges() {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				new FailingDatabaseHelper(dbHelper, 10, false), 0, 0);
+		PhraseEntry pe = createPhrase();
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		helper.createRevision(re, pe.getId());
+
+		try {
+			helper.close();
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRolledBackTransaction() throws IOException {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				dbHelper, 0, 0);
+		PhraseEntry pe = createPhrase();
+
+		helper.beginTransaction();
+		try {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now());
+			helper.createRevision(re, pe.getId());
+		} finally {
+			helper.endTransaction();
+		}
+
+		helper.flush();
+		assertEquals(0, countRevisions());
+	}
+
+	/**
+	 * A write of another thread (e.g. the timer's flush) waits for the end of
+	 * the transaction instead of locking out its owner.
+	 */
+	@Test
+	public void testTransactionWithConcurrentWrite() throws Exception {
+		File file = File.createTempFile("profiwan", ".db");
+		SQLiteDatabaseHelper sqlite = new SQLiteDatabaseHelper("jdbc:sqlite:"
+				+ file.getAbsolutePath());
+		final WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				sqlite, 0, 0);
+		final PhraseEntry pe = newPhrase();
+		helper.createPhrase(pe);
+
+		final CountDownLatch begun = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Void> transaction = executor.submit(new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					helper.beginTransaction();
+					try {
+						begun.countDown();
+						// The other thread is waiting meanwhile.
+						Thread.sleep(100);
+
+						RevisionEntry re = new RevisionEntry();
+						re.setCreatedAt(DateTime.now());
+						helper.createRevision(re, pe.getId());
+						helper.setTransactionSuccessful();
+					} finally {
+						helper.endTransaction();
+					}
+					return null;
+				}
+			});
+
+			begun.await();
+			Future<Long> write = executor.submit(new Callable<Long>() {
+				public Long call() {
+					return helper.createPhrase(newPhrase());
+				}
+			});
+
+			transaction.get(10, TimeUnit.SECONDS);
+			assertTrue(write.get(10, TimeUnit.SECONDS) > 0);
+
+			assertEquals(2, helper.getDictionary().size());
+			assertEquals(1, helper.getDictionary().get(0).getRevisions().size());
+		} finally {
+			executor.shutdown();
+			helper.close();
+			sqlite.close();
+
+			file.delete();
+			new File(file.getAbsolutePath() + "-wal").delete();
+			new File(file.getAbsolutePath() + "-shm").delete();
+		}
+	}
+
+	@Test
+	public void testTimerSurvivesException() throws Exception {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				new FailingDatabaseHelper(dbHelper, 2, true), 0, 20);
+		PhraseEntry pe = createPhrase();
+
+		try {
+			RevisionEntry re = new RevisionEntry();
+			re.setCreatedAt(DateTime.now());
+			helper.createRevision(re, pe.getId());
+
+			for (int i = 0; i < 100 && re.getId() == 0; i++) {
+				Thread.sleep(20);
+			}
+
+			assertTrue(re.getId() != 0);
+
+			// The timer still runs.
+			RevisionEntry next = new RevisionEntry();
+			next.setCreatedAt(DateTime.now());
+			helper.createRevision(next, pe.getId());
+
+			for (int i = 0; i < 100 && next.getId() == 0; i++) {
+				Thread.sleep(20);
+			}
+
+			assertTrue(next.getId() != 0);
+		} finally {
+			helper.close();
+		}
+
+		assertEquals(2, countRevisions());
+	}
+
+	@Test
+	public void testReadFlushes() {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				dbHelper, 0, 0);
+		PhraseEntry pe = createPhrase();
+
+		RevisionEntry re = new RevisionEntry();
+		re.setCreatedAt(DateTime.now());
+		helper.createRevision(re, pe.getId());
+
+		assertEquals(1, helper.getDictionary().get(0).getRevisions().size());
+	}
+
+	@Test
+	public void testSessionFinishFlushes() throws IOException {
+		WriteBehindDatabaseHelper helper = new WriteBehindDatabaseHelper(
+				dbHelper, 0, 0);
+		createPhrase();
+
+		RevisionsSession rs = new RevisionsSession(helper);
+		rs.processTypedWord("xxx");
+		rs.nextRevision();
+		rs.processTypedWord("rus");
+		assertEquals(0, countRevisions());
+
+		rs.finish();
+
+		List<PhraseEntry> dictionary = dbHelper.getDictionary();
+		assertEquals(1, dictionary.get(0).getRevisions().size());
+		assertEquals(1, dictionary.get(0).getRevisions().get(0).getMistakes());
+		assertTrue(dictionary.get(0).getNextRevisionDate()
+				.isAfter(DateTime.now()));
+	}
+}